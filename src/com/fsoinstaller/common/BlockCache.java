@@ -0,0 +1,253 @@
+/*
+ * This file is part of the FreeSpace Open Installer
+ * Copyright (C) 2026 The FreeSpace 2 Source Code Project
+ * 
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package com.fsoinstaller.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.fsoinstaller.utils.Logger;
+
+
+/**
+ * Remembers the blocks of a remote file that have already been read, so that
+ * seeking back and forth in it (as 7-Zip does in a zip file, whose directory
+ * is at the end) doesn't mean downloading the same bytes again. Recently used
+ * blocks are kept in memory, up to a limit; the least recently used are then
+ * moved to a temporary spill file, up to a limit of its own, or else
+ * forgotten. Both limits are fixed however large the remote file is, so even
+ * an archive of many gigabytes only ever passes through a window of bounded
+ * size. The spill file is deleted when the cache is closed.
+ * <p>
+ * This class is not thread-safe; it is meant to serve a single stream.
+ */
+public class BlockCache
+{
+	private static final Logger logger = Logger.getLogger(BlockCache.class);
+	
+	public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+	
+	protected final int blockSize;
+	protected final int maxMemoryBlocks;
+	protected final Map<Long, byte[]> memoryBlocks;
+	
+	protected File spillDirectory;
+	protected final int maxSpilledBlocks;
+	protected File spillPath;
+	protected RandomAccessFile spillFile;
+	protected final Map<Long, SpilledBlock> spilledBlocks;
+	
+	protected long hits;
+	protected long misses;
+	
+	/**
+	 * @param memoryBytes the most memory the cached blocks may take up
+	 * @param spillDirectory where to put the spill file, or null to forget
+	 *        blocks once they no longer fit in memory
+	 * @param spillBytes the largest the spill file may grow
+	 */
+	public BlockCache(int blockSize, long memoryBytes, File spillDirectory, long spillBytes)
+	{
+		if (blockSize <= 0)
+			throw new IllegalArgumentException("Block size must be positive!");
+		
+		this.blockSize = blockSize;
+		this.maxMemoryBlocks = (int) Math.max(1, Math.min(Integer.MAX_VALUE, memoryBytes / blockSize));
+		this.memoryBlocks = new LinkedHashMap<Long, byte[]>(16, 0.75f, true)
+		{
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest)
+			{
+				if (size() <= maxMemoryBlocks)
+					return false;
+				
+				spill(eldest.getKey(), eldest.getValue());
+				return true;
+			}
+		};
+		
+		this.spillDirectory = spillDirectory;
+		this.maxSpilledBlocks = (int) Math.max(0, Math.min(Integer.MAX_VALUE, spillBytes / blockSize));
+		this.spillPath = null;
+		this.spillFile = null;
+		this.spilledBlocks = new HashMap<Long, SpilledBlock>();
+		
+		this.hits = 0;
+		this.misses = 0;
+	}
+	
+	public int getBlockSize()
+	{
+		return blockSize;
+	}
+	
+	/**
+	 * Gets the contents of a block, or null if it isn't cached. Every block
+	 * but the last one of a file is a full block.
+	 */
+	public byte[] get(long block)
+	{
+		byte[] data = memoryBlocks.get(block);
+		if (data == null)
+			data = unspill(block);
+		
+		if (data == null)
+			misses++;
+		else
+			hits++;
+		return data;
+	}
+	
+	public void put(long block, byte[] data)
+	{
+		memoryBlocks.put(block, data);
+	}
+	
+	/**
+	 * The number of times a block was found in the cache, in memory or in the
+	 * spill file.
+	 */
+	public long getHits()
+	{
+		return hits;
+	}
+	
+	/**
+	 * The number of times a block had to be fetched.
+	 */
+	public long getMisses()
+	{
+		return misses;
+	}
+	
+	/**
+	 * The number of blocks that are currently in the spill file.
+	 */
+	public int getSpilledBlocks()
+	{
+		return spilledBlocks.size();
+	}
+	
+	public void close()
+	{
+		memoryBlocks.clear();
+		spilledBlocks.clear();
+		closeSpillFile();
+	}
+	
+	private void spill(long block, byte[] data)
+	{
+		if (spillDirectory == null || spilledBlocks.containsKey(block))
+			return;
+		
+		// once the spill file is full, blocks are simply forgotten; a stream that is read from
+		// beginning to end never comes back for them, and the blocks spilled first are the
+		// ones most likely to be revisited (such as the directory at the end of a zip file)
+		if (spilledBlocks.size() >= maxSpilledBlocks)
+			return;
+		
+		// the blocks are packed into slots in the order they arrive, so the file stays as small as it can be
+		int slot = spilledBlocks.size();
+		
+		try
+		{
+			if (spillFile == null)
+			{
+				spillPath = File.createTempFile("fsoinstaller", ".blocks", spillDirectory);
+				spillPath.deleteOnExit();
+				spillFile = new RandomAccessFile(spillPath, "rw");
+			}
+			
+			spillFile.seek((long) slot * blockSize);
+			spillFile.write(data);
+			spilledBlocks.put(block, new SpilledBlock(slot, data.length));
+		}
+		catch (IOException ioe)
+		{
+			// we can manage without it
+			logger.warn("Could not write to the block spill file; blocks will be forgotten from now on", ioe);
+			spilledBlocks.clear();
+			closeSpillFile();
+			spillDirectory = null;
+		}
+	}
+	
+	private byte[] unspill(long block)
+	{
+		SpilledBlock spilled = spilledBlocks.get(block);
+		if (spilled == null)
+			return null;
+		
+		try
+		{
+			byte[] data = new byte[spilled.length];
+			spillFile.seek((long) spilled.slot * blockSize);
+			spillFile.readFully(data);
+			
+			// it's in use again, so bring it back where it can be found quickly
+			memoryBlocks.put(block, data);
+			return data;
+		}
+		catch (IOException ioe)
+		{
+			logger.warn("Could not read from the block spill file", ioe);
+			return null;
+		}
+	}
+	
+	private void closeSpillFile()
+	{
+		if (spillFile != null)
+		{
+			try
+			{
+				spillFile.close();
+			}
+			catch (IOException ioe)
+			{
+				logger.warn("Could not close the block spill file!", ioe);
+			}
+			spillFile = null;
+		}
+		if (spillPath != null)
+		{
+			if (!spillPath.delete())
+				logger.warn("Could not delete the block spill file '" + spillPath.getAbsolutePath() + "'!");
+			spillPath = null;
+		}
+	}
+	
+	private static class SpilledBlock
+	{
+		public final int slot;
+		public final int length;
+		
+		public SpilledBlock(int slot, int length)
+		{
+			this.slot = slot;
+			this.length = length;
+		}
+	}
+}
@@ -0,0 +1,146 @@
+/*
+ * This file is part of the FreeSpace Open Installer
+ * Copyright (C) 2026 The FreeSpace 2 Source Code Project
+ * 
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package com.fsoinstaller.common;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.fsoinstaller.utils.IOUtils;
+
+
+/**
+ * Hashes everything written through it, with any number of algorithms at
+ * once, so that a file can be hashed as it is written instead of being read
+ * back afterward. Only bytes that the underlying stream accepted are hashed,
+ * so when this is placed directly on top of a FileOutputStream, the hashes
+ * describe exactly what is in the file.
+ * <p>
+ * The hashes are finished when the stream is closed, at which point
+ * <tt>hashed</tt> is called with them. If a write failed, nobody can say
+ * what the file holds, so there are no hashes.
+ */
+public class DigestingOutputStream extends FilterOutputStream
+{
+	protected final Map<String, MessageDigest> digests;
+	
+	private boolean failed;
+	private boolean closed;
+	private Map<String, String> hashes;
+	
+	public DigestingOutputStream(OutputStream out, Collection<String> algorithms) throws NoSuchAlgorithmException
+	{
+		super(out);
+		
+		this.digests = new LinkedHashMap<String, MessageDigest>();
+		for (String algorithm: algorithms)
+			digests.put(algorithm, MessageDigest.getInstance(algorithm));
+		
+		this.failed = false;
+		this.closed = false;
+		this.hashes = null;
+	}
+	
+	@Override
+	public void write(int b) throws IOException
+	{
+		try
+		{
+			out.write(b);
+		}
+		catch (IOException ioe)
+		{
+			failed = true;
+			throw ioe;
+		}
+		
+		for (MessageDigest digest: digests.values())
+			digest.update((byte) b);
+	}
+	
+	@Override
+	public void write(byte[] data, int offset, int length) throws IOException
+	{
+		try
+		{
+			out.write(data, offset, length);
+		}
+		catch (IOException ioe)
+		{
+			failed = true;
+			throw ioe;
+		}
+		
+		for (MessageDigest digest: digests.values())
+			digest.update(data, offset, length);
+	}
+	
+	@Override
+	public void close() throws IOException
+	{
+		if (closed)
+			return;
+		closed = true;
+		
+		try
+		{
+			out.close();
+		}
+		catch (IOException ioe)
+		{
+			failed = true;
+			throw ioe;
+		}
+		
+		if (failed)
+			return;
+		
+		Map<String, String> result = new HashMap<String, String>();
+		for (Map.Entry<String, MessageDigest> entry: digests.entrySet())
+			result.put(entry.getKey(), IOUtils.toHexString(entry.getValue().digest()));
+		hashes = Collections.unmodifiableMap(result);
+		
+		hashed(hashes);
+	}
+	
+	/**
+	 * The hashes of everything that was written, keyed by algorithm, or null
+	 * if the stream isn't closed yet or a write failed.
+	 */
+	public Map<String, String> getHashes()
+	{
+		return hashes;
+	}
+	
+	/**
+	 * Called when the stream is closed, with the hashes of everything that
+	 * was written, keyed by algorithm. Does nothing unless overridden.
+	 */
+	protected void hashed(Map<String, String> hashes)
+	{
+	}
+}
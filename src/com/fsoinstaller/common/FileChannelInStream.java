@@ -0,0 +1,160 @@
+/*
+ * This file is part of the FreeSpace Open Installer
+ * Copyright (C) 2026 The FreeSpace 2 Source Code Project
+ * 
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package com.fsoinstaller.common;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import net.sf.sevenzipjbinding.IInStream;
+import net.sf.sevenzipjbinding.SevenZipException;
+
+
+/**
+ * Gives 7-Zip-JBinding direct access to a local file, for archives that are
+ * already on disk (a file:// mirror, or a copy in the download cache). Unlike
+ * InputStreamInStream, seeking costs nothing, since every read says where it
+ * is reading from.
+ * <p>
+ * The file may also be memory-mapped, a window at a time, which saves copying
+ * the data through the channel. Mapped windows are only released when they
+ * are garbage-collected, and until then the file can't be deleted on Windows,
+ * so mapping is best kept for files that are going to stay put.
+ * <p>
+ * Like any IInStream, this is meant to be used by one thread at a time.
+ */
+public class FileChannelInStream implements IInStream, Closeable
+{
+	private static final int MAP_WINDOW_SIZE = 64 * 1024 * 1024;
+	
+	protected final RandomAccessFile file;
+	protected final FileChannel channel;
+	protected final long size;
+	protected final boolean memoryMapped;
+	protected MappedByteBuffer[] windows;
+	protected long position;
+	
+	public FileChannelInStream(File file) throws IOException
+	{
+		this(file, false);
+	}
+	
+	public FileChannelInStream(File file, boolean memoryMapped) throws IOException
+	{
+		this.file = new RandomAccessFile(file, "r");
+		this.channel = this.file.getChannel();
+		this.size = channel.size();
+		this.memoryMapped = memoryMapped;
+		this.windows = memoryMapped ? new MappedByteBuffer[(int) ((size + MAP_WINDOW_SIZE - 1) / MAP_WINDOW_SIZE)] : null;
+		this.position = 0;
+	}
+	
+	public long getSize()
+	{
+		return size;
+	}
+	
+	public long seek(long offset, int seekOrigin) throws SevenZipException
+	{
+		long newPosition;
+		switch (seekOrigin)
+		{
+			case SEEK_SET:
+				newPosition = offset;
+				break;
+			
+			case SEEK_CUR:
+				newPosition = position + offset;
+				break;
+			
+			case SEEK_END:
+				newPosition = size + offset;
+				break;
+			
+			default:
+				throw new IllegalArgumentException("Unrecognized seek origin!");
+		}
+		
+		if (newPosition < 0)
+			throw new SevenZipException("Can't read a negative stream position!");
+		position = newPosition;
+		return position;
+	}
+	
+	public int read(byte[] data) throws SevenZipException
+	{
+		if (data.length == 0 || position >= size)
+			return 0;
+		
+		try
+		{
+			int count = memoryMapped ? readMapped(data) : readChannel(data);
+			position += count;
+			return count;
+		}
+		catch (IOException ioe)
+		{
+			throw new SevenZipException("Error reading file", ioe);
+		}
+	}
+	
+	private int readChannel(byte[] data) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.wrap(data, 0, (int) Math.min(data.length, size - position));
+		long filePosition = position;
+		while (buffer.hasRemaining())
+		{
+			int bytesRead = channel.read(buffer, filePosition);
+			if (bytesRead < 0)
+				break;
+			filePosition += bytesRead;
+		}
+		return buffer.position();
+	}
+	
+	/**
+	 * Reads from the window that the position is in, mapping it first if
+	 * need be. A read never spans two windows; 7-Zip just asks again.
+	 */
+	private int readMapped(byte[] data) throws IOException
+	{
+		int index = (int) (position / MAP_WINDOW_SIZE);
+		long windowStart = (long) index * MAP_WINDOW_SIZE;
+		if (windows[index] == null)
+			windows[index] = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(MAP_WINDOW_SIZE, size - windowStart));
+		
+		MappedByteBuffer window = windows[index];
+		window.position((int) (position - windowStart));
+		int count = Math.min(data.length, window.remaining());
+		window.get(data, 0, count);
+		return count;
+	}
+	
+	public void close() throws IOException
+	{
+		// (there's no way to unmap the windows, but they can at least be collected)
+		windows = null;
+		file.close();
+	}
+}
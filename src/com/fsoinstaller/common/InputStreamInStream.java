@@ -19,12 +19,15 @@
 
 package com.fsoinstaller.common;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 
 import net.sf.sevenzipjbinding.IInStream;
 import net.sf.sevenzipjbinding.SevenZipException;
 
+import com.fsoinstaller.utils.Logger;
+
 
 /**
  * This class acts as a bridge between the IInStream API used by 7-Zip-JBinding
@@ -32,13 +35,25 @@ import net.sf.sevenzipjbinding.SevenZipException;
  * 
  * @author Goober5000
  */
-public class InputStreamInStream implements IInStream
+public class InputStreamInStream implements IInStream, Closeable
 {
+	private static final Logger logger = Logger.getLogger(InputStreamInStream.class);
+	
 	private static final int defaultBufferSize = 8192;
 	private static final int MAX_SEEK_TRIES = 10;
 	
+	// with a block cache, a gap of up to this many blocks is read through rather than skipped with a new stream
+	private static final int MAX_CATCH_UP_BLOCKS = 4;
+	
 	protected final InputStreamSource inputStreamSource;
 	protected InputStream currentInputStream;
+	protected long streamPos;
+	protected int maxReconnects;
+	protected int reconnects;
+	protected boolean readAhead;
+	protected BlockCache blockCache;
+	protected SparseFile sparseFile;
+	protected int streamRequests;
 	
 	protected final byte[] buffer;
 	protected final int bufferMiddle;
@@ -54,9 +69,6 @@ public class InputStreamInStream implements IInStream
 	
 	public InputStreamInStream(InputStreamSource inputStreamSource, long totalBytes, int bufferSize)
 	{
-		if (totalBytes >= Integer.MAX_VALUE)
-			throw new IllegalArgumentException("InputStreamInStream has not been tested for sizes above Integer.MAX_VALUE (size = " + totalBytes + ")");
-		
 		if (inputStreamSource == null)
 			throw new NullPointerException("InputStreamSource must not be null!");
 		if (totalBytes < 0)
@@ -66,6 +78,13 @@ public class InputStreamInStream implements IInStream
 		
 		this.inputStreamSource = inputStreamSource;
 		this.currentInputStream = null;
+		this.streamPos = 0;
+		this.maxReconnects = 0;
+		this.reconnects = 0;
+		this.readAhead = false;
+		this.blockCache = null;
+		this.sparseFile = null;
+		this.streamRequests = 0;
 		
 		this.buffer = new byte[bufferSize];
 		this.bufferMiddle = buffer.length / 2;
@@ -75,13 +94,85 @@ public class InputStreamInStream implements IInStream
 		this.overallCount = totalBytes;
 	}
 	
+	/**
+	 * Sets how many times, over the life of this object, a read that fails
+	 * partway through the stream (for example, because the connection stalled
+	 * and was aborted) is retried by asking the InputStreamSource for a new
+	 * stream at the same position. The default is 0.
+	 */
+	public void setMaxReconnects(int maxReconnects)
+	{
+		if (maxReconnects < 0)
+			throw new IllegalArgumentException("Reconnect count must not be negative!");
+		this.maxReconnects = maxReconnects;
+	}
+	
+	/**
+	 * Sets whether each stream from the InputStreamSource is read on a
+	 * background thread (see ReadAheadInputStream), so that fetching the data
+	 * overlaps with whatever 7-Zip does with it. The buffer that allows
+	 * seeking backwards is kept either way. This takes effect the next time a
+	 * stream is requested, so it should be set before the first read. The
+	 * default is false.
+	 */
+	public void setReadAhead(boolean readAhead)
+	{
+		this.readAhead = readAhead;
+	}
+	
+	/**
+	 * Reads the stream a block at a time through the given cache, so that
+	 * no part of it needs to be fetched more than once however the reader
+	 * seeks around (as long as the cache has room for it). The cache belongs
+	 * to this object from now on and is closed along with it. This must be
+	 * set before the first read.
+	 */
+	public void setBlockCache(BlockCache blockCache)
+	{
+		if (currentInputStream != null)
+			throw new IllegalStateException("The block cache must be set before reading!");
+		this.blockCache = blockCache;
+	}
+	
+	public BlockCache getBlockCache()
+	{
+		return blockCache;
+	}
+	
+	/**
+	 * Serves whatever parts of the stream the given file has from the file
+	 * rather than from the stream; it may be set, or filled in, at any time.
+	 * The file belongs to this object from now on and is closed along with
+	 * it.
+	 */
+	public void setSparseFile(SparseFile sparseFile)
+	{
+		if (this.sparseFile != null && this.sparseFile != sparseFile)
+			this.sparseFile.close();
+		this.sparseFile = sparseFile;
+	}
+	
+	public SparseFile getSparseFile()
+	{
+		return sparseFile;
+	}
+	
+	/**
+	 * The number of streams that have been requested from the
+	 * InputStreamSource, including the first one.
+	 */
+	public int getStreamRequests()
+	{
+		return streamRequests;
+	}
+	
 	private void fillBuffer() throws IOException
 	{
 		// we no longer remember those bytes, so we have to restart
 		if (bufferPos < 0)
 		{
 			// get to the correct stream position
-			currentInputStream = inputStreamSource.recycleInputStream(currentInputStream, overallPos);
+			recycleInputStream(overallPos);
 			
 			// reset the buffer
 			bufferPos = 0;
@@ -99,15 +190,16 @@ public class InputStreamInStream implements IInStream
 			if (overallPos >= overallCount - buffer.length)
 			{
 				// calculate amount we'd need to seek
+				// (the seek itself may be longer than an int can hold, but the position within the buffer can't be)
 				int newBufferPos = (int) (overallPos - (overallCount - buffer.length));
-				int offset = (int) (bufferPos - bufferCount) - newBufferPos;
+				long offset = (bufferPos - bufferCount) - newBufferPos;
 				
 				// it's possible that we've arrived in bounds already
 				if (offset < 0)
 				{
 					// finish the buffer
 					// (the buffer info will be properly adjusted below)
-					readFully(buffer, -offset, buffer.length + offset);
+					readFully(buffer, (int) -offset, buffer.length + (int) offset);
 				}
 				// not there yet
 				else
@@ -140,10 +232,10 @@ public class InputStreamInStream implements IInStream
 		}
 		
 		if (currentInputStream == null)
-			currentInputStream = inputStreamSource.recycleInputStream(null, 0);
+			recycleInputStream(0);
 		
 		// try to read the rest of the buffer
-		int bytesRead = currentInputStream.read(buffer, bufferCount, buffer.length - bufferCount);
+		int bytesRead = readStream(buffer, bufferCount, buffer.length - bufferCount);
 		if (bytesRead > 0)
 			bufferCount += bytesRead;
 	}
@@ -158,7 +250,9 @@ public class InputStreamInStream implements IInStream
 			throw new IllegalArgumentException("This method is only for seeking forward");
 		
 		// use a heuristic to determine whether we should seek by using the stream's seek method or by relocating the stream
-		if (offset < defaultBufferSize)
+		// (if the bytes have already arrived, skipping them is always cheaper than a new stream;
+		// and if there is no stream yet, we need a new one anyway)
+		if (currentInputStream != null && (offset < defaultBufferSize || offset <= currentInputStream.available()))
 		{
 			// try skip-seek
 			tries = 0;
@@ -166,7 +260,10 @@ public class InputStreamInStream implements IInStream
 			{
 				long skipped = currentInputStream.skip(offset);
 				if (skipped > 0)
+				{
 					offset -= skipped;
+					streamPos += skipped;
+				}
 				else
 					tries++;
 			}
@@ -175,7 +272,7 @@ public class InputStreamInStream implements IInStream
 			tries = 0;
 			while (offset > 0 && tries < MAX_SEEK_TRIES)
 			{
-				long read = currentInputStream.read(buffer, 0, (offset < buffer.length) ? (int) offset : buffer.length);
+				long read = readStream(buffer, 0, (offset < buffer.length) ? (int) offset : buffer.length);
 				if (read > 0)
 					offset -= read;
 				else
@@ -188,7 +285,7 @@ public class InputStreamInStream implements IInStream
 		// reload the stream at the new position
 		else
 		{
-			currentInputStream = inputStreamSource.recycleInputStream(currentInputStream, absolute);
+			recycleInputStream(absolute);
 		}
 	}
 	
@@ -205,7 +302,7 @@ public class InputStreamInStream implements IInStream
 		tries = 0;
 		while (length > 0 && tries < MAX_SEEK_TRIES)
 		{
-			int read = currentInputStream.read(array, start, length);
+			int read = readStream(array, start, length);
 			if (read > 0)
 			{
 				length -= read;
@@ -219,6 +316,53 @@ public class InputStreamInStream implements IInStream
 			throw new IOException("Number of read tries exceeded MAX_SEEK_TRIES");
 	}
 	
+	private void recycleInputStream(long position) throws IOException
+	{
+		streamRequests++;
+		if (readAhead)
+		{
+			// the background reader owns the stream underneath, so the source can't reuse it
+			if (currentInputStream != null)
+			{
+				currentInputStream.close();
+				currentInputStream = null;
+			}
+			currentInputStream = new ReadAheadInputStream(inputStreamSource.recycleInputStream(null, position));
+		}
+		else
+		{
+			currentInputStream = inputStreamSource.recycleInputStream(currentInputStream, position);
+		}
+		streamPos = position;
+	}
+	
+	/**
+	 * Reads from the current stream, reconnecting at the same position if the
+	 * read fails and we haven't used up our reconnects.
+	 */
+	private int readStream(byte[] array, int start, int length) throws IOException
+	{
+		while (true)
+		{
+			try
+			{
+				int read = currentInputStream.read(array, start, length);
+				if (read > 0)
+					streamPos += read;
+				return read;
+			}
+			catch (IOException ioe)
+			{
+				if (reconnects >= maxReconnects || Thread.currentThread().isInterrupted())
+					throw ioe;
+				reconnects++;
+				
+				logger.warn("Reading the stream failed at byte " + streamPos + " (" + ioe.getMessage() + "); reconnecting (attempt " + reconnects + " of " + maxReconnects + ")");
+				recycleInputStream(streamPos);
+			}
+		}
+	}
+	
 	public long seek(long offset, int seekOrigin) throws SevenZipException
 	{
 		switch (seekOrigin)
@@ -226,7 +370,7 @@ public class InputStreamInStream implements IInStream
 			// seek from the beginning of the stream
 			case SEEK_SET:
 				return seek(offset - overallPos, SEEK_CUR);
-				
+			
 			// seek from the current position
 			case SEEK_CUR:
 				bufferPos += offset;
@@ -234,11 +378,11 @@ public class InputStreamInStream implements IInStream
 				if (overallPos < 0)
 					throw new SevenZipException("Can't read a negative stream position!");
 				return overallPos;
-				
+			
 			// seek from the end of the stream
 			case SEEK_END:
 				return seek(overallCount + offset - overallPos, SEEK_CUR);
-				
+			
 			default:
 				throw new IllegalArgumentException("Unrecognized seek origin!");
 		}
@@ -254,6 +398,36 @@ public class InputStreamInStream implements IInStream
 		else if (overallPos >= overallCount)
 			return 0;
 		
+		if (sparseFile != null)
+		{
+			try
+			{
+				int available = sparseFile.read(overallPos, data, 0, data.length);
+				if (available > 0)
+				{
+					bufferPos += available;
+					overallPos += available;
+					return available;
+				}
+			}
+			catch (IOException ioe)
+			{
+				throw new SevenZipException("Error reading sparse file", ioe);
+			}
+		}
+		
+		if (blockCache != null)
+		{
+			try
+			{
+				return readFromBlocks(data);
+			}
+			catch (IOException ioe)
+			{
+				throw new SevenZipException("Error reading input stream", ioe);
+			}
+		}
+		
 		// ensure buffer is available
 		if (bufferPos < 0 || bufferPos >= bufferCount)
 		{
@@ -284,8 +458,71 @@ public class InputStreamInStream implements IInStream
 		return available;
 	}
 	
+	private int readFromBlocks(byte[] data) throws IOException
+	{
+		int blockSize = blockCache.getBlockSize();
+		long block = overallPos / blockSize;
+		int offsetInBlock = (int) (overallPos % blockSize);
+		
+		byte[] blockData = blockCache.get(block);
+		if (blockData == null)
+			blockData = fetchBlock(block);
+		
+		int available = blockData.length - offsetInBlock;
+		if (available <= 0)
+			return 0;
+		if (available > data.length)
+			available = data.length;
+		
+		System.arraycopy(blockData, offsetInBlock, data, 0, available);
+		overallPos += available;
+		
+		return available;
+	}
+	
+	/**
+	 * Reads a block from the stream and caches it. The stream is always at a
+	 * block boundary, since it is only ever started at one and only ever read
+	 * a whole block at a time.
+	 */
+	private byte[] fetchBlock(long block) throws IOException
+	{
+		int blockSize = blockCache.getBlockSize();
+		long blockStart = block * blockSize;
+		
+		// a stream that has gone past the block, or is too far before it, has to be replaced
+		if (currentInputStream == null || streamPos > blockStart || (blockStart - streamPos > MAX_CATCH_UP_BLOCKS * (long) blockSize && blockStart - streamPos > currentInputStream.available()))
+			recycleInputStream(blockStart);
+		
+		// if we're a little short of the block, read our way there, keeping what we pass
+		while (streamPos < blockStart)
+		{
+			long passedBlock = streamPos / blockSize;
+			blockCache.put(passedBlock, readBlock(passedBlock));
+		}
+		
+		byte[] blockData = readBlock(block);
+		blockCache.put(block, blockData);
+		return blockData;
+	}
+	
+	private byte[] readBlock(long block) throws IOException
+	{
+		int blockSize = blockCache.getBlockSize();
+		int length = (int) Math.min(blockSize, overallCount - block * blockSize);
+		
+		byte[] blockData = new byte[length];
+		readFully(blockData, 0, length);
+		return blockData;
+	}
+	
 	public void close() throws IOException
 	{
+		if (blockCache != null)
+			blockCache.close();
+		if (sparseFile != null)
+			sparseFile.close();
+		
 		if (currentInputStream != null)
 		{
 			currentInputStream.close();
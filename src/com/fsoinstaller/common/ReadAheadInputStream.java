@@ -0,0 +1,351 @@
+/*
+ * This file is part of the FreeSpace Open Installer
+ * Copyright (C) 2026 The FreeSpace 2 Source Code Project
+ * 
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package com.fsoinstaller.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.fsoinstaller.utils.Logger;
+
+
+/**
+ * A stream that reads from another stream on a background thread, so that
+ * whoever consumes the data (such as 7-Zip, decompressing an archive) doesn't
+ * have to stop and wait for the network every time it needs more. The
+ * background reader fills a ring of chunks ahead of the consumer and blocks
+ * when all of them are full. The chunks grow or shrink with the observed
+ * throughput, so that each one holds roughly the same amount of time's worth
+ * of data: small on a slow connection, so that data is handed over promptly,
+ * and large on a fast one, so that there are fewer hand-overs.
+ * <p>
+ * Closing this stream doesn't wait for a read that is in progress; the
+ * background reader closes the underlying stream as soon as that read
+ * returns. The underlying stream must therefore not be used by anyone else.
+ * An exception from the underlying stream is passed on to the consumer once
+ * the data read before it has been consumed.
+ */
+public class ReadAheadInputStream extends InputStream
+{
+	private static final Logger logger = Logger.getLogger(ReadAheadInputStream.class);
+	
+	public static final int MIN_CHUNK_SIZE = 8192;
+	public static final int MAX_CHUNK_SIZE = 1024 * 1024;
+	public static final int DEFAULT_RING_SIZE = 8;
+	
+	// how much time's worth of data a chunk should hold
+	protected static final long TARGET_CHUNK_MILLIS = 50;
+	
+	protected static final ExecutorService readerExecutor = Executors.newCachedThreadPool(new ThreadFactory()
+	{
+		private final AtomicInteger threadNumber = new AtomicInteger(1);
+		
+		public Thread newThread(Runnable r)
+		{
+			Thread thread = new Thread(r, "ReadAhead-" + threadNumber.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	
+	protected final InputStream inputStream;
+	
+	// all of the following are guarded by this
+	private final LinkedList<Chunk> filledChunks;
+	private final LinkedList<Chunk> freeChunks;
+	private long bufferedBytes;
+	private boolean endOfStream;
+	private IOException exception;
+	private boolean closed;
+	
+	// this is only used by the background reader
+	private int chunkSize;
+	private double bytesPerMilli;
+	
+	public ReadAheadInputStream(InputStream inputStream)
+	{
+		this(inputStream, DEFAULT_RING_SIZE);
+	}
+	
+	public ReadAheadInputStream(InputStream inputStream, int ringSize)
+	{
+		if (inputStream == null)
+			throw new NullPointerException("Input stream must not be null!");
+		if (ringSize < 2)
+			throw new IllegalArgumentException("Ring size must be at least 2!");
+		
+		this.inputStream = inputStream;
+		this.filledChunks = new LinkedList<Chunk>();
+		this.freeChunks = new LinkedList<Chunk>();
+		for (int i = 0; i < ringSize; i++)
+			freeChunks.add(new Chunk());
+		this.bufferedBytes = 0;
+		this.endOfStream = false;
+		this.exception = null;
+		this.closed = false;
+		
+		this.chunkSize = MIN_CHUNK_SIZE;
+		this.bytesPerMilli = 0;
+		
+		readerExecutor.execute(new Runnable()
+		{
+			public void run()
+			{
+				readAhead();
+			}
+		});
+	}
+	
+	/**
+	 * The background reader.
+	 */
+	private void readAhead()
+	{
+		try
+		{
+			while (true)
+			{
+				Chunk chunk;
+				synchronized (this)
+				{
+					while (freeChunks.isEmpty() && !closed)
+						wait();
+					if (closed)
+						return;
+					chunk = freeChunks.removeFirst();
+				}
+				
+				if (chunk.data == null || chunk.data.length != chunkSize)
+					chunk.data = new byte[chunkSize];
+				
+				long startTime = System.currentTimeMillis();
+				int bytesRead;
+				try
+				{
+					bytesRead = inputStream.read(chunk.data, 0, chunk.data.length);
+				}
+				catch (IOException ioe)
+				{
+					synchronized (this)
+					{
+						exception = ioe;
+						notifyAll();
+					}
+					return;
+				}
+				adjustChunkSize(bytesRead, System.currentTimeMillis() - startTime);
+				
+				synchronized (this)
+				{
+					if (bytesRead < 0)
+					{
+						endOfStream = true;
+						notifyAll();
+						return;
+					}
+					
+					chunk.start = 0;
+					chunk.end = bytesRead;
+					filledChunks.addLast(chunk);
+					bufferedBytes += bytesRead;
+					notifyAll();
+				}
+			}
+		}
+		catch (InterruptedException ie)
+		{
+			synchronized (this)
+			{
+				exception = new InterruptedIOException("Reading ahead was interrupted");
+				notifyAll();
+			}
+		}
+		finally
+		{
+			try
+			{
+				inputStream.close();
+			}
+			catch (IOException ioe)
+			{
+				logger.debug("Could not close the read-ahead stream: " + ioe.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Aims for chunks that take about TARGET_CHUNK_MILLIS to fill, based on a
+	 * running average of the throughput. A read that filled its whole chunk
+	 * most likely found more data than that waiting, so its rate is only a
+	 * lower bound; but it's still the best guess we have.
+	 */
+	private void adjustChunkSize(int bytesRead, long millis)
+	{
+		if (bytesRead <= 0)
+			return;
+		
+		double sample = bytesRead / (double) Math.max(1, millis);
+		bytesPerMilli = (bytesPerMilli == 0) ? sample : (0.75 * bytesPerMilli + 0.25 * sample);
+		
+		long target = (long) (bytesPerMilli * TARGET_CHUNK_MILLIS);
+		int newSize = chunkSize;
+		while (newSize < MAX_CHUNK_SIZE && newSize < target)
+			newSize *= 2;
+		while (newSize > MIN_CHUNK_SIZE && newSize / 2 >= target)
+			newSize /= 2;
+		
+		if (newSize != chunkSize && logger.isDebugEnabled())
+			logger.debug("Read-ahead chunk size is now " + newSize + " bytes (" + (long) (bytesPerMilli * 1000) + " bytes per second)");
+		chunkSize = newSize;
+	}
+	
+	/**
+	 * Waits until there is something to consume. Must be called while holding
+	 * the lock.
+	 * 
+	 * @return false if the end of the stream has been reached
+	 */
+	private boolean awaitData() throws IOException
+	{
+		while (filledChunks.isEmpty())
+		{
+			if (closed)
+				throw new IOException("Stream closed");
+			if (exception != null)
+				throw exception;
+			if (endOfStream)
+				return false;
+			
+			try
+			{
+				wait();
+			}
+			catch (InterruptedException ie)
+			{
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Waiting for data was interrupted");
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Takes up to the given number of bytes from the front of the ring,
+	 * copying them if an array is given. Must be called while holding the
+	 * lock, with data available.
+	 */
+	private int consume(byte[] b, int off, long len)
+	{
+		Chunk chunk = filledChunks.getFirst();
+		int count = (int) Math.min(len, chunk.end - chunk.start);
+		if (b != null)
+			System.arraycopy(chunk.data, chunk.start, b, off, count);
+		chunk.start += count;
+		bufferedBytes -= count;
+		
+		// hand the chunk back to the reader once it's used up
+		if (chunk.start >= chunk.end)
+		{
+			filledChunks.removeFirst();
+			freeChunks.addLast(chunk);
+			notifyAll();
+		}
+		return count;
+	}
+	
+	@Override
+	public synchronized int read() throws IOException
+	{
+		if (!awaitData())
+			return -1;
+		
+		Chunk chunk = filledChunks.getFirst();
+		int result = chunk.data[chunk.start] & 0xff;
+		consume(null, 0, 1);
+		return result;
+	}
+	
+	@Override
+	public synchronized int read(byte[] b, int off, int len) throws IOException
+	{
+		if (off < 0 || len < 0 || len > b.length - off)
+			throw new IndexOutOfBoundsException();
+		if (len == 0)
+			return 0;
+		if (!awaitData())
+			return -1;
+		
+		// take whatever is ready, but don't wait for more
+		int total = 0;
+		while (total < len && !filledChunks.isEmpty())
+			total += consume(b, off + total, len - total);
+		return total;
+	}
+	
+	/**
+	 * Skips over data that has already been read ahead, waiting for some if
+	 * there is none yet.
+	 */
+	@Override
+	public synchronized long skip(long n) throws IOException
+	{
+		if (n <= 0 || !awaitData())
+			return 0;
+		
+		long total = 0;
+		while (total < n && !filledChunks.isEmpty())
+			total += consume(null, 0, n - total);
+		return total;
+	}
+	
+	/**
+	 * The number of bytes that have been read ahead and not yet consumed.
+	 */
+	@Override
+	public synchronized int available()
+	{
+		return (int) Math.min(Integer.MAX_VALUE, bufferedBytes);
+	}
+	
+	@Override
+	public synchronized void close()
+	{
+		if (closed)
+			return;
+		closed = true;
+		
+		// the reader closes the underlying stream when it sees this
+		filledChunks.clear();
+		bufferedBytes = 0;
+		notifyAll();
+	}
+	
+	private static class Chunk
+	{
+		public byte[] data = null;
+		public int start = 0;
+		public int end = 0;
+	}
+}
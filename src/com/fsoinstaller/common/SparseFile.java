@@ -0,0 +1,212 @@
+/*
+ * This file is part of the FreeSpace Open Installer
+ * Copyright (C) 2026 The FreeSpace 2 Source Code Project
+ * 
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package com.fsoinstaller.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.fsoinstaller.utils.Logger;
+
+
+/**
+ * A local copy of some ranges of a remote file, for when only parts of it are
+ * needed (such as the entries of an archive that are out of date). Ranges are
+ * looked up by their position in the remote file, but they are packed one
+ * after another in a temporary file, so that it takes up no more space than
+ * the data itself, whatever the file system thinks of sparse files. The
+ * temporary file is deleted when this is closed.
+ * <p>
+ * This class is thread-safe, so that several ranges can be written at once.
+ */
+public class SparseFile
+{
+	private static final Logger logger = Logger.getLogger(SparseFile.class);
+	
+	protected final File path;
+	protected final RandomAccessFile file;
+	protected final FileChannel channel;
+	
+	// all of the following are guarded by this
+	private final TreeMap<Long, Extent> extents;
+	private long fileLength;
+	private long filledBytes;
+	private boolean closed;
+	
+	public SparseFile(File directory) throws IOException
+	{
+		this.path = File.createTempFile("fsoinstaller", ".sparse", directory);
+		this.path.deleteOnExit();
+		this.file = new RandomAccessFile(path, "rw");
+		this.channel = file.getChannel();
+		
+		this.extents = new TreeMap<Long, Extent>();
+		this.fileLength = 0;
+		this.filledBytes = 0;
+		this.closed = false;
+	}
+	
+	/**
+	 * Stores bytes from the given position of the remote file. Bytes that are
+	 * already here are not stored again.
+	 */
+	public void write(long position, byte[] data, int offset, int length) throws IOException
+	{
+		if (position < 0 || offset < 0 || length < 0 || length > data.length - offset)
+			throw new IndexOutOfBoundsException();
+		if (length == 0 || contains(position, position + length))
+			return;
+		
+		// claim the space first, so that the write itself doesn't hold up anyone else
+		long fileOffset;
+		synchronized (this)
+		{
+			if (closed)
+				throw new IOException("Sparse file is closed");
+			fileOffset = fileLength;
+			fileLength += length;
+		}
+		
+		ByteBuffer buffer = ByteBuffer.wrap(data, offset, length);
+		long filePosition = fileOffset;
+		while (buffer.hasRemaining())
+			filePosition += channel.write(buffer, filePosition);
+		
+		// only now can it be read
+		synchronized (this)
+		{
+			extents.put(position, new Extent(position, length, fileOffset));
+			filledBytes += length;
+		}
+	}
+	
+	/**
+	 * Reads bytes from the given position of the remote file, if that
+	 * position is here; the read stops at the end of the range that was
+	 * stored, even if the range after it was stored too.
+	 * 
+	 * @return the number of bytes read, or 0 if the position is not here
+	 */
+	public int read(long position, byte[] data, int offset, int length) throws IOException
+	{
+		if (offset < 0 || length < 0 || length > data.length - offset)
+			throw new IndexOutOfBoundsException();
+		
+		Extent extent;
+		synchronized (this)
+		{
+			if (closed)
+				throw new IOException("Sparse file is closed");
+			extent = findExtent(position);
+		}
+		if (extent == null)
+			return 0;
+		
+		int count = (int) Math.min(length, extent.position + extent.length - position);
+		ByteBuffer buffer = ByteBuffer.wrap(data, offset, count);
+		long filePosition = extent.fileOffset + (position - extent.position);
+		while (buffer.hasRemaining())
+		{
+			int bytesRead = channel.read(buffer, filePosition);
+			if (bytesRead < 0)
+				throw new IOException("Sparse file ended early at byte " + filePosition);
+			filePosition += bytesRead;
+		}
+		return count;
+	}
+	
+	/**
+	 * Whether every byte from start (inclusive) to end (exclusive) is here.
+	 */
+	public synchronized boolean contains(long start, long end)
+	{
+		while (start < end)
+		{
+			Extent extent = findExtent(start);
+			if (extent == null)
+				return false;
+			start = extent.position + extent.length;
+		}
+		return true;
+	}
+	
+	/**
+	 * The number of bytes that have been stored.
+	 */
+	public synchronized long getFilledBytes()
+	{
+		return filledBytes;
+	}
+	
+	/**
+	 * Finds a range that includes the position. Must be called while holding
+	 * the lock.
+	 */
+	private Extent findExtent(long position)
+	{
+		// (ranges are seldom written more than once, so an overlap that hides a range only costs a trip to the network)
+		Map.Entry<Long, Extent> entry = extents.floorEntry(position);
+		if (entry == null)
+			return null;
+		
+		Extent extent = entry.getValue();
+		return (position < extent.position + extent.length) ? extent : null;
+	}
+	
+	public void close()
+	{
+		synchronized (this)
+		{
+			if (closed)
+				return;
+			closed = true;
+			extents.clear();
+		}
+		
+		try
+		{
+			file.close();
+		}
+		catch (IOException ioe)
+		{
+			logger.warn("Could not close the sparse file!", ioe);
+		}
+		if (!path.delete())
+			logger.warn("Could not delete the sparse file '" + path.getAbsolutePath() + "'!");
+	}
+	
+	private static class Extent
+	{
+		public final long position;
+		public final int length;
+		public final long fileOffset;
+		
+		public Extent(long position, int length, long fileOffset)
+		{
+			this.position = position;
+			this.length = length;
+			this.fileOffset = fileOffset;
+		}
+	}
+}
@@ -0,0 +1,453 @@
+/*
+ * This file is part of the FreeSpace Open Installer
+ * Copyright (C) 2026 The FreeSpace 2 Source Code Project
+ * 
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package com.fsoinstaller.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+
+
+/**
+ * Unpacks a tar file as it is written to this stream, so that a compressed
+ * tar file can be extracted straight from its decompressor without the tar
+ * file itself ever being written to disk. Each entry is announced to an
+ * EntryHandler, which decides where (if anywhere) its contents go.
+ * <p>
+ * This understands the old, POSIX (ustar and pax) and GNU formats, as far as
+ * names, sizes and modification times go. Anything other than files and
+ * folders (such as links) is announced, but has no contents to write.
+ */
+public class TarStreamParser extends OutputStream
+{
+	protected static final int BLOCK_SIZE = 512;
+	
+	// long names and pax headers are kept in memory, so there has to be a limit
+	protected static final int MAX_METADATA_SIZE = 1024 * 1024;
+	
+	protected final EntryHandler handler;
+	
+	private final byte[] header;
+	private int headerCount;
+	private long remaining;
+	private int padding;
+	private boolean finished;
+	
+	// the entry whose contents are coming in, and where they are going
+	private Entry currentEntry;
+	private OutputStream currentStream;
+	private char metadataType;
+	private ByteArrayOutputStream metadata;
+	
+	// what a GNU long name or a pax header said about the next entry
+	private String nextName;
+	private long nextSize;
+	private long nextModifiedTime;
+	
+	public TarStreamParser(EntryHandler handler)
+	{
+		if (handler == null)
+			throw new NullPointerException("Entry handler must not be null!");
+		
+		this.handler = handler;
+		this.header = new byte[BLOCK_SIZE];
+		this.headerCount = 0;
+		this.remaining = 0;
+		this.padding = 0;
+		this.finished = false;
+		
+		this.currentEntry = null;
+		this.currentStream = null;
+		this.metadataType = 0;
+		this.metadata = null;
+		
+		this.nextName = null;
+		this.nextSize = -1;
+		this.nextModifiedTime = -1;
+	}
+	
+	@Override
+	public void write(int b) throws IOException
+	{
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+	
+	@Override
+	public void write(byte[] data, int offset, int length) throws IOException
+	{
+		if (offset < 0 || length < 0 || length > data.length - offset)
+			throw new IndexOutOfBoundsException();
+		
+		// anything after the end of the archive is just padding
+		while (length > 0 && !finished)
+		{
+			int count;
+			if (remaining > 0)
+			{
+				count = (int) Math.min(length, remaining);
+				if (currentStream != null)
+					currentStream.write(data, offset, count);
+				else if (metadata != null)
+					metadata.write(data, offset, count);
+				remaining -= count;
+				if (remaining == 0)
+					endEntry();
+			}
+			else if (padding > 0)
+			{
+				count = Math.min(length, padding);
+				padding -= count;
+			}
+			else
+			{
+				count = Math.min(length, BLOCK_SIZE - headerCount);
+				System.arraycopy(data, offset, header, headerCount, count);
+				headerCount += count;
+				if (headerCount == BLOCK_SIZE)
+				{
+					headerCount = 0;
+					readHeader();
+				}
+			}
+			
+			offset += count;
+			length -= count;
+		}
+	}
+	
+	/**
+	 * Makes sure the tar file was complete. If it stopped in the middle of an
+	 * entry, the entry's stream is closed but the entry is not ended.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		boolean complete = (remaining == 0 && headerCount == 0);
+		if (currentStream != null)
+		{
+			OutputStream stream = currentStream;
+			currentStream = null;
+			stream.close();
+		}
+		
+		if (!complete)
+			throw new IOException("The tar file ended in the middle of " + ((currentEntry != null) ? "entry '" + currentEntry.getName() + "'" : "a header"));
+	}
+	
+	private void readHeader() throws IOException
+	{
+		// an empty block marks the end of the archive
+		boolean empty = true;
+		for (byte b: header)
+		{
+			if (b != 0)
+			{
+				empty = false;
+				break;
+			}
+		}
+		if (empty)
+		{
+			finished = true;
+			return;
+		}
+		
+		if (!checksumMatches())
+			throw new IOException("Invalid tar header; the checksum does not match");
+		
+		char type = (char) header[156];
+		long size = (nextSize >= 0) ? nextSize : getNumber(124, 12);
+		if (size < 0)
+			throw new IOException("Invalid tar header; the size is negative");
+		
+		// these describe the entry after them rather than being entries themselves
+		if (type == 'L' || type == 'K' || type == 'x' || type == 'g')
+		{
+			if (size > MAX_METADATA_SIZE)
+				throw new IOException("Invalid tar header; an extended header claims to be " + size + " bytes long");
+			metadataType = type;
+			metadata = new ByteArrayOutputStream();
+			startData(size);
+			return;
+		}
+		
+		String name = nextName;
+		if (name == null)
+		{
+			name = getString(0, 100);
+			
+			// only POSIX headers have a prefix; GNU headers use the same space for other things
+			if (getString(257, 6).equals("ustar") && header[263] == '0' && header[264] == '0')
+			{
+				String prefix = getString(345, 155);
+				if (prefix.length() > 0)
+					name = prefix + "/" + name;
+			}
+		}
+		long modifiedTime = (nextModifiedTime >= 0) ? nextModifiedTime : getNumber(136, 12) * 1000;
+		nextName = null;
+		nextSize = -1;
+		nextModifiedTime = -1;
+		
+		int kind;
+		if (type == '5' || ((type == '0' || type == 0) && name.endsWith("/")))
+			kind = Entry.FOLDER;
+		else if (type == '0' || type == 0 || type == '7')
+			kind = Entry.FILE;
+		else
+			kind = Entry.OTHER;
+		
+		while (name.startsWith("./"))
+			name = name.substring(2);
+		while (name.startsWith("/"))
+			name = name.substring(1);
+		while (name.endsWith("/"))
+			name = name.substring(0, name.length() - 1);
+		
+		currentEntry = new Entry(name, (kind == Entry.FILE) ? size : 0, modifiedTime, kind);
+		OutputStream stream = handler.startEntry(currentEntry);
+		currentStream = (kind == Entry.FILE) ? stream : null;
+		startData(size);
+	}
+	
+	private void startData(long size) throws IOException
+	{
+		remaining = size;
+		padding = (int) ((BLOCK_SIZE - (size % BLOCK_SIZE)) % BLOCK_SIZE);
+		if (remaining == 0)
+			endEntry();
+	}
+	
+	private void endEntry() throws IOException
+	{
+		if (metadata != null)
+		{
+			byte[] bytes = metadata.toByteArray();
+			metadata = null;
+			
+			if (metadataType == 'L')
+				nextName = toString(bytes, 0, bytes.length);
+			else if (metadataType == 'x')
+				readPaxHeader(bytes);
+			return;
+		}
+		
+		if (currentStream != null)
+		{
+			OutputStream stream = currentStream;
+			currentStream = null;
+			stream.close();
+		}
+		
+		Entry entry = currentEntry;
+		currentEntry = null;
+		handler.endEntry(entry);
+	}
+	
+	/**
+	 * A pax header is a list of records such as <tt>30 mtime=1234567890.5\n</tt>,
+	 * where the number is the length of the whole record.
+	 */
+	private void readPaxHeader(byte[] bytes) throws IOException
+	{
+		int pos = 0;
+		while (pos < bytes.length)
+		{
+			int space = pos;
+			while (space < bytes.length && bytes[space] != ' ')
+				space++;
+			
+			int length;
+			try
+			{
+				length = Integer.parseInt(toString(bytes, pos, space - pos).trim());
+			}
+			catch (NumberFormatException nfe)
+			{
+				throw new IOException("Invalid pax header record at byte " + pos);
+			}
+			if (length <= space - pos || pos + length > bytes.length)
+				throw new IOException("Invalid pax header record at byte " + pos);
+			
+			String record = toString(bytes, space + 1, pos + length - space - 1);
+			if (record.endsWith("\n"))
+				record = record.substring(0, record.length() - 1);
+			pos += length;
+			
+			int equals = record.indexOf('=');
+			if (equals < 0)
+				continue;
+			String key = record.substring(0, equals);
+			String value = record.substring(equals + 1);
+			
+			try
+			{
+				if (key.equals("path"))
+					nextName = value;
+				else if (key.equals("size"))
+					nextSize = Long.parseLong(value);
+				else if (key.equals("mtime"))
+					nextModifiedTime = (long) (Double.parseDouble(value) * 1000);
+			}
+			catch (NumberFormatException nfe)
+			{
+				throw new IOException("Invalid pax header value '" + record + "'");
+			}
+		}
+	}
+	
+	/**
+	 * The checksum is the sum of the header's bytes, with the checksum field
+	 * itself counted as spaces. Some old tars summed signed bytes.
+	 */
+	private boolean checksumMatches()
+	{
+		long unsignedSum = 0;
+		long signedSum = 0;
+		for (int i = 0; i < BLOCK_SIZE; i++)
+		{
+			int b = (i >= 148 && i < 156) ? ' ' : header[i];
+			unsignedSum += b & 0xff;
+			signedSum += b;
+		}
+		
+		long checksum = getNumber(148, 8);
+		return checksum == unsignedSum || checksum == signedSum;
+	}
+	
+	/**
+	 * Numbers are in octal, or for big ones, in big-endian binary with the
+	 * top bit of the field set.
+	 */
+	private long getNumber(int offset, int length)
+	{
+		if ((header[offset] & 0x80) != 0)
+		{
+			long value = header[offset] & 0x7f;
+			for (int i = 1; i < length; i++)
+				value = (value << 8) | (header[offset + i] & 0xff);
+			return value;
+		}
+		
+		long value = 0;
+		for (int i = offset; i < offset + length; i++)
+		{
+			byte b = header[i];
+			if (b == 0 || (b == ' ' && value > 0))
+				break;
+			if (b >= '0' && b <= '7')
+				value = (value << 3) + (b - '0');
+		}
+		return value;
+	}
+	
+	private String getString(int offset, int length)
+	{
+		int end = offset;
+		while (end < offset + length && header[end] != 0)
+			end++;
+		return toString(header, offset, end - offset);
+	}
+	
+	private static String toString(byte[] bytes, int offset, int length)
+	{
+		// trailing nulls aren't part of the name
+		while (length > 0 && bytes[offset + length - 1] == 0)
+			length--;
+		
+		try
+		{
+			return new String(bytes, offset, length, "UTF-8");
+		}
+		catch (UnsupportedEncodingException uee)
+		{
+			// can't happen; UTF-8 is always supported
+			throw new IllegalStateException(uee);
+		}
+	}
+	
+	/**
+	 * Told about each entry of the tar file in turn.
+	 */
+	public static interface EntryHandler
+	{
+		/**
+		 * Called when an entry starts.
+		 * 
+		 * @return where to write the contents of a file, or null to skip them;
+		 *         the stream is closed once they have been written
+		 */
+		public OutputStream startEntry(Entry entry) throws IOException;
+		
+		/**
+		 * Called once all of the entry's contents have been written (or
+		 * skipped).
+		 */
+		public void endEntry(Entry entry) throws IOException;
+	}
+	
+	public static class Entry
+	{
+		public static final int FILE = 0;
+		public static final int FOLDER = 1;
+		public static final int OTHER = 2;
+		
+		private final String name;
+		private final long size;
+		private final long modifiedTime;
+		private final int kind;
+		
+		public Entry(String name, long size, long modifiedTime, int kind)
+		{
+			this.name = name;
+			this.size = size;
+			this.modifiedTime = modifiedTime;
+			this.kind = kind;
+		}
+		
+		public String getName()
+		{
+			return name;
+		}
+		
+		public long getSize()
+		{
+			return size;
+		}
+		
+		/**
+		 * In milliseconds, like File.lastModified().
+		 */
+		public long getModifiedTime()
+		{
+			return modifiedTime;
+		}
+		
+		public boolean isFile()
+		{
+			return kind == FILE;
+		}
+		
+		public boolean isFolder()
+		{
+			return kind == FOLDER;
+		}
+	}
+}
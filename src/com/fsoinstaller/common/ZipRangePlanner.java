@@ -0,0 +1,417 @@
+/*
+ * This file is part of the FreeSpace Open Installer
+ * Copyright (C) 2026 The FreeSpace 2 Source Code Project
+ * 
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package com.fsoinstaller.common;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.sf.sevenzipjbinding.IInStream;
+import net.sf.sevenzipjbinding.SevenZipException;
+
+import com.fsoinstaller.utils.Logger;
+
+
+/**
+ * Works out which byte ranges of a zip file are needed to extract some of its
+ * entries, by reading the central directory at the end of the file. Each
+ * entry takes up the space from its local header to the start of the next
+ * entry (or of the central directory), which covers its data and any data
+ * descriptor after it without having to read the local headers themselves.
+ * <p>
+ * Entries are matched by their paths, as 7-Zip reports them. If the
+ * directory can't be read, or a path can't be matched (say, because 7-Zip
+ * decoded a file name differently), there is no plan, and the caller should
+ * read the archive as usual.
+ */
+public class ZipRangePlanner
+{
+	private static final Logger logger = Logger.getLogger(ZipRangePlanner.class);
+	
+	private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+	private static final int ZIP64_END_OF_CENTRAL_DIRECTORY = 0x06064b50;
+	private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR = 0x07064b50;
+	private static final int CENTRAL_DIRECTORY_HEADER = 0x02014b50;
+	private static final int ZIP64_EXTRA_FIELD = 0x0001;
+	
+	private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+	private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_SIZE = 56;
+	private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR_SIZE = 20;
+	private static final int CENTRAL_DIRECTORY_HEADER_SIZE = 46;
+	private static final int MAX_COMMENT_SIZE = 0xffff;
+	
+	// a directory any bigger than this is not worth planning around
+	private static final long MAX_CENTRAL_DIRECTORY_SIZE = 64L * 1024 * 1024;
+	
+	protected final Map<String, List<long[]>> entryRanges;
+	
+	protected ZipRangePlanner(Map<String, List<long[]>> entryRanges)
+	{
+		this.entryRanges = entryRanges;
+	}
+	
+	/**
+	 * Reads the central directory of a zip file. The stream is put back where
+	 * it was afterwards, since 7-Zip may be in the middle of using it.
+	 * 
+	 * @return the planner, or null if the directory couldn't be read
+	 */
+	public static ZipRangePlanner read(IInStream inStream, long totalBytes)
+	{
+		long position;
+		try
+		{
+			position = inStream.seek(0, IInStream.SEEK_CUR);
+		}
+		catch (SevenZipException sze)
+		{
+			logger.debug("Could not find the stream position: " + sze.getMessage());
+			return null;
+		}
+		
+		try
+		{
+			return read0(inStream, totalBytes);
+		}
+		catch (SevenZipException sze)
+		{
+			logger.debug("Could not read the zip central directory: " + sze.getMessage());
+			return null;
+		}
+		finally
+		{
+			try
+			{
+				inStream.seek(position, IInStream.SEEK_SET);
+			}
+			catch (SevenZipException sze)
+			{
+				logger.warn("Could not restore the stream position!", sze);
+			}
+		}
+	}
+	
+	private static ZipRangePlanner read0(IInStream inStream, long totalBytes) throws SevenZipException
+	{
+		// the end record is at the very end, unless there is a comment after it
+		int tailSize = (int) Math.min(totalBytes, END_OF_CENTRAL_DIRECTORY_SIZE + MAX_COMMENT_SIZE);
+		long tailStart = totalBytes - tailSize;
+		byte[] tail = readFully(inStream, tailStart, tailSize);
+		
+		int endPos = -1;
+		for (int i = tailSize - END_OF_CENTRAL_DIRECTORY_SIZE; i >= 0; i--)
+		{
+			if (getInt(tail, i) == END_OF_CENTRAL_DIRECTORY && i + END_OF_CENTRAL_DIRECTORY_SIZE + getShort(tail, i + 20) == tailSize)
+			{
+				endPos = i;
+				break;
+			}
+		}
+		if (endPos < 0)
+		{
+			logger.debug("No end of central directory record was found");
+			return null;
+		}
+		
+		long entryCount = getShort(tail, endPos + 10);
+		long directorySize = getUnsignedInt(tail, endPos + 12);
+		long directoryOffset = getUnsignedInt(tail, endPos + 16);
+		long directoryEnd = tailStart + endPos;
+		
+		// a zip64 file keeps the real figures in another record, just before the locator that is just before this one
+		if (entryCount == 0xffff || directorySize == 0xffffffffL || directoryOffset == 0xffffffffL)
+		{
+			long locatorPos = tailStart + endPos - ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR_SIZE;
+			if (locatorPos < 0)
+				return null;
+			byte[] locator = readFully(inStream, locatorPos, ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR_SIZE);
+			if (getInt(locator, 0) != ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR)
+			{
+				logger.debug("No zip64 end of central directory locator was found");
+				return null;
+			}
+			
+			long zip64EndPos = getLong(locator, 8);
+			if (zip64EndPos < 0 || zip64EndPos + ZIP64_END_OF_CENTRAL_DIRECTORY_SIZE > locatorPos)
+				return null;
+			byte[] zip64End = readFully(inStream, zip64EndPos, ZIP64_END_OF_CENTRAL_DIRECTORY_SIZE);
+			if (getInt(zip64End, 0) != ZIP64_END_OF_CENTRAL_DIRECTORY)
+			{
+				logger.debug("No zip64 end of central directory record was found");
+				return null;
+			}
+			
+			entryCount = getLong(zip64End, 32);
+			directorySize = getLong(zip64End, 40);
+			directoryOffset = getLong(zip64End, 48);
+			directoryEnd = zip64EndPos;
+		}
+		
+		if (directorySize < 0 || directorySize > MAX_CENTRAL_DIRECTORY_SIZE || directorySize > directoryEnd)
+			return null;
+		
+		// anything before the archive proper (such as a self-extractor) shifts all the offsets
+		long directoryStart = directoryEnd - directorySize;
+		long prefix = directoryStart - directoryOffset;
+		if (prefix < 0)
+			return null;
+		
+		byte[] directory = readFully(inStream, directoryStart, (int) directorySize);
+		return parseDirectory(directory, entryCount, directoryStart, prefix);
+	}
+	
+	private static ZipRangePlanner parseDirectory(byte[] directory, long entryCount, long directoryStart, long prefix)
+	{
+		List<String> names = new ArrayList<String>();
+		List<Long> offsets = new ArrayList<Long>();
+		
+		int pos = 0;
+		for (long entry = 0; entry < entryCount; entry++)
+		{
+			if (pos + CENTRAL_DIRECTORY_HEADER_SIZE > directory.length || getInt(directory, pos) != CENTRAL_DIRECTORY_HEADER)
+			{
+				logger.debug("The central directory is damaged at entry " + entry);
+				return null;
+			}
+			
+			int flags = getShort(directory, pos + 8);
+			long compressedSize = getUnsignedInt(directory, pos + 20);
+			long uncompressedSize = getUnsignedInt(directory, pos + 24);
+			int nameLength = getShort(directory, pos + 28);
+			int extraLength = getShort(directory, pos + 30);
+			int commentLength = getShort(directory, pos + 32);
+			long localOffset = getUnsignedInt(directory, pos + 42);
+			
+			int namePos = pos + CENTRAL_DIRECTORY_HEADER_SIZE;
+			int extraPos = namePos + nameLength;
+			int nextPos = extraPos + extraLength + commentLength;
+			if (nextPos > directory.length)
+				return null;
+			
+			// big entries keep their real figures in an extra field, but only the ones that didn't fit
+			for (int field = extraPos; field + 4 <= extraPos + extraLength;)
+			{
+				int id = getShort(directory, field);
+				int size = getShort(directory, field + 2);
+				if (id == ZIP64_EXTRA_FIELD)
+				{
+					int value = field + 4;
+					if (uncompressedSize == 0xffffffffL && value + 8 <= field + 4 + size)
+					{
+						uncompressedSize = getLong(directory, value);
+						value += 8;
+					}
+					if (compressedSize == 0xffffffffL && value + 8 <= field + 4 + size)
+					{
+						compressedSize = getLong(directory, value);
+						value += 8;
+					}
+					if (localOffset == 0xffffffffL && value + 8 <= field + 4 + size)
+						localOffset = getLong(directory, value);
+					break;
+				}
+				field += 4 + size;
+			}
+			
+			String name = decodeName(directory, namePos, nameLength, (flags & 0x0800) != 0);
+			names.add(normalize(name));
+			offsets.add(prefix + localOffset);
+			
+			pos = nextPos;
+		}
+		
+		// each entry runs until the next one in the file starts
+		List<Integer> order = new ArrayList<Integer>();
+		for (int i = 0; i < names.size(); i++)
+			order.add(i);
+		final List<Long> _offsets = offsets;
+		Collections.sort(order, new Comparator<Integer>()
+		{
+			public int compare(Integer o1, Integer o2)
+			{
+				return _offsets.get(o1).compareTo(_offsets.get(o2));
+			}
+		});
+		
+		Map<String, List<long[]>> entryRanges = new HashMap<String, List<long[]>>();
+		for (int i = 0; i < order.size(); i++)
+		{
+			int index = order.get(i);
+			long start = offsets.get(index);
+			long end = directoryStart;
+			for (int j = i + 1; j < order.size(); j++)
+			{
+				if (offsets.get(order.get(j)) > start)
+				{
+					end = offsets.get(order.get(j));
+					break;
+				}
+			}
+			if (start >= end)
+			{
+				logger.debug("Entry '" + names.get(index) + "' is not where it should be");
+				return null;
+			}
+			
+			List<long[]> ranges = entryRanges.get(names.get(index));
+			if (ranges == null)
+			{
+				ranges = new ArrayList<long[]>();
+				entryRanges.put(names.get(index), ranges);
+			}
+			ranges.add(new long[] { start, end });
+		}
+		
+		return new ZipRangePlanner(entryRanges);
+	}
+	
+	/**
+	 * Works out the ranges needed to extract the given entries, sorted and
+	 * merged wherever the gap between two of them is no bigger than
+	 * <tt>maxGap</tt> (since it's cheaper to fetch a few extra bytes than to
+	 * ask for another range).
+	 * 
+	 * @return pairs of start (inclusive) and end (exclusive) positions, or
+	 *         null if one of the entries isn't in the directory
+	 */
+	public List<long[]> plan(Collection<String> entryNames, long maxGap)
+	{
+		List<long[]> ranges = new ArrayList<long[]>();
+		for (String entryName: entryNames)
+		{
+			List<long[]> entry = entryRanges.get(normalize(entryName));
+			if (entry == null)
+			{
+				logger.debug("Entry '" + entryName + "' is not in the central directory");
+				return null;
+			}
+			for (long[] range: entry)
+				ranges.add(range.clone());
+		}
+		
+		Collections.sort(ranges, new Comparator<long[]>()
+		{
+			public int compare(long[] o1, long[] o2)
+			{
+				return (o1[0] < o2[0]) ? -1 : ((o1[0] == o2[0]) ? 0 : 1);
+			}
+		});
+		
+		List<long[]> merged = new ArrayList<long[]>();
+		long[] current = null;
+		for (long[] range: ranges)
+		{
+			if (current != null && range[0] - current[1] <= maxGap)
+				current[1] = Math.max(current[1], range[1]);
+			else
+			{
+				current = range;
+				merged.add(current);
+			}
+		}
+		return merged;
+	}
+	
+	/**
+	 * The total size of the given ranges.
+	 */
+	public static long countBytes(List<long[]> ranges)
+	{
+		long total = 0;
+		for (long[] range: ranges)
+			total += range[1] - range[0];
+		return total;
+	}
+	
+	/**
+	 * 7-Zip may use either kind of slash, and drops the one at the end of a
+	 * folder.
+	 */
+	private static String normalize(String name)
+	{
+		name = name.replace('\\', '/');
+		while (name.endsWith("/"))
+			name = name.substring(0, name.length() - 1);
+		return name;
+	}
+	
+	/**
+	 * Names are in UTF-8 if the entry says so, or in the old DOS code page
+	 * otherwise.
+	 */
+	private static String decodeName(byte[] data, int offset, int length, boolean utf8)
+	{
+		String charsetName = utf8 ? "UTF-8" : (Charset.isSupported("IBM437") ? "IBM437" : "ISO-8859-1");
+		try
+		{
+			return new String(data, offset, length, charsetName);
+		}
+		catch (UnsupportedEncodingException uee)
+		{
+			// can't happen; UTF-8 and ISO-8859-1 are always supported
+			throw new IllegalStateException(uee);
+		}
+	}
+	
+	private static byte[] readFully(IInStream inStream, long position, int length) throws SevenZipException
+	{
+		byte[] data = new byte[length];
+		inStream.seek(position, IInStream.SEEK_SET);
+		
+		int total = 0;
+		while (total < length)
+		{
+			byte[] chunk = (total == 0) ? data : new byte[length - total];
+			int bytesRead = inStream.read(chunk);
+			if (bytesRead <= 0)
+				throw new SevenZipException("The zip file ended early at byte " + (position + total));
+			if (chunk != data)
+				System.arraycopy(chunk, 0, data, total, bytesRead);
+			total += bytesRead;
+		}
+		return data;
+	}
+	
+	private static int getShort(byte[] data, int offset)
+	{
+		return (data[offset] & 0xff) | ((data[offset + 1] & 0xff) << 8);
+	}
+	
+	private static int getInt(byte[] data, int offset)
+	{
+		return getShort(data, offset) | (getShort(data, offset + 2) << 16);
+	}
+	
+	private static long getUnsignedInt(byte[] data, int offset)
+	{
+		return getInt(data, offset) & 0xffffffffL;
+	}
+	
+	private static long getLong(byte[] data, int offset)
+	{
+		return getUnsignedInt(data, offset) | (getUnsignedInt(data, offset + 4) << 32);
+	}
+}
@@ -0,0 +1,191 @@
+/*
+ * This file is part of the FreeSpace Open Installer
+ * Copyright (C) 2026 The FreeSpace 2 Source Code Project
+ * 
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package com.fsoinstaller.internet;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Random;
+
+import com.fsoinstaller.utils.IOUtils;
+import com.fsoinstaller.utils.Logger;
+
+
+/**
+ * Just a utility class to check that a file downloaded through a
+ * <tt>.part</tt> file is hashed as it is written when it is written in one
+ * go, and that a part file that was only partly written by this stream is
+ * left to be hashed afterward.
+ */
+public class CheckPartHashing
+{
+	private static Logger logger = Logger.getLogger(CheckPartHashing.class);
+	
+	private static final String FILE_NAME = "payload.bin";
+	private static final String ALGORITHM = "SHA-256";
+	private static final int FILE_SIZE = 3 * 1024 * 1024 + 17;
+	
+	public static void main(String[] args) throws IOException, InterruptedException, NoSuchAlgorithmException
+	{
+		File directory = File.createTempFile("fsoinstaller", ".parthash");
+		if (!directory.delete() || !directory.mkdir())
+			throw new IOException("Could not create the scratch directory '" + directory.getAbsolutePath() + "'");
+		
+		int problems = 0;
+		try
+		{
+			// something to download
+			byte[] data = new byte[FILE_SIZE];
+			new Random(5000).nextBytes(data);
+			File sourceFile = new File(directory, "source.bin");
+			OutputStream os = new FileOutputStream(sourceFile);
+			try
+			{
+				os.write(data);
+			}
+			finally
+			{
+				os.close();
+			}
+			URL sourceURL = sourceFile.toURI().toURL();
+			String expectedHash = IOUtils.toHexString(MessageDigest.getInstance(ALGORITHM).digest(data));
+			
+			File installDirectory = new File(directory, "install");
+			if (!installDirectory.mkdir())
+				throw new IOException("Could not create '" + installDirectory.getAbsolutePath() + "'");
+			File destinationFile = new File(installDirectory, FILE_NAME);
+			
+			problems += checkFreshDownload(sourceURL, installDirectory, destinationFile, data.length, expectedHash);
+			problems += checkResumedDownload(sourceURL, installDirectory, destinationFile, data, expectedHash);
+			problems += checkUnfinishedDownload(sourceURL, installDirectory, destinationFile, data, expectedHash);
+		}
+		finally
+		{
+			IOUtils.deleteDirectoryTree(directory);
+		}
+		
+		if (problems == 0)
+			logger.info("Part files are hashed as they are written exactly when they should be");
+		else
+			logger.error("Part files were hashed wrongly " + problems + " time(s)!");
+		
+		// (the stall watchdog would otherwise keep us running)
+		System.exit(problems == 0 ? 0 : 1);
+	}
+	
+	/**
+	 * A part file that is written from its first byte to its last is hashed on
+	 * the way, and the hash is filed under the file it becomes.
+	 */
+	private static int checkFreshDownload(URL sourceURL, File installDirectory, File destinationFile, long length, String expectedHash) throws IOException, InterruptedException
+	{
+		Downloader downloader = newDownloader(sourceURL, installDirectory, expectedHash);
+		PartialDownload partial = PartialDownload.create(destinationFile, sourceURL, length, sourceURL.openConnection().getLastModified(), null, new long[] { 0 }, new long[] { length - 1 });
+		
+		downloader.downloadResumable(sourceURL, partial, sourceURL.openConnection());
+		partial.complete();
+		
+		Map<String, String> hashes = downloader.writtenHashes.get(destinationFile);
+		String hash = (hashes == null) ? null : hashes.get(ALGORITHM);
+		if (hash == null)
+		{
+			logger.error("The part file was written in one go, but it was not hashed as it was written!");
+			return 1;
+		}
+		else if (!hash.equalsIgnoreCase(expectedHash))
+		{
+			logger.error("The part file was hashed as " + hash + " instead of " + expectedHash + "!");
+			return 1;
+		}
+		
+		logger.info("A part file written in one go was hashed as it was written");
+		return 0;
+	}
+	
+	/**
+	 * A part file that was partly written by an earlier attempt isn't hashed by
+	 * the stream that finishes it, since that stream only sees the end of it.
+	 */
+	private static int checkResumedDownload(URL sourceURL, File installDirectory, File destinationFile, byte[] data, String expectedHash) throws IOException
+	{
+		Downloader downloader = newDownloader(sourceURL, installDirectory, expectedHash);
+		PartialDownload partial = PartialDownload.create(destinationFile, sourceURL, data.length, 1, null, new long[] { 0 }, new long[] { data.length - 1 });
+		
+		int half = data.length / 2;
+		writeAndClose(partial.openSegmentOutputStream(0), data, 0, half);
+		writeAndClose(downloader.openPartOutputStream(partial), data, half, data.length - half);
+		partial.complete();
+		
+		if (downloader.writtenHashes.containsKey(destinationFile))
+		{
+			logger.error("A resumed part file was hashed as it was written, although the stream only saw part of it!");
+			return 1;
+		}
+		
+		logger.info("A resumed part file was left to be hashed after it was moved into place");
+		return 0;
+	}
+	
+	/**
+	 * A part file whose stream is closed before the end isn't hashed, since the
+	 * rest of it will come from somewhere else.
+	 */
+	private static int checkUnfinishedDownload(URL sourceURL, File installDirectory, File destinationFile, byte[] data, String expectedHash) throws IOException
+	{
+		Downloader downloader = newDownloader(sourceURL, installDirectory, expectedHash);
+		PartialDownload partial = PartialDownload.create(destinationFile, sourceURL, data.length, 1, null, new long[] { 0 }, new long[] { data.length - 1 });
+		
+		writeAndClose(downloader.openPartOutputStream(partial), data, 0, data.length / 2);
+		PartialDownload.discard(destinationFile);
+		
+		if (downloader.writtenHashes.containsKey(destinationFile))
+		{
+			logger.error("An unfinished part file was hashed as though it were complete!");
+			return 1;
+		}
+		
+		logger.info("An unfinished part file was not hashed");
+		return 0;
+	}
+	
+	private static Downloader newDownloader(URL sourceURL, File installDirectory, String expectedHash)
+	{
+		Downloader downloader = new Downloader(new Connector(), sourceURL, installDirectory);
+		downloader.addFileHash(FILE_NAME, ALGORITHM, expectedHash);
+		return downloader;
+	}
+	
+	private static void writeAndClose(OutputStream outputStream, byte[] data, int offset, int length) throws IOException
+	{
+		try
+		{
+			outputStream.write(data, offset, length);
+		}
+		finally
+		{
+			outputStream.close();
+		}
+	}
+}
@@ -31,8 +31,10 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.fsoinstaller.utils.Logger;
+import com.fsoinstaller.utils.PropertiesUtils;
 
 
 /**
@@ -42,9 +44,10 @@ import com.fsoinstaller.utils.Logger;
  * originally created by Turey.
  * <p>
  * Connector is an immutable class (except for static management of
- * authentication) and therefore, without authentication, it is intrinsically
- * thread-safe. Furthermore, the authentication code should also be thread-safe
- * even for different Connector instances in multiple threads.
+ * authentication and its cache of remote file metadata, which is a concurrent
+ * map) and therefore, without authentication, it is intrinsically thread-safe.
+ * Furthermore, the authentication code should also be thread-safe even for
+ * different Connector instances in multiple threads.
  * 
  * @author Turey
  * @author Goober5000
@@ -118,9 +121,19 @@ public class Connector
 		connectionTimeout = num;
 	}
 	
+	/**
+	 * The timeout, in milliseconds, for a connection to deliver more data
+	 * once it has been established. A value of 0 waits forever. Defaults to
+	 * 60000 and can be configured on the command line.
+	 */
+	private static final int readTimeout = PropertiesUtils.getIntSystemProperty("readTimeout", 60000, 0);
+	
 	protected final Proxy proxy;
 	protected final boolean onWindows;
 	
+	// what we have learned about remote files during this session, keyed by URL
+	protected final ConcurrentHashMap<String, RemoteMetadata> metadataCache;
+	
 	public static Proxy createProxy(String proxyHost, int proxyPort) throws InvalidProxyException
 	{
 		try
@@ -137,6 +150,7 @@ public class Connector
 	{
 		this.proxy = proxy;
 		this.onWindows = isWindowsPlatform();
+		this.metadataCache = new ConcurrentHashMap<String, RemoteMetadata>();
 	}
 	
 	public Connector()
@@ -232,6 +246,7 @@ public class Connector
 		
 		// set the timeout (before we actually use it to connect)
 		conn.setConnectTimeout(connectionTimeout);
+		conn.setReadTimeout(readTimeout);
 		
 		// send a fake user agent to prevent 403 Forbidden errors on certain servers
 		conn.setRequestProperty("User-Agent", "Mozilla/5.0 (X11; Linux x86_64; rv:34.0) Gecko/20100101 Firefox/28.0");
@@ -241,13 +256,69 @@ public class Connector
 	}
 
 	/**
-	 * Gets the content length of the url and optionally uses HTTP HEAD to avoid downloading the entire resource.
+	 * Gets the length, modification time, ETag and so forth of the file at the
+	 * URL, using a single HEAD request (or a GET, if the host doesn't support
+	 * HEAD). The answer is remembered for the lifetime of this Connector, so
+	 * asking again about the same URL costs nothing.
+	 */
+	public RemoteMetadata getMetadata(URL url) throws IOException
+	{
+		RemoteMetadata metadata = metadataCache.get(url.toString());
+		if (metadata != null)
+			return metadata;
+		
+		// First try using HEAD and if that's not supported use GET
+		try
+		{
+			metadata = getMetadataImpl(url, true);
+		}
+		catch (IOException e)
+		{
+			logger.info("Host failed to retrieve metadata with HEAD, retrying with GET...", e);
+			metadata = getMetadataImpl(url, false);
+		}
+		
+		metadataCache.put(url.toString(), metadata);
+		return metadata;
+	}
+	
+	/**
+	 * Gets the metadata of the file at the URL from the response headers of a
+	 * connection that has already been opened (e.g. the one the file is being
+	 * downloaded on), and remembers it in place of any earlier answer.
+	 */
+	public RemoteMetadata getMetadata(URL url, URLConnection conn) throws IOException
+	{
+		RemoteMetadata metadata = RemoteMetadata.fromConnection(url, conn);
+		metadataCache.put(url.toString(), metadata);
+		return metadata;
+	}
+	
+	/**
+	 * Returns the metadata for the URL only if we already have it.
+	 */
+	public RemoteMetadata getCachedMetadata(URL url)
+	{
+		return metadataCache.get(url.toString());
+	}
+	
+	/**
+	 * Forgets what we know about the URL, e.g. because the file turned out to
+	 * have changed on the server.
+	 */
+	public void forgetMetadata(URL url)
+	{
+		metadataCache.remove(url.toString());
+	}
+	
+	/**
+	 * Gets the metadata of the url and optionally uses HTTP HEAD to avoid downloading the entire resource.
 	 * @param url The URL to check
 	 * @param useHead If true then HTTP HEAD will be used. This may cause errors on some hosts so there should be a
 	 *                fallback with this set to false
-	 * @return The content length.
+	 * @return The metadata.
 	 */
-	private int getContentLengthImpl(URL url, boolean useHead) throws IOException
+	private RemoteMetadata getMetadataImpl(URL url, boolean useHead) throws IOException
 	{
 		URLConnection conn = null;
 		try
@@ -257,20 +328,8 @@ public class Connector
 			{
 				((HttpURLConnection) conn).setRequestMethod("HEAD");
 			}
-			int length = conn.getContentLength();
-			int response = -1;
-
-			// check response
-			if (conn instanceof HttpURLConnection)
-			{
-				response = ((HttpURLConnection) conn).getResponseCode();
-				if (response / 100 == 4 || response / 100 == 5)
-				{
-					throw new IOException("Server returned HTTP response code " + response + " for URL " + url);
-				}
-			}
-
-			return length;
+			
+			return RemoteMetadata.fromConnection(url, conn);
 		}
 		finally
 		{
@@ -282,50 +341,14 @@ public class Connector
 		}
 	}
 	
-	public int getContentLength(URL url) throws IOException
+	public long getContentLength(URL url) throws IOException
 	{
-		// First try using HEAD and if that's not supported use GET
-		try
-		{
-			return getContentLengthImpl(url, true);
-		}
-		catch(IOException e)
-		{
-			logger.info("Host failed to retrieve content length with HEAD, retrying with GET...", e);
-			return getContentLengthImpl(url, false);
-		}
+		return getMetadata(url).getContentLength();
 	}
 	
-	private long getLastModifiedImpl(URL url, boolean useHead) throws IOException
-	{
-		URLConnection conn = openConnection(url);
-		if (useHead && conn instanceof HttpURLConnection)
-			((HttpURLConnection) conn).setRequestMethod("HEAD");
-		long lastModified = conn.getLastModified();
-		
-		// check response
-		if (conn instanceof HttpURLConnection)
-		{
-			int response = ((HttpURLConnection) conn).getResponseCode();
-			if (response / 100 == 4 || response / 100 == 5)
-				throw new IOException("Server returned HTTP response code " + response + " for URL " + url);
-		}
-		
-		return lastModified;
-	}
-
 	public long getLastModified(URL url) throws IOException
 	{
-		// First try using HEAD and if that's not supported use GET
-		try
-		{
-			return getLastModifiedImpl(url, true);
-		}
-		catch(IOException e)
-		{
-			logger.info("Host failed to retrieve last modified with HEAD, retrying with GET...", e);
-			return getLastModifiedImpl(url, false);
-		}
+		return getMetadata(url).getLastModified();
 	}
 	
 	/**
@@ -0,0 +1,324 @@
+/*
+ * This file is part of the FreeSpace Open Installer
+ * Copyright (C) 2026 The FreeSpace 2 Source Code Project
+ * 
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package com.fsoinstaller.internet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.zip.CRC32;
+
+import com.fsoinstaller.utils.Logger;
+
+
+/**
+ * The CRC32 checksums of the files in one installation directory, so that a
+ * file can be compared with an archive entry (whose CRC the archive already
+ * stores) by content rather than by length alone. A checksum is computed the
+ * first time it is asked for, or recorded when a file is extracted, and is
+ * then trusted for as long as the file keeps the same size and modification
+ * time; a file that has been touched since is read again.
+ * <p>
+ * Each directory's index is kept in its own file in the directory named by
+ * the <tt>crcIndexDir</tt> option, rather than in the installation directory
+ * itself.
+ * <p>
+ * This class is thread-safe.
+ */
+public class CrcIndex
+{
+	private static final Logger logger = Logger.getLogger(CrcIndex.class);
+	
+	protected static final File indexDirectory = new File(System.getProperty("crcIndexDir", System.getProperty("user.home") + File.separator + ".fsoinstaller" + File.separator + "crc"));
+	
+	protected static final String DIRECTORY_KEY = "directory";
+	protected static final String FILE_PREFIX = "file:";
+	protected static final String SEPARATOR = "\t";
+	
+	private static final int BUFFER_SIZE = 65536;
+	
+	// guarded by itself
+	private static final Map<String, CrcIndex> indexes = new HashMap<String, CrcIndex>();
+	
+	/**
+	 * Gets the index for an installation directory.
+	 */
+	public static CrcIndex getInstance(File directory)
+	{
+		String path = directory.getAbsolutePath();
+		synchronized (indexes)
+		{
+			CrcIndex index = indexes.get(path);
+			if (index == null)
+			{
+				index = new CrcIndex(directory, new File(indexDirectory, Integer.toHexString(path.hashCode()) + ".properties"));
+				indexes.put(path, index);
+			}
+			return index;
+		}
+	}
+	
+	/**
+	 * Writes out every index that has changed since it was last saved.
+	 */
+	public static void saveAll()
+	{
+		synchronized (indexes)
+		{
+			for (CrcIndex index: indexes.values())
+				index.save();
+		}
+	}
+	
+	protected final File directory;
+	protected final File indexFile;
+	
+	// all of the following are guarded by this, and filled in the first time the index is used
+	private Map<String, Entry> entries;
+	private boolean dirty;
+	
+	public CrcIndex(File directory, File indexFile)
+	{
+		this.directory = directory.getAbsoluteFile();
+		this.indexFile = indexFile;
+		
+		this.entries = null;
+		this.dirty = false;
+	}
+	
+	/**
+	 * Gets the CRC32 of a file, reading the file only if we don't already
+	 * know it for the file's current size and modification time.
+	 * 
+	 * @return the CRC, or -1 if the file doesn't exist or couldn't be read
+	 */
+	public long getCrc(File file)
+	{
+		if (!file.isFile())
+			return -1;
+		
+		String key = getKey(file);
+		long length = file.length();
+		long lastModified = file.lastModified();
+		synchronized (this)
+		{
+			load();
+			
+			Entry entry = entries.get(key);
+			if (entry != null && entry.length == length && entry.lastModified == lastModified)
+				return entry.crc;
+		}
+		
+		// read the file without holding the lock
+		long crc;
+		try
+		{
+			crc = computeCrc(file);
+		}
+		catch (IOException ioe)
+		{
+			logger.warn("Could not compute the CRC of '" + file.getAbsolutePath() + "'", ioe);
+			return -1;
+		}
+		
+		// only keep it if the file didn't change while we were reading it
+		if (file.length() == length && file.lastModified() == lastModified)
+			put(key, new Entry(length, lastModified, crc));
+		return crc;
+	}
+	
+	/**
+	 * Records the CRC32 of a file whose contents are known to have it, such as
+	 * a file that was just extracted and checked by the extractor.
+	 */
+	public void record(File file, long crc)
+	{
+		if (!file.isFile())
+			return;
+		
+		put(getKey(file), new Entry(file.length(), file.lastModified(), crc));
+	}
+	
+	/**
+	 * Writes the index out if anything has been recorded since it was last
+	 * saved.
+	 */
+	public synchronized void save()
+	{
+		if (!dirty)
+			return;
+		
+		Properties properties = new Properties();
+		properties.setProperty(DIRECTORY_KEY, directory.getPath());
+		for (Map.Entry<String, Entry> mapEntry: entries.entrySet())
+		{
+			Entry entry = mapEntry.getValue();
+			properties.setProperty(FILE_PREFIX + mapEntry.getKey(), Long.toString(entry.length) + SEPARATOR + Long.toString(entry.lastModified) + SEPARATOR + Long.toHexString(entry.crc));
+		}
+		
+		// write to a temporary file first, so that a crash can't leave us with half an index
+		File parent = indexFile.getParentFile();
+		File tempFile = new File(parent, indexFile.getName() + ".tmp");
+		try
+		{
+			if (parent != null && !parent.exists() && !parent.mkdirs())
+				throw new IOException("Could not create the directory '" + parent.getAbsolutePath() + "'");
+			
+			OutputStream os = new FileOutputStream(tempFile);
+			try
+			{
+				properties.store(os, "FSO Installer CRC index");
+			}
+			finally
+			{
+				os.close();
+			}
+			
+			if (indexFile.exists() && !indexFile.delete())
+				throw new IOException("Could not replace '" + indexFile.getAbsolutePath() + "'");
+			if (!tempFile.renameTo(indexFile))
+				throw new IOException("Could not rename '" + tempFile.getName() + "' to '" + indexFile.getName() + "'");
+			
+			dirty = false;
+		}
+		catch (IOException ioe)
+		{
+			logger.warn("Could not save the CRC index for '" + directory.getPath() + "'", ioe);
+			tempFile.delete();
+		}
+	}
+	
+	private synchronized void put(String key, Entry entry)
+	{
+		load();
+		
+		// don't rewrite the index just to say the same thing again
+		Entry previous = entries.put(key, entry);
+		if (previous == null || previous.length != entry.length || previous.lastModified != entry.lastModified || previous.crc != entry.crc)
+			dirty = true;
+	}
+	
+	/**
+	 * Files inside the directory are keyed by their path relative to it.
+	 */
+	private String getKey(File file)
+	{
+		String path = file.getAbsolutePath();
+		String prefix = directory.getPath() + File.separator;
+		if (path.startsWith(prefix))
+			path = path.substring(prefix.length());
+		return path.replace(File.separatorChar, '/');
+	}
+	
+	/**
+	 * Reads the index. Must be called while holding the lock.
+	 */
+	private void load()
+	{
+		if (entries != null)
+			return;
+		
+		entries = new HashMap<String, Entry>();
+		if (!indexFile.exists())
+			return;
+		
+		Properties properties = new Properties();
+		try
+		{
+			InputStream is = new FileInputStream(indexFile);
+			try
+			{
+				properties.load(is);
+			}
+			finally
+			{
+				is.close();
+			}
+		}
+		catch (IOException ioe)
+		{
+			logger.warn("Could not read the CRC index for '" + directory.getPath() + "'", ioe);
+			return;
+		}
+		
+		// the file name is only a hash of the directory, so make sure it's the right one
+		if (!directory.getPath().equals(properties.getProperty(DIRECTORY_KEY)))
+		{
+			logger.warn("Ignoring the CRC index in '" + indexFile.getName() + "' since it belongs to another directory");
+			return;
+		}
+		
+		for (String key: properties.stringPropertyNames())
+		{
+			if (!key.startsWith(FILE_PREFIX))
+				continue;
+			
+			String[] fields = properties.getProperty(key).split(SEPARATOR, -1);
+			try
+			{
+				entries.put(key.substring(FILE_PREFIX.length()), new Entry(Long.parseLong(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2], 16)));
+			}
+			catch (RuntimeException re)
+			{
+				// covers NumberFormatException and ArrayIndexOutOfBoundsException on malformed values
+				logger.warn("Ignoring invalid CRC index entry '" + key + "'");
+			}
+		}
+		
+		logger.debug("The CRC index for '" + directory.getPath() + "' lists " + entries.size() + " files");
+	}
+	
+	public static long computeCrc(File file) throws IOException
+	{
+		CRC32 crc = new CRC32();
+		byte[] buffer = new byte[BUFFER_SIZE];
+		InputStream is = new FileInputStream(file);
+		try
+		{
+			int count;
+			while ((count = is.read(buffer)) >= 0)
+				crc.update(buffer, 0, count);
+		}
+		finally
+		{
+			is.close();
+		}
+		return crc.getValue();
+	}
+	
+	private static class Entry
+	{
+		public final long length;
+		public final long lastModified;
+		public final long crc;
+		
+		public Entry(long length, long lastModified, long crc)
+		{
+			this.length = length;
+			this.lastModified = lastModified;
+			this.crc = crc;
+		}
+	}
+}
@@ -0,0 +1,599 @@
+/*
+ * This file is part of the FreeSpace Open Installer
+ * Copyright (C) 2026 The FreeSpace 2 Source Code Project
+ * 
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package com.fsoinstaller.internet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import com.fsoinstaller.utils.DirectoryIndex;
+import com.fsoinstaller.utils.HashService;
+import com.fsoinstaller.utils.IOUtils;
+import com.fsoinstaller.utils.Logger;
+import com.fsoinstaller.utils.PropertiesUtils;
+
+
+/**
+ * An on-disk cache of downloaded files that is shared by every run of the
+ * installer and every installation directory. A file is filed under its URL
+ * together with the ETag, modification time and length the server reported
+ * for it, so a file that changes on the server is never served stale. Once a
+ * file's content has been checked against a hash from the mod's HASH list, it
+ * can also be found by that hash, which lets the cache answer regardless of
+ * which mirror the file came from.
+ * <p>
+ * Each cached file keeps its original name (which matters when extracting
+ * some archives) inside a directory <tt>&lt;id&gt;</tt>, next to an
+ * <tt>&lt;id&gt;.properties</tt> file describing it. The modification time
+ * of the cached file records when the entry was last used, and the least
+ * recently used entries are removed whenever the cache grows beyond its
+ * budget.
+ * <p>
+ * The cache directory is set with the <tt>downloadCacheDir</tt> option and
+ * its budget, in megabytes, with <tt>downloadCacheSize</tt>. A budget of 0
+ * turns the cache off.
+ * <p>
+ * This class is thread-safe.
+ */
+public class DownloadCache
+{
+	private static final Logger logger = Logger.getLogger(DownloadCache.class);
+	
+	/**
+	 * Use the Initialization On Demand Holder idiom for thread-safe
+	 * non-synchronized singletons.
+	 */
+	private static final class InstanceHolder
+	{
+		private static final DownloadCache INSTANCE = new DownloadCache(new File(System.getProperty("downloadCacheDir", System.getProperty("user.home") + File.separator + ".fsoinstaller" + File.separator + "cache")), PropertiesUtils.getLongSystemProperty("downloadCacheSize", 2048, 0) * 1024 * 1024);
+	}
+	
+	public static DownloadCache getInstance()
+	{
+		return InstanceHolder.INSTANCE;
+	}
+	
+	protected static final String INFO_EXTENSION = ".properties";
+	protected static final String TEMP_EXTENSION = ".tmp";
+	protected static final String STAGING_DIR = "staging";
+	
+	protected final File cacheDir;
+	protected final long maxBytes;
+	
+	// all of the following are guarded by this, and filled in the first time the cache is used
+	private Map<String, Entry> entries;
+	private Map<String, String> hashIndex;
+	private long totalBytes;
+	
+	public DownloadCache(File cacheDir, long maxBytes)
+	{
+		this.cacheDir = cacheDir;
+		this.maxBytes = maxBytes;
+		
+		this.entries = null;
+		this.hashIndex = null;
+		this.totalBytes = 0;
+		
+		if (maxBytes > 0)
+			logger.info("Caching downloads in " + cacheDir.getAbsolutePath());
+	}
+	
+	public boolean isEnabled()
+	{
+		return maxBytes > 0;
+	}
+	
+	/**
+	 * Checks whether a file of this size could be cached at all.
+	 */
+	public boolean fits(long length)
+	{
+		return isEnabled() && length > 0 && length <= maxBytes;
+	}
+	
+	/**
+	 * Finds the cached copy of the file at this URL, provided the server
+	 * still describes it the same way. The entry is held until release() is
+	 * called, so that it can't be evicted while it is being read.
+	 * 
+	 * @return the cached file, or null if there is none
+	 */
+	public synchronized File lookup(URL url, RemoteMetadata metadata)
+	{
+		if (!isEnabled() || !isCacheable(metadata))
+			return null;
+		loadIndex();
+		
+		Entry entry = entries.get(getId(url, metadata));
+		if (entry == null)
+			return null;
+		return use(entry);
+	}
+	
+	/**
+	 * Finds a cached file whose content is known to have the given hash. The
+	 * entry is held until release() is called.
+	 * 
+	 * @return the cached file, or null if there is none
+	 */
+	public synchronized File lookupByHash(String algorithm, String hash)
+	{
+		if (!isEnabled())
+			return null;
+		loadIndex();
+		
+		String id = hashIndex.get(getHashKey(algorithm, hash));
+		if (id == null)
+			return null;
+		Entry entry = entries.get(id);
+		if (entry == null)
+			return null;
+		return use(entry);
+	}
+	
+	/**
+	 * Lets a cached file returned by lookup() or store() be evicted again.
+	 */
+	public synchronized void release(File cachedFile)
+	{
+		if (entries == null)
+			return;
+		
+		Entry entry = entries.get(getIdOfFile(cachedFile));
+		if (entry != null && entry.inUse > 0)
+			entry.inUse--;
+	}
+	
+	/**
+	 * Gets a place to download a file that is meant for the cache. The file
+	 * is named as it was on the server, and it stays in the same place until
+	 * it is stored, so an interrupted download can be resumed.
+	 */
+	public File getStagingFile(URL url, RemoteMetadata metadata)
+	{
+		File stagingDir = new File(new File(cacheDir, STAGING_DIR), getId(url, metadata));
+		return new File(stagingDir, getFileName(url));
+	}
+	
+	/**
+	 * Adds a freshly downloaded file to the cache. If <tt>move</tt> is true,
+	 * the file is moved into the cache (as with a staging file); otherwise it
+	 * is copied. If any content hashes are given, they are checked against
+	 * the cached copy, and those that match are recorded for lookupByHash().
+	 * The new entry is held until release() is called.
+	 * 
+	 * @return the cached file, or null if the file could not be cached
+	 */
+	public File store(URL url, RemoteMetadata metadata, File file, boolean move, Map<String, String> contentHashes)
+	{
+		if (!fits(file.length()) || !isCacheable(metadata))
+			return null;
+		
+		String id = getId(url, metadata);
+		String name = getFileName(url);
+		File dataDir = new File(cacheDir, id);
+		File dataFile = new File(dataDir, name);
+		File infoFile = new File(cacheDir, id + INFO_EXTENSION);
+		File tempDir = new File(cacheDir, id + TEMP_EXTENSION);
+		File tempFile = new File(tempDir, name);
+		
+		// the copying and hashing can take a while, so it's done outside the lock
+		try
+		{
+			if (!tempDir.exists() && !tempDir.mkdirs())
+				throw new IOException("Could not create the directory '" + tempDir.getAbsolutePath() + "'");
+			
+			if (!move || !file.renameTo(tempFile))
+				IOUtils.copy(file, tempFile);
+			
+			// only vouch for the hashes the content actually has
+			List<String> hashKeys = new ArrayList<String>();
+			if (contentHashes != null)
+			{
+				for (Map.Entry<String, String> contentHash: contentHashes.entrySet())
+				{
+					String computedHash = computeHash(contentHash.getKey(), tempFile);
+					if (computedHash != null && computedHash.equalsIgnoreCase(contentHash.getValue()))
+						hashKeys.add(getHashKey(contentHash.getKey(), computedHash));
+					else
+						logger.warn("The " + contentHash.getKey() + " hash of '" + file.getName() + "' is not " + contentHash.getValue() + "; not caching it under that hash");
+				}
+			}
+			
+			Properties properties = new Properties();
+			properties.setProperty("url", url.toString());
+			properties.setProperty("name", name);
+			properties.setProperty("length", Long.toString(metadata.getContentLength()));
+			properties.setProperty("lastModified", Long.toString(metadata.getLastModified()));
+			if (metadata.getETag() != null)
+				properties.setProperty("etag", metadata.getETag());
+			for (int i = 0; i < hashKeys.size(); i++)
+				properties.setProperty("hash." + i, hashKeys.get(i));
+			
+			synchronized (this)
+			{
+				loadIndex();
+				
+				// replace any older copy, unless someone is reading it, in which case it's as good as ours
+				Entry oldEntry = entries.get(id);
+				if (oldEntry != null && oldEntry.inUse > 0)
+				{
+					tempFile.delete();
+					return use(oldEntry);
+				}
+				else if (oldEntry != null)
+				{
+					entries.remove(id);
+					forget(oldEntry);
+				}
+				dataFile.delete();
+				dataDir.delete();
+				
+				if (!tempDir.renameTo(dataDir))
+					throw new IOException("Could not rename '" + tempDir.getName() + "' to '" + dataDir.getName() + "'");
+				writeProperties(infoFile, properties);
+				
+				Entry entry = new Entry(id, name, dataFile.length(), System.currentTimeMillis(), hashKeys);
+				entries.put(id, entry);
+				totalBytes += entry.length;
+				for (String hashKey: hashKeys)
+					hashIndex.put(hashKey, id);
+				dataFile.setLastModified(entry.lastUsed);
+				
+				logger.info("Cached '" + file.getName() + "' from " + url);
+				
+				File result = use(entry);
+				evict();
+				return result;
+			}
+		}
+		catch (IOException ioe)
+		{
+			logger.warn("Could not cache '" + file.getName() + "'", ioe);
+			
+			// don't lose a file we were given to move
+			if (!move || !tempFile.exists() || !tempFile.renameTo(file))
+				tempFile.delete();
+			tempDir.delete();
+			return null;
+		}
+		finally
+		{
+			// a staging file has its own directory, which is no longer needed
+			if (move)
+				file.getParentFile().delete();
+		}
+	}
+	
+	/**
+	 * Copies a cached file to its place in an installation. (Hard links
+	 * would save the space, but Java 6 has no way of making them.)
+	 */
+	public void materialize(File cachedFile, File destinationFile) throws IOException
+	{
+		File parent = destinationFile.getParentFile();
+		if (parent != null && !parent.exists())
+		{
+			long before = DirectoryIndex.getInstance().beforeChange(parent);
+			if (!parent.mkdirs())
+				throw new IOException("Could not create directory '" + parent.getAbsolutePath() + "'");
+			DirectoryIndex.getInstance().added(parent, before);
+		}
+		
+		// copy to a temporary name first, so that a half-copied file is never mistaken for the real thing
+		File tempFile = new File(parent, destinationFile.getName() + ".cachetmp");
+		try
+		{
+			IOUtils.copy(cachedFile, tempFile);
+			if (destinationFile.exists() && !destinationFile.delete())
+				throw new IOException("Could not replace '" + destinationFile.getAbsolutePath() + "'");
+			if (!tempFile.renameTo(destinationFile))
+				throw new IOException("Could not rename '" + tempFile.getName() + "' to '" + destinationFile.getName() + "'");
+		}
+		finally
+		{
+			tempFile.delete();
+			
+			// a temporary file came and went, and the destination may have been replaced
+			DirectoryIndex.getInstance().invalidate(parent);
+		}
+	}
+	
+	/**
+	 * A file can only be cached if we will be able to tell when it changes.
+	 */
+	protected boolean isCacheable(RemoteMetadata metadata)
+	{
+		return metadata.getContentLength() > 0 && (metadata.getLastModified() > 0 || metadata.getETag() != null);
+	}
+	
+	/**
+	 * Removes the least recently used entries until the cache is within its
+	 * budget. Entries that are in use are skipped. Must be called while
+	 * holding the lock.
+	 */
+	private void evict()
+	{
+		if (totalBytes <= maxBytes)
+			return;
+		
+		List<Entry> candidates = new ArrayList<Entry>(entries.values());
+		Collections.sort(candidates, new Comparator<Entry>()
+		{
+			public int compare(Entry o1, Entry o2)
+			{
+				return (o1.lastUsed < o2.lastUsed) ? -1 : ((o1.lastUsed == o2.lastUsed) ? 0 : 1);
+			}
+		});
+		
+		for (Entry entry: candidates)
+		{
+			if (totalBytes <= maxBytes)
+				break;
+			if (entry.inUse > 0)
+				continue;
+			
+			logger.debug("Evicting cache entry " + entry.id);
+			entries.remove(entry.id);
+			forget(entry);
+		}
+	}
+	
+	/**
+	 * Deletes an entry that has already been taken out of the entry map.
+	 * Must be called while holding the lock.
+	 */
+	private void forget(Entry entry)
+	{
+		totalBytes -= entry.length;
+		for (String hashKey: entry.hashKeys)
+		{
+			if (entry.id.equals(hashIndex.get(hashKey)))
+				hashIndex.remove(hashKey);
+		}
+		
+		File dataFile = getDataFile(entry);
+		dataFile.delete();
+		dataFile.getParentFile().delete();
+		new File(cacheDir, entry.id + INFO_EXTENSION).delete();
+	}
+	
+	private File use(Entry entry)
+	{
+		File dataFile = getDataFile(entry);
+		
+		// the file might have been cleaned up behind our backs
+		if (!dataFile.exists() || dataFile.length() != entry.length)
+		{
+			logger.warn("Cache entry " + entry.id + " has gone missing");
+			entries.remove(entry.id);
+			forget(entry);
+			return null;
+		}
+		
+		entry.inUse++;
+		entry.lastUsed = System.currentTimeMillis();
+		dataFile.setLastModified(entry.lastUsed);
+		return dataFile;
+	}
+	
+	/**
+	 * Reads the descriptions of all the cached files. Must be called while
+	 * holding the lock.
+	 */
+	private void loadIndex()
+	{
+		if (entries != null)
+			return;
+		
+		entries = new HashMap<String, Entry>();
+		hashIndex = new HashMap<String, String>();
+		totalBytes = 0;
+		
+		File[] files = cacheDir.listFiles();
+		if (files == null)
+			return;
+		
+		for (File infoFile: files)
+		{
+			String name = infoFile.getName();
+			if (!name.endsWith(INFO_EXTENSION))
+				continue;
+			String id = name.substring(0, name.length() - INFO_EXTENSION.length());
+			File dataFile = null;
+			
+			try
+			{
+				Properties properties = readProperties(infoFile);
+				String fileName = properties.getProperty("name");
+				long length = Long.parseLong(properties.getProperty("length"));
+				dataFile = new File(new File(cacheDir, id), fileName);
+				if (!dataFile.exists() || dataFile.length() != length)
+					throw new IllegalArgumentException("Data file is missing or has the wrong length");
+				
+				List<String> hashKeys = new ArrayList<String>();
+				for (int i = 0; properties.getProperty("hash." + i) != null; i++)
+					hashKeys.add(properties.getProperty("hash." + i));
+				
+				Entry entry = new Entry(id, fileName, length, dataFile.lastModified(), hashKeys);
+				entries.put(id, entry);
+				totalBytes += length;
+				for (String hashKey: hashKeys)
+					hashIndex.put(hashKey, id);
+			}
+			catch (IOException ioe)
+			{
+				logger.warn("Could not read cache entry " + id, ioe);
+			}
+			catch (RuntimeException re)
+			{
+				// covers NumberFormatException and NullPointerException on missing keys
+				logger.warn("Cache entry " + id + " is not valid; removing it", re);
+				if (dataFile != null)
+				{
+					dataFile.delete();
+					dataFile.getParentFile().delete();
+				}
+				infoFile.delete();
+			}
+		}
+		
+		logger.info("The download cache holds " + entries.size() + " files (" + (totalBytes / (1024 * 1024)) + " of " + (maxBytes / (1024 * 1024)) + " MB)");
+		evict();
+	}
+	
+	protected String getId(URL url, RemoteMetadata metadata)
+	{
+		return hex(digest("SHA-1", url.toString() + "\n" + metadata.getETag() + "\n" + metadata.getLastModified() + "\n" + metadata.getContentLength()));
+	}
+	
+	protected String getIdOfFile(File cachedFile)
+	{
+		return cachedFile.getParentFile().getName();
+	}
+	
+	private File getDataFile(Entry entry)
+	{
+		return new File(new File(cacheDir, entry.id), entry.name);
+	}
+	
+	protected static String getFileName(URL url)
+	{
+		String name = new File(url.getPath()).getName();
+		return (name.length() == 0) ? "download" : name;
+	}
+	
+	protected static String getHashKey(String algorithm, String hash)
+	{
+		return normalizeAlgorithm(algorithm) + ":" + hash.toLowerCase();
+	}
+	
+	/**
+	 * Converts the algorithm names used in HASH entries (e.g. SHA1) to the
+	 * names Java knows them by (e.g. SHA-1).
+	 */
+	protected static String normalizeAlgorithm(String algorithm)
+	{
+		return HashService.normalizeAlgorithm(algorithm);
+	}
+	
+	protected static String computeHash(String algorithm, File file) throws IOException
+	{
+		try
+		{
+			return HashService.getInstance().computeHash(algorithm, file);
+		}
+		catch (NoSuchAlgorithmException nsae)
+		{
+			logger.warn("'" + algorithm + "' is not a recognized hash algorithm");
+			return null;
+		}
+	}
+	
+	private static byte[] digest(String algorithm, String text)
+	{
+		try
+		{
+			return MessageDigest.getInstance(algorithm).digest(text.getBytes("UTF-8"));
+		}
+		catch (NoSuchAlgorithmException nsae)
+		{
+			throw new IllegalStateException("Every Java platform must support " + algorithm + "!", nsae);
+		}
+		catch (UnsupportedEncodingException uee)
+		{
+			throw new IllegalStateException("Every Java platform must support UTF-8!", uee);
+		}
+	}
+	
+	private static String hex(byte[] bytes)
+	{
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < bytes.length; i++)
+			sb.append(Integer.toString((bytes[i] & 0xff) + 0x100, 16).substring(1));
+		return sb.toString();
+	}
+	
+	private static Properties readProperties(File file) throws FileNotFoundException, IOException
+	{
+		Properties properties = new Properties();
+		InputStream is = new FileInputStream(file);
+		try
+		{
+			properties.load(is);
+		}
+		finally
+		{
+			is.close();
+		}
+		return properties;
+	}
+	
+	private static void writeProperties(File file, Properties properties) throws IOException
+	{
+		OutputStream os = new FileOutputStream(file);
+		try
+		{
+			properties.store(os, "FSO Installer download cache entry");
+		}
+		finally
+		{
+			os.close();
+		}
+	}
+	
+	/**
+	 * What we know about one cached file.
+	 */
+	private static class Entry
+	{
+		public final String id;
+		public final String name;
+		public final long length;
+		public final List<String> hashKeys;
+		public long lastUsed;
+		public int inUse;
+		
+		public Entry(String id, String name, long length, long lastUsed, List<String> hashKeys)
+		{
+			this.id = id;
+			this.name = name;
+			this.length = length;
+			this.lastUsed = lastUsed;
+			this.hashKeys = hashKeys;
+			this.inUse = 0;
+		}
+	}
+}
@@ -0,0 +1,433 @@
+/*
+ * This file is part of the FreeSpace Open Installer
+ * Copyright (C) 2026 The FreeSpace 2 Source Code Project
+ * 
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package com.fsoinstaller.internet;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.fsoinstaller.utils.Logger;
+import com.fsoinstaller.utils.PropertiesUtils;
+
+
+/**
+ * Decides which downloads may run, and against which host. There is a global
+ * cap on the number of files being downloaded at once (the
+ * <tt>maxParallelDownloads</tt> option) and a per-host cap on the number of
+ * connections (the <tt>maxConnectionsPerHost</tt> option). A download that can
+ * come from several mirrors is started on the first of them, in the order
+ * given, whose host has a free connection, so that transfers don't pile up on
+ * one mirror while others sit idle. Extra connections for segmented downloads
+ * are handed out only when nobody is waiting for the host.
+ * <p>
+ * When downloads are waiting, free slots are shared fairly among groups (the
+ * mods being installed): the group with the fewest active downloads relative
+ * to its weight goes next, or if that is a tie, the group that has been given
+ * the fewest slots so far. This can be turned off with
+ * <tt>-DfairDownloadSharing=false</tt>, in which case downloads start strictly
+ * in the order they asked.
+ * <p>
+ * This class is thread-safe.
+ */
+public class DownloadScheduler
+{
+	private static final Logger logger = Logger.getLogger(DownloadScheduler.class);
+	
+	/**
+	 * Use the Initialization On Demand Holder idiom for thread-safe
+	 * non-synchronized singletons.
+	 */
+	private static final class InstanceHolder
+	{
+		private static final DownloadScheduler INSTANCE = new DownloadScheduler(PropertiesUtils.getIntSystemProperty("maxParallelDownloads", 4, 1), PropertiesUtils.getIntSystemProperty("maxConnectionsPerHost", 8, 1), !"false".equalsIgnoreCase(System.getProperty("fairDownloadSharing")));
+	}
+	
+	public static DownloadScheduler getInstance()
+	{
+		return InstanceHolder.INSTANCE;
+	}
+	
+	protected final int maxDownloads;
+	protected final int maxConnectionsPerHost;
+	protected final boolean fairSharing;
+	
+	// all of the following are guarded by this
+	private int activeDownloads;
+	private final Map<String, HostState> hosts;
+	private final Map<String, Integer> groupActive;
+	private final Map<String, Long> groupGrants;
+	private final Map<String, Double> groupWeights;
+	private final LinkedList<Ticket> waiting;
+	
+	public DownloadScheduler(int maxDownloads, int maxConnectionsPerHost, boolean fairSharing)
+	{
+		this.maxDownloads = maxDownloads;
+		this.maxConnectionsPerHost = maxConnectionsPerHost;
+		this.fairSharing = fairSharing;
+		
+		this.activeDownloads = 0;
+		this.hosts = new HashMap<String, HostState>();
+		this.groupActive = new HashMap<String, Integer>();
+		this.groupGrants = new HashMap<String, Long>();
+		this.groupWeights = new HashMap<String, Double>();
+		this.waiting = new LinkedList<Ticket>();
+		
+		logger.info("Fair sharing of downloads among mods is " + (fairSharing ? "enabled" : "disabled"));
+	}
+	
+	/**
+	 * Gives a group a larger (or smaller) share of the download slots when
+	 * there are more downloads than slots. The default weight is 1.
+	 */
+	public synchronized void setGroupWeight(String group, double weight)
+	{
+		if (weight <= 0)
+			throw new IllegalArgumentException("Weight must be positive!");
+		groupWeights.put(group, weight);
+		notifyAll();
+	}
+	
+	/**
+	 * Waits for a download slot on one of the hosts of the given mirrors. The
+	 * slot includes one connection to the chosen host, and must be released
+	 * when the download is finished.
+	 */
+	public Slot acquire(List<URL> mirrors, String group) throws InterruptedException
+	{
+		Set<String> candidateHosts = new LinkedHashSet<String>();
+		for (URL mirror: mirrors)
+			candidateHosts.add(hostOf(mirror));
+		
+		Ticket ticket = new Ticket(new ArrayList<String>(candidateHosts), (group == null) ? "" : group);
+		long startTime = System.currentTimeMillis();
+		
+		synchronized (this)
+		{
+			waiting.add(ticket);
+			for (String host: ticket.hosts)
+				getHostState(host).queued++;
+			
+			try
+			{
+				String host;
+				while ((host = chooseHost(ticket)) == null)
+					wait();
+				
+				long waitMillis = System.currentTimeMillis() - startTime;
+				
+				// take the slot
+				activeDownloads++;
+				Integer active = groupActive.get(ticket.group);
+				groupActive.put(ticket.group, (active == null) ? 1 : active + 1);
+				Long granted = groupGrants.get(ticket.group);
+				groupGrants.put(ticket.group, (granted == null) ? 1 : granted + 1);
+				HostState state = getHostState(host);
+				state.active++;
+				state.grants++;
+				state.totalWaitMillis += waitMillis;
+				state.maxWaitMillis = Math.max(state.maxWaitMillis, waitMillis);
+				
+				if (waitMillis > 0 && logger.isDebugEnabled())
+					logger.debug("Waited " + waitMillis + " ms for a download slot on " + host + "; " + (waiting.size() - 1) + " downloads are still waiting");
+				
+				return new Slot(host, ticket.group);
+			}
+			finally
+			{
+				waiting.remove(ticket);
+				for (String host: ticket.hosts)
+					getHostState(host).queued--;
+				
+				// our leaving may let someone else in
+				notifyAll();
+			}
+		}
+	}
+	
+	/**
+	 * Asks for an extra connection to a host, for an additional segment of a
+	 * download that already holds a slot. This never waits; the extra
+	 * connection is refused if the host is at its cap or if other downloads
+	 * are queued for it.
+	 */
+	public synchronized boolean tryAcquireConnection(String host)
+	{
+		HostState state = getHostState(host);
+		if (state.active >= maxConnectionsPerHost || state.queued > 0)
+			return false;
+		
+		state.active++;
+		return true;
+	}
+	
+	/**
+	 * Waits up to the given time for an extra connection to a host, on the
+	 * same terms as tryAcquireConnection. The wait is bounded because the
+	 * caller is already holding a slot that others may be waiting for.
+	 * 
+	 * @return true if the connection was granted, or false if the time ran
+	 *         out first
+	 */
+	public synchronized boolean acquireConnection(String host, long timeoutMillis) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		HostState state = getHostState(host);
+		while (state.active >= maxConnectionsPerHost || state.queued > 0)
+		{
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0)
+				return false;
+			wait(remaining);
+		}
+		
+		state.active++;
+		return true;
+	}
+	
+	public synchronized void releaseConnection(String host)
+	{
+		getHostState(host).active--;
+		notifyAll();
+	}
+	
+	/**
+	 * Gets a snapshot of the statistics for every host we have seen, sorted
+	 * by host.
+	 */
+	public synchronized Map<String, HostStatistics> getStatistics()
+	{
+		Map<String, HostStatistics> statistics = new TreeMap<String, HostStatistics>();
+		for (Map.Entry<String, HostState> entry: hosts.entrySet())
+		{
+			HostState state = entry.getValue();
+			statistics.put(entry.getKey(), new HostStatistics(state.active, state.queued, state.grants, state.totalWaitMillis, state.maxWaitMillis));
+		}
+		return statistics;
+	}
+	
+	public void logStatistics(Logger log)
+	{
+		for (Map.Entry<String, HostStatistics> entry: getStatistics().entrySet())
+			log.info("Host " + entry.getKey() + ": " + entry.getValue());
+	}
+	
+	/**
+	 * Decides whether this ticket may go now, and if so, on which host.
+	 * Must be called while holding the lock.
+	 */
+	private String chooseHost(Ticket ticket)
+	{
+		if (activeDownloads >= maxDownloads)
+			return null;
+		
+		// find the ticket that deserves the next slot among those that could use one
+		Ticket best = null;
+		double bestShare = 0;
+		double bestServed = 0;
+		for (Iterator<Ticket> it = waiting.iterator(); it.hasNext();)
+		{
+			Ticket candidate = it.next();
+			if (findFreeHost(candidate) == null)
+				continue;
+			
+			// without fair sharing, the first eligible ticket wins
+			if (!fairSharing)
+			{
+				best = candidate;
+				break;
+			}
+			
+			Integer active = groupActive.get(candidate.group);
+			Long granted = groupGrants.get(candidate.group);
+			Double weight = groupWeights.get(candidate.group);
+			double share = ((active == null) ? 0 : active) / ((weight == null) ? 1.0 : weight);
+			double served = ((granted == null) ? 0 : granted) / ((weight == null) ? 1.0 : weight);
+			
+			// if the active shares are equal, the group that has had fewer slots so far goes next;
+			// beyond that, ties go to whoever arrived first
+			if (best == null || share < bestShare || (share == bestShare && served < bestServed))
+			{
+				best = candidate;
+				bestShare = share;
+				bestServed = served;
+			}
+		}
+		
+		return (best == ticket) ? findFreeHost(ticket) : null;
+	}
+	
+	private String findFreeHost(Ticket ticket)
+	{
+		for (String host: ticket.hosts)
+		{
+			if (getHostState(host).active < maxConnectionsPerHost)
+				return host;
+		}
+		return null;
+	}
+	
+	private HostState getHostState(String host)
+	{
+		HostState state = hosts.get(host);
+		if (state == null)
+		{
+			state = new HostState();
+			hosts.put(host, state);
+		}
+		return state;
+	}
+	
+	private synchronized void release(Slot slot)
+	{
+		activeDownloads--;
+		Integer active = groupActive.get(slot.group);
+		if (active != null && active > 1)
+			groupActive.put(slot.group, active - 1);
+		else
+			groupActive.remove(slot.group);
+		getHostState(slot.host).active--;
+		
+		notifyAll();
+	}
+	
+	public static String hostOf(URL url)
+	{
+		return url.getProtocol() + "://" + url.getAuthority();
+	}
+	
+	/**
+	 * A download slot, with one connection to the host it was granted on.
+	 */
+	public class Slot
+	{
+		private final String host;
+		private final String group;
+		private boolean released;
+		
+		private Slot(String host, String group)
+		{
+			this.host = host;
+			this.group = group;
+			this.released = false;
+		}
+		
+		public String getHost()
+		{
+			return host;
+		}
+		
+		/**
+		 * Gives the slot back. Calling this more than once has no effect.
+		 */
+		public void release()
+		{
+			synchronized (DownloadScheduler.this)
+			{
+				if (released)
+					return;
+				released = true;
+			}
+			DownloadScheduler.this.release(this);
+		}
+	}
+	
+	/**
+	 * The figures for one host, as of the moment they were requested.
+	 */
+	public static class HostStatistics
+	{
+		private final int activeConnections;
+		private final int queueDepth;
+		private final long grants;
+		private final long totalWaitMillis;
+		private final long maxWaitMillis;
+		
+		public HostStatistics(int activeConnections, int queueDepth, long grants, long totalWaitMillis, long maxWaitMillis)
+		{
+			this.activeConnections = activeConnections;
+			this.queueDepth = queueDepth;
+			this.grants = grants;
+			this.totalWaitMillis = totalWaitMillis;
+			this.maxWaitMillis = maxWaitMillis;
+		}
+		
+		public int getActiveConnections()
+		{
+			return activeConnections;
+		}
+		
+		/**
+		 * The number of downloads waiting that could be served by this host.
+		 */
+		public int getQueueDepth()
+		{
+			return queueDepth;
+		}
+		
+		public long getGrants()
+		{
+			return grants;
+		}
+		
+		public long getAverageWaitMillis()
+		{
+			return (grants == 0) ? 0 : totalWaitMillis / grants;
+		}
+		
+		public long getMaxWaitMillis()
+		{
+			return maxWaitMillis;
+		}
+		
+		@Override
+		public String toString()
+		{
+			return activeConnections + " active, " + queueDepth + " queued, " + grants + " granted, average wait " + getAverageWaitMillis() + " ms, longest wait " + maxWaitMillis + " ms";
+		}
+	}
+	
+	private static class HostState
+	{
+		public int active = 0;
+		public int queued = 0;
+		public long grants = 0;
+		public long totalWaitMillis = 0;
+		public long maxWaitMillis = 0;
+	}
+	
+	private static class Ticket
+	{
+		public final List<String> hosts;
+		public final String group;
+		
+		public Ticket(List<String> hosts, String group)
+		{
+			this.hosts = hosts;
+			this.group = group;
+		}
+	}
+}
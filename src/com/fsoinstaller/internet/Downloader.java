@@ -20,40 +20,74 @@
 package com.fsoinstaller.internet;
 
 import java.awt.EventQueue;
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.net.URISyntaxException;
 import java.net.URLConnection;
+import java.security.NoSuchAlgorithmException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.sf.sevenzipjbinding.ArchiveFormat;
 import net.sf.sevenzipjbinding.ExtractAskMode;
 import net.sf.sevenzipjbinding.ExtractOperationResult;
 import net.sf.sevenzipjbinding.IArchiveExtractCallback;
 import net.sf.sevenzipjbinding.IInArchive;
+import net.sf.sevenzipjbinding.IInStream;
 import net.sf.sevenzipjbinding.ISequentialOutStream;
 import net.sf.sevenzipjbinding.PropID;
 import net.sf.sevenzipjbinding.SevenZip;
 import net.sf.sevenzipjbinding.SevenZipException;
 
+import com.fsoinstaller.common.BlockCache;
+import com.fsoinstaller.common.DigestingOutputStream;
+import com.fsoinstaller.common.FileChannelInStream;
 import com.fsoinstaller.common.InputStreamInStream;
 import com.fsoinstaller.common.InputStreamSource;
 import com.fsoinstaller.common.OutputStreamSequentialOutStream;
+import com.fsoinstaller.common.SparseFile;
+import com.fsoinstaller.common.TarStreamParser;
+import com.fsoinstaller.common.ZipRangePlanner;
+import com.fsoinstaller.utils.DirectoryIndex;
+import com.fsoinstaller.utils.HashCache;
+import com.fsoinstaller.utils.HashService;
 import com.fsoinstaller.utils.IOUtils;
-import com.fsoinstaller.utils.InstallerUtils;
 import com.fsoinstaller.utils.Logger;
 import com.fsoinstaller.utils.MiscUtils;
 import com.fsoinstaller.utils.ObjectHolder;
+import com.fsoinstaller.utils.PropertiesUtils;
 
 import static com.fsoinstaller.main.ResourceBundleManager.XSTR;
 
@@ -74,46 +108,87 @@ public class Downloader
 	
 	protected static final int BUFFER_SIZE = 2048;
 	
-	// the user can configure the number of download slots
-	protected static final Semaphore downloadPermits;
-	static
+	protected static final int SEGMENT_BUFFER_SIZE = 65536;
+	
+	// large files can be split into byte ranges which are fetched concurrently;
+	// a file must be at least two segments long for this to kick in
+	protected static final int downloadSegments = PropertiesUtils.getIntSystemProperty("downloadSegments", 4, 1);
+	protected static final long minSegmentSize = PropertiesUtils.getLongSystemProperty("minSegmentSize", 8L * 1024 * 1024, 1);
+	
+	// a stream that fails partway through (e.g. because it stalled) is reopened at the same offset this many times before we give up on it
+	protected static final int maxReconnects = PropertiesUtils.getIntSystemProperty("maxReconnects", 3, 0);
+	
+	// whether archives are fetched on a separate thread while 7Zip is extracting them
+	protected static final boolean readAheadArchives = !"false".equalsIgnoreCase(System.getProperty("readAheadArchives"));
+	
+	// remote archives are read through a block cache of this many megabytes (0 to turn it off), which
+	// spills to a temporary file of up to this many megabytes, so that no part of an archive is fetched twice
+	protected static final long archiveBlockCacheSize = PropertiesUtils.getLongSystemProperty("archiveBlockCacheSize", 32, 0);
+	protected static final long archiveBlockSpillSize = PropertiesUtils.getLongSystemProperty("archiveBlockSpillSize", 512, 0);
+	
+	// when only some entries of a remote zip file are out of date, just the ranges they occupy are fetched, in parallel
+	protected static final boolean prefetchArchiveRanges = !"false".equalsIgnoreCase(System.getProperty("prefetchArchiveRanges"));
+	
+	// whether archives that are already on disk are memory-mapped rather than read through a file channel
+	protected static final boolean mapLocalArchives = "true".equalsIgnoreCase(System.getProperty("mapLocalArchives"));
+	
+	// the entries of an archive on disk are extracted on this many threads at once, each with its own view of
+	// the archive, as long as there are enough bytes to make it worthwhile (solid archives are always extracted in order)
+	protected static final int extractionThreads = PropertiesUtils.getIntSystemProperty("extractionThreads", Math.min(4, Runtime.getRuntime().availableProcessors()), 1);
+	protected static final long MIN_PARALLEL_EXTRACTION_SIZE = 16 * 1024 * 1024;
+	
+	// local files are copied this much at a time, so that progress can be reported in between
+	protected static final long LOCAL_COPY_CHUNK_SIZE = 8 * 1024 * 1024;
+	
+	// ranges of an archive closer together than this are fetched as one, and a single request asks for at most this many
+	protected static final long RANGE_GAP = 64 * 1024;
+	protected static final int MAX_RANGES_PER_REQUEST = 32;
+	
+	// the extra segments (and parallel extractions) run on these threads; they are daemons so that they never hold up shutdown
+	protected static final ExecutorService segmentExecutor = Executors.newCachedThreadPool(new ThreadFactory()
 	{
-		int num = 4;
-		
-		// maybe parse the user option
-		try
-		{
-			String val = System.getProperty("maxParallelDownloads");
-			if (val != null)
-				num = Integer.parseInt(val);
-		}
-		catch (NumberFormatException nfe)
-		{
-			defaultLogger.error("Couldn't parse maxParallelDownloads!", nfe);
-		}
+		private final AtomicInteger threadNumber = new AtomicInteger(1);
 		
-		// sanity
-		if (num < 1)
+		public Thread newThread(Runnable runnable)
 		{
-			defaultLogger.warn("maxParallelDownloads must be at least 1!");
-			num = 1;
+			Thread thread = new Thread(runnable, "Downloader-segment-" + threadNumber.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
 		}
-		
-		// allocate that many permits
-		defaultLogger.info("Setting maxParallelDownloads to " + num);
-		downloadPermits = new Semaphore(num, true);
-	}
+	});
 	
 	protected final List<DownloadListener> downloadListeners;
+	protected final ProgressAggregator.Channel progressChannel;
 	protected final Connector connector;
+	protected final List<URL> sourceURLs;
 	protected final URL sourceURL;
 	protected final File destination;
 	protected final byte[] downloadBuffer;
 	
 	protected final ObjectHolder<DownloadState> stateHolder;
 	protected final Logger logger;
+	protected final String modName;
 	protected Thread downloadThread;
 	
+	// if set, this is told how quickly (or whether) each download went
+	protected volatile MirrorRanker mirrorRanker = null;
+	
+	// hashes the downloaded file is expected to have, keyed by algorithm, so that it can be found in the cache by its content
+	protected final Map<String, String> contentHashes;
+	
+	// hashes that files written by this download are expected to have, keyed by their lower-case path within the
+	// destination and then by algorithm, so that they can be hashed as they are written rather than read back later
+	protected final Map<String, Map<String, String>> fileHashes;
+	
+	// the hashes of the files that were hashed as they were written; recorded once the files have their final dates
+	protected final Map<File, Map<String, String>> writtenHashes;
+	
+	// where the written hashes are recorded, if anywhere
+	protected volatile HashCache hashCache = null;
+	
+	// the mirrors we haven't tried yet; only used by the download thread
+	protected LinkedList<URL> remainingMirrors = null;
+	
 	// these are kept as member variables in the event of failure during 7Zip download
 	protected File extractingFile = null;
 	protected OutputStreamSequentialOutStream extractingOutStream = null;
@@ -125,26 +200,65 @@ public class Downloader
 	
 	public Downloader(Connector connector, URL sourceURL, File destination, String modName)
 	{
+		this(connector, Collections.singletonList(sourceURL), destination, modName);
+	}
+	
+	/**
+	 * Creates a downloader that can fetch the same file from any of several
+	 * mirrors, trying them in the given order. If a mirror fails partway
+	 * through a file, the download continues on the next mirror from where it
+	 * left off.
+	 */
+	public Downloader(Connector connector, List<URL> sourceURLs, File destination, String modName)
+	{
+		if (sourceURLs.isEmpty())
+			throw new IllegalArgumentException("At least one source URL must be provided!");
+		
 		this.connector = connector;
-		this.sourceURL = sourceURL;
+		this.sourceURLs = Collections.unmodifiableList(new ArrayList<URL>(sourceURLs));
+		this.sourceURL = this.sourceURLs.get(0);
 		this.destination = destination;
 		this.downloadBuffer = new byte[BUFFER_SIZE];
 		
 		this.stateHolder = new ObjectHolder<DownloadState>(DownloadState.INITIALIZED);
 		this.logger = (MiscUtils.isEmpty(modName) ? defaultLogger : Logger.getLogger(Downloader.class, modName));
+		this.modName = modName;
+		this.contentHashes = new ConcurrentHashMap<String, String>();
+		this.fileHashes = new ConcurrentHashMap<String, Map<String, String>>();
+		this.writtenHashes = new ConcurrentHashMap<File, Map<String, String>>();
 		this.downloadThread = null;
 		
 		// woot, CopyOnWriteArrayList is A-1 SUPAR as a listener list;
 		// see http://www.ibm.com/developerworks/java/library/j-jtp07265/index.html
 		this.downloadListeners = new CopyOnWriteArrayList<DownloadListener>();
+		
+		// progress is reported far too often to send each report to the listeners on its own
+		this.progressChannel = new ProgressAggregator.Channel(ProgressAggregator.getInstance())
+		{
+			@Override
+			protected void deliver(String downloadName, long downloadedBytes, long totalBytes)
+			{
+				DownloadEvent event = null;
+				for (DownloadListener listener: downloadListeners)
+				{
+					// lazy instantiation of the event
+					if (event == null)
+						event = new DownloadEvent(Downloader.this, downloadName, downloadedBytes, totalBytes);
+					
+					// fire it
+					listener.downloadProgressReport(event);
+				}
+			}
+		};
 	}
 	
 	public boolean download()
 	{
-		// wait for a download slot
+		// wait for a download slot on one of the mirrors
+		DownloadScheduler.Slot slot;
 		try
 		{
-			downloadPermits.acquire();
+			slot = DownloadScheduler.getInstance().acquire(sourceURLs, modName);
 		}
 		catch (InterruptedException ie)
 		{
@@ -156,16 +270,20 @@ public class Downloader
 		// perform the download
 		try
 		{
-			return download0();
+			return download0(slot.getHost());
 		}
 		// release the slot when we are done, whatever happens
 		finally
 		{
-			downloadPermits.release();
+			slot.release();
 		}
 	}
 	
-	protected boolean download0()
+	/**
+	 * Performs the download, starting with the mirrors on the host we were
+	 * given a slot for.
+	 */
+	protected boolean download0(String preferredHost)
 	{
 		synchronized (stateHolder)
 		{
@@ -192,6 +310,17 @@ public class Downloader
 		}
 		
 		Boolean result = null;
+		remainingMirrors = new LinkedList<URL>();
+		for (URL url: sourceURLs)
+		{
+			if (DownloadScheduler.hostOf(url).equals(preferredHost))
+				remainingMirrors.add(url);
+		}
+		for (URL url: sourceURLs)
+		{
+			if (!DownloadScheduler.hostOf(url).equals(preferredHost))
+				remainingMirrors.add(url);
+		}
 		
 		// if downloading to a directory, put the source file inside it with the same name
 		// (or names, in the case of an archive)
@@ -200,63 +329,46 @@ public class Downloader
 			File destinationDirectory = destination;
 			String sourceFileName = new File(sourceURL.getPath()).getName();
 			
-			// normalize any contracted file extension we may have
-			String normalized = IOUtils.normalizeFileExtension(sourceFileName);
-			
-			// now grab the extension
-			int periodPos = normalized.lastIndexOf('.');
-			String extension = (periodPos >= 0) ? normalized.substring(periodPos + 1) : "";
-			
 			// make sure 7zip is ready to go
 			MiscUtils.initSevenZip();
 			
 			// see if this file is a 7zip-supported archive, including .zip
-			for (ArchiveFormat format: ArchiveFormat.values())
+			ArchiveFormat format = getArchiveFormat(sourceFileName);
+			if (format != null)
 			{
-				if (format.getMethodName().equalsIgnoreCase(extension))
+				// a compressed .tar file is unpacked as it is decompressed
+				String normalized = IOUtils.normalizeFileExtension(sourceFileName);
+				int periodPos = normalized.lastIndexOf('.');
+				boolean compressedTar = periodPos >= 0 && normalized.substring(0, periodPos).toLowerCase().endsWith(".tar");
+				
+				// an archive can't be resumed partway through, so if a mirror fails, start over on the next one
+				URL archiveURL = nextMirror(null);
+				while (true)
 				{
-					// if this is a compressed .tar file, create a holder for the temporary .tar file name
-					ObjectHolder<String> tarResultHolder = null;
-					if (periodPos >= 0 && normalized.substring(0, periodPos).toLowerCase().endsWith(".tar"))
-						tarResultHolder = new ObjectHolder<String>();
-					
-					result = downloadFromArchive(sourceURL, destinationDirectory, format, tarResultHolder);
-					
-					// if we ended up with a tar archive, extract that too
-					if (result.booleanValue() && tarResultHolder != null && tarResultHolder.get() != null)
-					{
-						File tarFile = new File(destinationDirectory, tarResultHolder.get());
-						if (tarFile.exists())
-						{
-							try
-							{
-								result = downloadFromArchive(tarFile.toURI().toURL(), destinationDirectory, ArchiveFormat.TAR, null);
-								
-								if (result.booleanValue() && !tarFile.delete())
-									logger.warn("TAR file was not deleted...");
-							}
-							catch (MalformedURLException murle)
-							{
-								logger.error("Could not extract from '" + tarFile.getName() + "'!");
-							}
-						}
-					}
+					result = downloadArchive(archiveURL, destinationDirectory, format, compressedTar);
+					if (result.booleanValue())
+						break;
 					
-					// this extension matched: no need to check any other extensions
-					break;
+					archiveURL = nextMirror(archiveURL);
+					if (archiveURL == null)
+						break;
 				}
 			}
 			
 			// not an archive (or an archive that 7zip knows how to extract), so download as a standard file
 			if (result == null)
-				result = downloadFile(sourceURL, new File(destinationDirectory, sourceFileName));
+				result = downloadFileFromMirrors(new File(destinationDirectory, sourceFileName));
 		}
 		// if downloading to a file, copy the source file and use the destination name
 		else
 		{
-			result = downloadFile(sourceURL, destination);
+			result = downloadFileFromMirrors(destination);
 		}
 		
+		InstallManifest.getInstance().save();
+		CrcIndex.saveAll();
+		recordWrittenHashes();
+		
 		// we are done, so set the state
 		synchronized (stateHolder)
 		{
@@ -268,6 +380,70 @@ public class Downloader
 		return result.booleanValue();
 	}
 	
+	public void setMirrorRanker(MirrorRanker mirrorRanker)
+	{
+		this.mirrorRanker = mirrorRanker;
+	}
+	
+	/**
+	 * Works out whether a file is an archive that 7zip can extract, going by
+	 * its extension. A file that is would be extracted into the destination
+	 * directory, rather than saved there as it is.
+	 * 
+	 * @return the format of the archive, or null if it isn't one
+	 */
+	public static ArchiveFormat getArchiveFormat(String fileName)
+	{
+		// normalize any contracted file extension we may have
+		String normalized = IOUtils.normalizeFileExtension(fileName);
+		
+		// now grab the extension
+		int periodPos = normalized.lastIndexOf('.');
+		String extension = (periodPos >= 0) ? normalized.substring(periodPos + 1) : "";
+		
+		for (ArchiveFormat format: ArchiveFormat.values())
+		{
+			if (format.getMethodName().equalsIgnoreCase(extension))
+				return format;
+		}
+		return null;
+	}
+	
+	/**
+	 * Tells the downloader a hash that the downloaded file (not an archive's
+	 * contents) is expected to have. If the file turns out to need
+	 * downloading and the download cache has a file with this hash, that file
+	 * is used instead, regardless of which mirror it came from.
+	 */
+	public void addContentHash(String algorithm, String hash)
+	{
+		contentHashes.put(algorithm, hash);
+	}
+	
+	/**
+	 * Tells the downloader a hash that one of the files it writes (the
+	 * downloaded file, or an archive entry) is expected to have, by its path
+	 * within the destination directory. Such files are hashed as they are
+	 * written, and the hashes are given to the hash cache, if there is one, so
+	 * that checking them doesn't mean reading the files again.
+	 */
+	public void addFileHash(String fileName, String algorithm, String hash)
+	{
+		String key = getFileHashKey(fileName);
+		Map<String, String> hashes = fileHashes.get(key);
+		if (hashes == null)
+		{
+			hashes = new ConcurrentHashMap<String, String>();
+			fileHashes.put(key, hashes);
+		}
+		hashes.put(HashService.normalizeAlgorithm(algorithm), hash);
+	}
+	
+	public void setHashCache(HashCache hashCache)
+	{
+		this.hashCache = hashCache;
+	}
+	
 	public void cancel()
 	{
 		synchronized (stateHolder)
@@ -295,44 +471,207 @@ public class Downloader
 		}
 	}
 	
+	/**
+	 * Downloads a file from the first mirror that works. (Mirrors that fail
+	 * in the middle of the download are handled within downloadFile.)
+	 */
+	protected boolean downloadFileFromMirrors(File destinationFile)
+	{
+		URL mirrorURL = nextMirror(null);
+		while (true)
+		{
+			if (downloadFile(mirrorURL, destinationFile))
+				return true;
+			
+			mirrorURL = nextMirror(mirrorURL);
+			if (mirrorURL == null)
+				return false;
+		}
+	}
+	
+	/**
+	 * Takes the next untried mirror, or returns null if there are none left or
+	 * the download has been cancelled.
+	 */
+	protected URL nextMirror(URL failedURL)
+	{
+		if (Thread.currentThread().isInterrupted())
+			return null;
+		synchronized (stateHolder)
+		{
+			if (stateHolder.get() == DownloadState.CANCELLED)
+				return null;
+		}
+		
+		URL nextURL = remainingMirrors.poll();
+		if (nextURL != null && failedURL != null)
+			logger.warn("Switching from " + failedURL + " to mirror " + nextURL);
+		return nextURL;
+	}
+	
 	protected boolean downloadFile(URL sourceURL, File destinationFile)
+	{
+		return downloadFile(sourceURL, destinationFile, true);
+	}
+	
+	/**
+	 * Downloads a single file. A file that is being installed is checked
+	 * against the install manifest and the download cache, and is recorded in
+	 * both afterwards; a file that is only being fetched for the cache is not.
+	 */
+	protected boolean downloadFile(URL sourceURL, File destinationFile, boolean installing)
 	{
 		logger.info("Downloading from " + sourceURL + " to local file " + destinationFile);
 		
+		boolean useCache = installing && DownloadCache.getInstance().isEnabled();
+		InstallManifest manifest = InstallManifest.getInstance();
+		InstallManifest.FileRecord record = installing ? manifest.getRecord(destinationFile) : null;
+		
 		long totalBytes = 0;
 		long lastModified = -1;
 		InputStream inputStream = null;
 		OutputStream outputStream = null;
+		URLConnection connection = null;
+		PartialDownload partial = null;
+		boolean writingDestination = false;
 		try
 		{
-			totalBytes = connector.getContentLength(sourceURL);
-			lastModified = connector.getLastModified(sourceURL);
-			
-			logger.debug("Opening connection to file...");
-			URLConnection connection = connector.openConnection(sourceURL);
+			// if we don't know anything about this file yet and are certain to download all of it, don't
+			// bother with a separate request for its metadata; the headers of the download itself will do
+			// (unless we need the metadata to look in the download cache first)
+			RemoteMetadata metadata = connector.getCachedMetadata(sourceURL);
+			if (metadata == null && record != null && supportsRanges(sourceURL))
+			{
+				// we installed this file before and nobody has touched it since, so ask the server
+				// to send it only if it has changed; the response doubles as the metadata if it has
+				logger.debug("Opening conditional connection to file...");
+				connection = connector.openConnection(sourceURL);
+				if (record.getETag() != null && sourceURL.toString().equals(record.getSource()))
+					connection.setRequestProperty("If-None-Match", record.getETag());
+				if (record.getLastModified() > 0)
+					connection.setIfModifiedSince(record.getLastModified());
+				
+				if (((HttpURLConnection) connection).getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED)
+				{
+					logger.info("'" + destinationFile.getName() + "' has not changed since it was installed");
+					
+					// any leftovers from an earlier attempt are no longer needed
+					PartialDownload.discard(destinationFile);
+					
+					fireNoDownloadNecessary(destinationFile.getName(), 0, destinationFile.length());
+					return true;
+				}
+				metadata = connector.getMetadata(sourceURL, connection);
+			}
+			else if (metadata == null && !useCache && !destinationFile.exists() && !PartialDownload.exists(destinationFile))
+			{
+				logger.debug("Opening connection to file...");
+				connection = connector.openConnection(sourceURL);
+				metadata = connector.getMetadata(sourceURL, connection);
+			}
+			else if (metadata == null)
+			{
+				metadata = connector.getMetadata(sourceURL);
+			}
+			totalBytes = metadata.getContentLength();
+			lastModified = metadata.getLastModified();
 			
 			logger.debug("Checking if the file is up to date...");
-			if (uptodate(destinationFile, totalBytes))
+			if (installing && uptodate(destinationFile, record, metadata))
 			{
+				// any leftovers from an earlier attempt are no longer needed
+				PartialDownload.discard(destinationFile);
+				
+				// a file installed before we kept a manifest is taken at its word from now on
+				if (record == null)
+					manifest.recordDownload(destinationFile, sourceURL, metadata);
+				
 				fireNoDownloadNecessary(destinationFile.getName(), 0, totalBytes);
 				return true;
 			}
 			
-			logger.debug("Opening input and output streams...");
-			inputStream = connection.getInputStream();
-			outputStream = openOutputStream(destinationFile);
+			// the file has to be fetched, but the cache may already have it under one of the expected hashes or this URL
+			if (useCache && (materializeFromCache(metadata, destinationFile) || materializeFromCache(sourceURL, metadata, destinationFile)))
+			{
+				manifest.recordDownload(destinationFile, sourceURL, metadata);
+				return true;
+			}
 			
-			downloadUsingStreams(inputStream, outputStream, destinationFile.getName(), totalBytes);
+			long startTime = System.currentTimeMillis();
+			long alreadyDownloaded = 0;
+			URL finishedURL = sourceURL;
+			
+			// if we know how big the file is and can ask for pieces of it, download it
+			// to a .part file that can be resumed if we are interrupted
+			if (totalBytes > 0 && supportsRanges(sourceURL))
+			{
+				// weak validators can't be used with If-Range, so they aren't worth keeping
+				String etag = metadata.getETag();
+				if (etag != null && etag.startsWith("W/"))
+					etag = null;
+				
+				partial = preparePartialDownload(sourceURL, destinationFile, totalBytes, lastModified, etag);
+				alreadyDownloaded = partial.getTotalCommitted();
+				
+				// (this takes care of closing the connection)
+				URLConnection resumeConnection = connection;
+				connection = null;
+				finishedURL = downloadPartial(sourceURL, partial, resumeConnection, lastModified);
+				
+				logger.debug("Moving completed file into place...");
+				partial.complete();
+				partial = null;
+			}
+			else if (getLocalFile(sourceURL) != null)
+			{
+				// (a connection may have been opened for the metadata)
+				cleanup(connection);
+				connection = null;
+				
+				writingDestination = true;
+				copyLocalFile(getLocalFile(sourceURL), destinationFile, totalBytes);
+			}
+			else
+			{
+				if (connection == null)
+				{
+					logger.debug("Opening connection to file...");
+					connection = connector.openConnection(sourceURL);
+				}
+				
+				logger.debug("Opening input and output streams...");
+				inputStream = StallWatchdog.getInstance().monitor(connection.getInputStream(), connection, sourceURL.toString());
+				connection = null;
+				outputStream = openOutputStream(destinationFile);
+				writingDestination = true;
+				
+				downloadUsingStreams(inputStream, outputStream, destinationFile.getName(), totalBytes);
+				
+				logger.debug("Closing output stream...");
+				outputStream.close();
+				outputStream = null;
+				
+				logger.debug("Closing input stream...");
+				inputStream.close();
+				inputStream = null;
+			}
+			
+			if (finishedURL != null)
+				reportTransfer(finishedURL, destinationFile.length() - alreadyDownloaded, System.currentTimeMillis() - startTime);
 			
-			logger.debug("Closing output stream...");
-			outputStream.close();
-			outputStream = null;
 			if (lastModified > 0 && !destinationFile.setLastModified(lastModified))
 				logger.warn("Could not set file modification time for '" + destinationFile.getAbsolutePath() + "'!");
 			
-			logger.debug("Closing input stream...");
-			inputStream.close();
-			inputStream = null;
+			// keep a copy for next time
+			if (useCache)
+			{
+				File cachedFile = DownloadCache.getInstance().store(sourceURL, metadata, destinationFile, false, contentHashes);
+				if (cachedFile != null)
+					DownloadCache.getInstance().release(cachedFile);
+			}
+			
+			if (installing)
+				manifest.recordDownload(destinationFile, sourceURL, metadata);
 			
 			return true;
 		}
@@ -341,6 +680,10 @@ public class Downloader
 			logger.error("An exception was thrown during download!", ioe);
 			fireDownloadFailed(destinationFile.getName(), 0, totalBytes, ioe);
 			
+			// (downloadPartial reports its own mirrors)
+			if (partial == null)
+				reportFailure(sourceURL);
+			
 			return false;
 		}
 		catch (InterruptedException ie)
@@ -348,12 +691,13 @@ public class Downloader
 			logger.warn("The download was interrupted!", ie);
 			fireDownloadCancelled(destinationFile.getName(), 0, totalBytes, ie);
 			
-			// try to delete incomplete file
+			// try to delete incomplete file (a .part file is kept so that we can resume it next time)
 			cleanup(inputStream, outputStream);
 			inputStream = null;
 			outputStream = null;
-			if (!destinationFile.delete())
+			if (writingDestination && !destinationFile.delete())
 				logger.warn("Could not delete incompletely downloaded file '" + destinationFile.getAbsolutePath() + "'!");
+			DirectoryIndex.getInstance().invalidate(destinationFile.getParentFile());
 			
 			// restore interrupt and exit
 			Thread.currentThread().interrupt();
@@ -362,10 +706,201 @@ public class Downloader
 		finally
 		{
 			cleanup(inputStream, outputStream);
+			cleanup(connection);
+			
+			// if we didn't finish, make sure the next attempt knows exactly how far we got
+			if (partial != null)
+			{
+				partial.saveQuietly();
+				logger.info("Keeping " + partial.getTotalCommitted() + " of " + partial.getTotalBytes() + " bytes of '" + destinationFile.getName() + "' so that the download can be resumed");
+			}
+		}
+	}
+	
+	/**
+	 * Copies a file from the download cache if the cache has a file with one
+	 * of the expected content hashes.
+	 */
+	protected boolean materializeFromCache(RemoteMetadata metadata, File destinationFile)
+	{
+		DownloadCache cache = DownloadCache.getInstance();
+		for (Map.Entry<String, String> contentHash: contentHashes.entrySet())
+		{
+			File cachedFile = cache.lookupByHash(contentHash.getKey(), contentHash.getValue());
+			if (cachedFile == null)
+				continue;
+			
+			try
+			{
+				logger.info("Using the cached copy of '" + destinationFile.getName() + "' with " + contentHash.getKey() + " hash " + contentHash.getValue());
+				cache.materialize(cachedFile, destinationFile);
+				
+				if (metadata.getLastModified() > 0 && !destinationFile.setLastModified(metadata.getLastModified()))
+					logger.warn("Could not set file modification time for '" + destinationFile.getAbsolutePath() + "'!");
+				
+				// any leftovers from an earlier attempt are no longer needed
+				PartialDownload.discard(destinationFile);
+				
+				fireNoDownloadNecessary(destinationFile.getName(), 0, destinationFile.length());
+				return true;
+			}
+			catch (IOException ioe)
+			{
+				logger.warn("Could not copy '" + destinationFile.getName() + "' from the download cache", ioe);
+			}
+			finally
+			{
+				cache.release(cachedFile);
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Copies a file from the download cache if the cache has the same version
+	 * of it that the server describes.
+	 */
+	protected boolean materializeFromCache(URL sourceURL, RemoteMetadata metadata, File destinationFile)
+	{
+		DownloadCache cache = DownloadCache.getInstance();
+		File cachedFile = cache.lookup(sourceURL, metadata);
+		if (cachedFile == null)
+			return false;
+		
+		try
+		{
+			logger.info("Using the cached copy of " + sourceURL);
+			cache.materialize(cachedFile, destinationFile);
+			
+			if (metadata.getLastModified() > 0 && !destinationFile.setLastModified(metadata.getLastModified()))
+				logger.warn("Could not set file modification time for '" + destinationFile.getAbsolutePath() + "'!");
+			
+			// any leftovers from an earlier attempt are no longer needed
+			PartialDownload.discard(destinationFile);
+			
+			fireNoDownloadNecessary(destinationFile.getName(), 0, metadata.getContentLength());
+			return true;
+		}
+		catch (IOException ioe)
+		{
+			logger.warn("Could not copy '" + destinationFile.getName() + "' from the download cache", ioe);
+			return false;
+		}
+		finally
+		{
+			cache.release(cachedFile);
+		}
+	}
+	
+	/**
+	 * Extracts an archive, unless the install manifest shows that this version
+	 * of it was already extracted here and nothing has been touched since. If
+	 * the download cache is in use, the archive is extracted from the cached
+	 * copy, which is downloaded first if we don't have it yet; otherwise (or
+	 * if the archive is too big for the cache) it is extracted as it streams
+	 * in.
+	 */
+	protected Boolean downloadArchive(URL archiveURL, File destinationDirectory, ArchiveFormat format, boolean compressedTar)
+	{
+		RemoteMetadata metadata = null;
+		try
+		{
+			metadata = connector.getMetadata(archiveURL);
+		}
+		catch (IOException ioe)
+		{
+			// the usual path will report this properly
+			logger.debug("Could not get the metadata for " + archiveURL + ": " + ioe.getMessage());
+		}
+		
+		InstallManifest manifest = InstallManifest.getInstance();
+		if (metadata != null && manifest.isArchiveCurrent(archiveURL, metadata, destinationDirectory))
+		{
+			logger.info("'" + DownloadCache.getFileName(archiveURL) + "' has not changed since it was extracted");
+			fireNoDownloadNecessary(DownloadCache.getFileName(archiveURL), 0, metadata.getContentLength());
+			return true;
+		}
+		
+		List<File> extractedFiles = new ArrayList<File>();
+		boolean result = extractArchive(archiveURL, metadata, destinationDirectory, format, compressedTar, extractedFiles);
+		
+		if (result && metadata != null)
+			manifest.recordArchive(archiveURL, metadata, destinationDirectory, extractedFiles);
+		
+		return result;
+	}
+	
+	/**
+	 * Extracts an archive, by way of the download cache if possible.
+	 */
+	protected boolean extractArchive(URL archiveURL, RemoteMetadata metadata, File destinationDirectory, ArchiveFormat format, boolean compressedTar, List<File> extractedFiles)
+	{
+		// an archive that is already on disk can be read where it is
+		DownloadCache cache = DownloadCache.getInstance();
+		if (cache.isEnabled() && metadata != null && getLocalFile(archiveURL) == null)
+		{
+			File cachedFile = cache.lookup(archiveURL, metadata);
+			if (cachedFile == null && cache.fits(metadata.getContentLength()))
+			{
+				File stagingFile = cache.getStagingFile(archiveURL, metadata);
+				if (!downloadFile(archiveURL, stagingFile, false))
+					return false;
+				cachedFile = cache.store(archiveURL, metadata, stagingFile, true, null);
+				
+				// if it couldn't be cached after all, we still have it
+				if (cachedFile == null)
+				{
+					try
+					{
+						return downloadFromArchive(stagingFile.toURI().toURL(), destinationDirectory, format, compressedTar, extractedFiles);
+					}
+					catch (MalformedURLException murle)
+					{
+						logger.error("Could not extract from '" + stagingFile.getName() + "'!", murle);
+						return false;
+					}
+					finally
+					{
+						if (!stagingFile.delete())
+							logger.warn("Could not delete '" + stagingFile.getAbsolutePath() + "'!");
+						stagingFile.getParentFile().delete();
+					}
+				}
+			}
+			else if (cachedFile != null)
+			{
+				logger.info("Using the cached copy of " + archiveURL);
+			}
+			
+			if (cachedFile != null)
+			{
+				try
+				{
+					return downloadFromArchive(cachedFile.toURI().toURL(), destinationDirectory, format, compressedTar, extractedFiles);
+				}
+				catch (MalformedURLException murle)
+				{
+					logger.error("Could not extract from '" + cachedFile.getName() + "'!", murle);
+					return false;
+				}
+				finally
+				{
+					cache.release(cachedFile);
+				}
+			}
 		}
+		
+		return downloadFromArchive(archiveURL, destinationDirectory, format, compressedTar, extractedFiles);
 	}
 	
-	protected boolean downloadFromArchive(URL sourceURL, File destinationDirectory, ArchiveFormat format, ObjectHolder<String> tarResultHolder)
+	/**
+	 * Extracts whichever entries of an archive are not up to date. The files
+	 * the archive produces, whether extracted now or already in place, are
+	 * recorded in the install manifest and, if a list is given, added to it.
+	 * The .tar inside a compressed .tar is unpacked as it comes out of the
+	 * decompressor, so that it never has to be written to disk itself.
+	 */
+	protected boolean downloadFromArchive(URL sourceURL, File destinationDirectory, ArchiveFormat format, boolean compressedTar, List<File> extractedFiles)
 	{
 		logger.info("Downloading and extracting from " + sourceURL + " to local directory " + destinationDirectory);
 		String sourceFileName = new File(sourceURL.getPath()).getName();
@@ -373,24 +908,47 @@ public class Downloader
 		String currentEntry = "";
 		long totalBytes = 0;
 		IInArchive archive = null;
-		InputStreamInStream inStream = null;
+		IInStream inStream = null;
 		IArchiveExtractCallback callback = null;
 		try
 		{
-			totalBytes = connector.getContentLength(sourceURL);
-			
-			if (totalBytes < 0)
-				throw new IOException("Server returned invalid Content-Length value of " + totalBytes);
+			long startTime = System.currentTimeMillis();
 			
-			logger.debug("Opening connection to archive...");
-			inStream = new InputStreamInStream(getInputStreamSource(connector, sourceURL, totalBytes), totalBytes);
+			// an archive that is already on disk can be read directly, without emulating seeks on a stream
+			File localFile = getLocalFile(sourceURL);
+			if (localFile != null)
+			{
+				logger.debug("Opening archive file...");
+				FileChannelInStream fileInStream = new FileChannelInStream(localFile, mapLocalArchives);
+				inStream = fileInStream;
+				totalBytes = fileInStream.getSize();
+			}
+			else
+			{
+				totalBytes = connector.getContentLength(sourceURL);
+				
+				if (totalBytes < 0)
+					throw new IOException("Server returned invalid Content-Length value of " + totalBytes);
+				
+				logger.debug("Opening connection to archive...");
+				InputStreamInStream remoteInStream = new InputStreamInStream(getInputStreamSource(connector, sourceURL, totalBytes), totalBytes);
+				remoteInStream.setMaxReconnects(maxReconnects);
+				remoteInStream.setReadAhead(readAheadArchives);
+				if (archiveBlockCacheSize > 0 && supportsRanges(sourceURL))
+					remoteInStream.setBlockCache(new BlockCache(BlockCache.DEFAULT_BLOCK_SIZE, archiveBlockCacheSize * 1024 * 1024, new File(System.getProperty("java.io.tmpdir")), archiveBlockSpillSize * 1024 * 1024));
+				inStream = remoteInStream;
+			}
+			long archiveBytes = totalBytes;
 			archive = SevenZip.openInArchive(format, inStream);
 			int numItems = archive.getNumberOfItems();
 			
 			List<Integer> extractionIndexes = new ArrayList<Integer>();
+			List<Integer> fileIndexes = new ArrayList<Integer>();
 			String[] archiveEntries = new String[numItems];
 			long[] archiveSizes = new long[numItems];
 			long[] archiveModifiedTimes = new long[numItems];
+			long[] archiveCrcs = new long[numItems];
+			CrcIndex crcIndex = CrcIndex.getInstance(destinationDirectory);
 			
 			for (int item = 0; item < numItems; item++)
 			{
@@ -400,21 +958,11 @@ public class Downloader
 				{
 					logger.debug("Path property of item " + item + " is empty!");
 					
-					// if we're expecting a .tar, create a temporary file name and use that
-					if (tarResultHolder != null)
-					{
-						pathProp = InstallerUtils.UUID() + ".tar";
-						tarResultHolder.set(pathProp);
-					}
-					// we're not expecting a .tar, so this is (e.g.) a gzipped single file
-					else
-					{
-						// use the source URL's filename as the name of the extracted file...
-						// (we'll need to normalize the extension again)
-						String normalized = IOUtils.normalizeFileExtension(sourceFileName);
-						// ...but chop off the extension (we know we have an extension since this was recognized as an archive)
-						pathProp = normalized.substring(0, normalized.lastIndexOf('.'));
-					}
+					// use the source URL's filename as the name of the extracted file...
+					// (we'll need to normalize the extension again)
+					String normalized = IOUtils.normalizeFileExtension(sourceFileName);
+					// ...but chop off the extension (we know we have an extension since this was recognized as an archive)
+					pathProp = normalized.substring(0, normalized.lastIndexOf('.'));
 					
 					logger.debug("Using '" + pathProp + "' as path property");
 				}
@@ -429,6 +977,10 @@ public class Downloader
 				Date dateProp = (Date) archive.getProperty(item, PropID.LAST_MODIFICATION_TIME);
 				archiveModifiedTimes[item] = dateProp == null ? -1 : dateProp.getTime();
 				
+				// not every format stores a CRC
+				Number crcProp = (Number) archive.getProperty(item, PropID.CRC);
+				archiveCrcs[item] = crcProp == null ? -1 : (crcProp.longValue() & 0xffffffffL);
+				
 				logger.debug("Checking entry '" + currentEntry + "'");
 				Boolean folderProp = (Boolean) archive.getProperty(item, PropID.IS_FOLDER);
 				if (folderProp != null && folderProp.booleanValue())
@@ -436,9 +988,18 @@ public class Downloader
 					continue;
 				}
 				
+				// the .tar is only a stepping stone, so it doesn't belong in the manifest, and it is never up to date;
+				// its own entries are checked and recorded as they come out of it
+				if (compressedTar)
+				{
+					extractionIndexes.add(item);
+					continue;
+				}
+				fileIndexes.add(item);
+				
 				logger.debug("Checking if the file is up to date...");
 				File destinationFile = IOUtils.syncFileLetterCase(new File(destinationDirectory, currentEntry));
-				if (uptodate(destinationFile, totalBytes))
+				if (uptodate(destinationFile, totalBytes, archiveModifiedTimes[item], crcIndex, archiveCrcs[item]))
 				{
 					fireNoDownloadNecessary(destinationFile.getName(), 0, totalBytes);
 					continue;
@@ -450,27 +1011,29 @@ public class Downloader
 			
 			if (extractionIndexes.size() > 0)
 			{
-				logger.debug("Opening extractor...");
-				callback = getExtractCallback(destinationDirectory, archiveEntries, archiveSizes, archiveModifiedTimes);
-				
-				// extract them all at once
-				int[] items = new int[extractionIndexes.size()];
-				for (int i = 0; i < extractionIndexes.size(); i++)
-					items[i] = extractionIndexes.get(i);
+				if (format == ArchiveFormat.ZIP && prefetchArchiveRanges && supportsRanges(sourceURL) && inStream instanceof InputStreamInStream)
+					prefetchEntries(sourceURL, (InputStreamInStream) inStream, archiveBytes, archiveEntries, extractionIndexes);
 				
-				// do the extraction and watch for InterruptedException since the 7Zip-JBinding API doesn't explicitly declare it
-				try
+				int threads = planExtractionThreads(archive, localFile, compressedTar, extractionIndexes, archiveSizes);
+				if (threads > 1)
 				{
-					archive.extract(items, false, callback);
+					logger.debug("Extracting on " + threads + " threads...");
+					extractInParallel(localFile, format, splitExtraction(extractionIndexes, archiveSizes, threads), destinationDirectory, archiveEntries, archiveModifiedTimes);
 				}
-				catch (SevenZipException sze)
+				else
 				{
-					if (sze.getCause() instanceof InterruptedException)
-						throw (InterruptedException) sze.getCause();
-					else if (sze.getCause() != null && sze.getCause().getCause() instanceof InterruptedException)
-						throw (InterruptedException) sze.getCause().getCause();
+					logger.debug("Opening extractor...");
+					if (compressedTar)
+						callback = getTarExtractCallback(sourceURL, destinationDirectory, extractedFiles);
 					else
-						throw sze;
+						callback = getExtractCallback(destinationDirectory, archiveEntries, archiveSizes, archiveModifiedTimes);
+					
+					// extract them all at once
+					int[] items = new int[extractionIndexes.size()];
+					for (int i = 0; i < extractionIndexes.size(); i++)
+						items[i] = extractionIndexes.get(i);
+					
+					extract(archive, items, callback);
 				}
 			}
 			
@@ -478,86 +1041,1364 @@ public class Downloader
 			archive.close();
 			archive = null;
 			
+			logArchiveStatistics(sourceFileName, inStream);
+			
 			logger.debug("Closing input stream...");
-			inStream.close();
+			cleanup(null, inStream);
 			inStream = null;
 			
+			InstallManifest manifest = InstallManifest.getInstance();
+			for (int item: fileIndexes)
+			{
+				File destinationFile = IOUtils.syncFileLetterCase(new File(destinationDirectory, archiveEntries[item]));
+				manifest.recordExtraction(destinationFile, sourceURL, archiveSizes[item], archiveModifiedTimes[item]);
+				if (archiveCrcs[item] >= 0)
+					crcIndex.record(destinationFile, archiveCrcs[item]);
+				if (extractedFiles != null)
+					extractedFiles.add(destinationFile);
+			}
+			
+			// (this includes the time spent extracting, but the two happen together anyway)
+			reportTransfer(sourceURL, totalBytes, System.currentTimeMillis() - startTime);
+			
 			return true;
 		}
-		catch (SevenZipException sze)
+		catch (SevenZipException sze)
+		{
+			File failedFile = getExtractingFile(callback);
+			if (failedFile != null)
+				currentEntry = failedFile.getName();
+			else if (sourceFileName != null)
+				currentEntry = sourceFileName;
+			else
+				currentEntry = "";
+			
+			logger.error("An exception was thrown during download!", sze);
+			fireDownloadFailed(currentEntry, 0, totalBytes, sze);
+			
+			return false;
+		}
+		catch (IOException ioe)
+		{
+			File failedFile = getExtractingFile(callback);
+			if (failedFile != null)
+				currentEntry = failedFile.getName();
+			else if (sourceFileName != null)
+				currentEntry = sourceFileName;
+			else
+				currentEntry = "";
+			
+			logger.error("An exception was thrown during download!", ioe);
+			fireDownloadFailed(currentEntry, 0, totalBytes, ioe);
+			reportFailure(sourceURL);
+			
+			return false;
+		}
+		catch (InterruptedException ie)
+		{
+			File failedFile = getExtractingFile(callback);
+			currentEntry = (failedFile != null) ? failedFile.getName() : "";
+			
+			logger.warn("The download was interrupted!", ie);
+			fireDownloadCancelled(currentEntry, 0, totalBytes, ie);
+			
+			// try to delete incomplete file
+			cleanup(archive, inStream);
+			archive = null;
+			inStream = null;
+			cleanup(extractingOutStream);
+			extractingOutStream = null;
+			if (extractingFile != null)
+			{
+				if (!extractingFile.delete())
+					logger.warn("Could not delete incompletely downloaded file '" + extractingFile.getAbsolutePath() + "'!");
+				DirectoryIndex.getInstance().invalidate(extractingFile.getParentFile());
+			}
+			
+			// restore interrupt and exit
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		finally
+		{
+			cleanup(archive, inStream);
+			cleanup(extractingOutStream);
+			if (callback instanceof ExtractCallback)
+				((ExtractCallback) callback).abandon();
+		}
+	}
+	
+	/**
+	 * The file that was being extracted when something went wrong, if any.
+	 */
+	protected File getExtractingFile(IArchiveExtractCallback callback)
+	{
+		if (callback instanceof ExtractCallback)
+			return ((ExtractCallback) callback).getOutputFile();
+		return extractingFile;
+	}
+	
+	/**
+	 * Extracts the given entries of an archive, watching for
+	 * InterruptedException since the 7Zip-JBinding API doesn't explicitly
+	 * declare it.
+	 */
+	protected void extract(IInArchive archive, int[] items, IArchiveExtractCallback callback) throws SevenZipException, InterruptedException
+	{
+		try
+		{
+			archive.extract(items, false, callback);
+		}
+		catch (SevenZipException sze)
+		{
+			if (sze.getCause() instanceof InterruptedException)
+				throw (InterruptedException) sze.getCause();
+			else if (sze.getCause() != null && sze.getCause().getCause() instanceof InterruptedException)
+				throw (InterruptedException) sze.getCause().getCause();
+			else
+				throw sze;
+		}
+	}
+	
+	/**
+	 * Works out how many threads to extract the entries of an archive on. Only
+	 * an archive on disk can cheaply be opened more than once, and the entries
+	 * of a solid archive have to be decompressed in order, so anything else
+	 * gets just the one.
+	 */
+	protected int planExtractionThreads(IInArchive archive, File localFile, boolean compressedTar, List<Integer> extractionIndexes, long[] archiveSizes) throws SevenZipException
+	{
+		if (extractionThreads <= 1 || localFile == null || compressedTar || extractionIndexes.size() < 2)
+			return 1;
+		
+		long extractionBytes = 0;
+		for (int item: extractionIndexes)
+			extractionBytes += archiveSizes[item];
+		if (extractionBytes < MIN_PARALLEL_EXTRACTION_SIZE)
+			return 1;
+		
+		if (Boolean.TRUE.equals(archive.getArchiveProperty(PropID.SOLID)))
+		{
+			logger.debug("The archive is solid, so its entries will be extracted in order");
+			return 1;
+		}
+		
+		return Math.min(extractionThreads, extractionIndexes.size());
+	}
+	
+	/**
+	 * Shares out the entries to be extracted so that each part has about the
+	 * same number of bytes.
+	 */
+	protected List<int[]> splitExtraction(List<Integer> extractionIndexes, long[] archiveSizes, int numParts)
+	{
+		final long[] _archiveSizes = archiveSizes;
+		
+		// hand out the biggest entries first, each to whichever part has the fewest bytes so far
+		List<Integer> bySize = new ArrayList<Integer>(extractionIndexes);
+		Collections.sort(bySize, new Comparator<Integer>()
+		{
+			public int compare(Integer first, Integer second)
+			{
+				long difference = _archiveSizes[second] - _archiveSizes[first];
+				return (difference < 0) ? -1 : ((difference > 0) ? 1 : 0);
+			}
+		});
+		
+		List<List<Integer>> parts = new ArrayList<List<Integer>>();
+		long[] partBytes = new long[numParts];
+		for (int i = 0; i < numParts; i++)
+			parts.add(new ArrayList<Integer>());
+		for (int item: bySize)
+		{
+			int smallest = 0;
+			for (int i = 1; i < numParts; i++)
+				if (partBytes[i] < partBytes[smallest])
+					smallest = i;
+			parts.get(smallest).add(item);
+			partBytes[smallest] += archiveSizes[item];
+		}
+		
+		// each part is extracted in archive order, so that its reads move forward through the file
+		List<int[]> result = new ArrayList<int[]>();
+		for (List<Integer> part: parts)
+		{
+			Collections.sort(part);
+			int[] items = new int[part.size()];
+			for (int i = 0; i < items.length; i++)
+				items[i] = part.get(i);
+			result.add(items);
+		}
+		return result;
+	}
+	
+	/**
+	 * Extracts the entries of an archive on disk on several threads at once,
+	 * each with its own view of the archive. If any part fails, the rest are
+	 * stopped.
+	 */
+	protected void extractInParallel(File archiveFile, ArchiveFormat format, List<int[]> parts, File destinationDirectory, String[] archiveEntries, long[] archiveModifiedTimes) throws IOException, InterruptedException
+	{
+		ExtractionProgress progress = new ExtractionProgress(parts.size());
+		CompletionService<Void> completionService = new ExecutorCompletionService<Void>(segmentExecutor);
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		try
+		{
+			for (int i = 0; i < parts.size(); i++)
+			{
+				ExtractCallback partCallback = new ExtractCallback(destinationDirectory, archiveEntries, archiveModifiedTimes, progress, i);
+				futures.add(completionService.submit(new ExtractTask(archiveFile, format, parts.get(i), partCallback)));
+			}
+			
+			// take them as they finish, so that a failure stops the others straight away
+			for (int i = 0; i < parts.size(); i++)
+				awaitSegment(completionService.take());
+		}
+		finally
+		{
+			for (Future<Void> future: futures)
+				future.cancel(true);
+		}
+	}
+	
+	/**
+	 * Downloads whatever is missing from a partial download. If the mirror
+	 * fails partway through, we carry on from the same offset with the next
+	 * mirror that has an identical copy of the file.
+	 * 
+	 * @return the URL that finished the download, or null if the transfers
+	 *         from each mirror have already been reported individually
+	 */
+	protected URL downloadPartial(URL sourceURL, PartialDownload partial, URLConnection connection, long lastModified) throws IOException, InterruptedException
+	{
+		String downloadName = partial.getDestinationFile().getName();
+		URL currentURL = sourceURL;
+		while (true)
+		{
+			try
+			{
+				// big files get split into ranges which are fetched in parallel
+				if (partial.getSegmentCount() > 1)
+				{
+					// the connection we already have is for the whole file, so it's no use here
+					cleanup(connection);
+					connection = null;
+					
+					downloadSegmented(currentURL, partial);
+				}
+				else
+				{
+					URLConnection resumeConnection = connection;
+					connection = null;
+					downloadResumable(currentURL, partial, resumeConnection);
+				}
+				return currentURL;
+			}
+			catch (IOException ioe)
+			{
+				reportFailure(currentURL);
+				partial.saveQuietly();
+				logger.warn("Download of '" + downloadName + "' from " + currentURL + " failed after " + partial.getTotalCommitted() + " of " + partial.getTotalBytes() + " bytes: " + ioe.getMessage());
+				
+				URL nextURL = nextMatchingMirror(currentURL, partial.getTotalBytes(), lastModified);
+				if (nextURL == null)
+					throw ioe;
+				
+				logger.info("Resuming '" + downloadName + "' on mirror " + nextURL + " at byte " + partial.getTotalCommitted());
+				currentURL = nextURL;
+			}
+		}
+	}
+	
+	/**
+	 * Finds the next untried mirror whose copy of the file has the same size
+	 * and modification time as the one we have been downloading, so that the
+	 * bytes we already have can be kept.
+	 */
+	protected URL nextMatchingMirror(URL failedURL, long totalBytes, long lastModified) throws InterruptedException
+	{
+		URL nextURL;
+		while ((nextURL = nextMirror(failedURL)) != null)
+		{
+			if (mirrorMatches(nextURL, totalBytes, lastModified))
+				return nextURL;
+			failedURL = nextURL;
+		}
+		
+		if (Thread.currentThread().isInterrupted())
+			throw new InterruptedException("Thread was interrupted while looking for another mirror");
+		return null;
+	}
+	
+	/**
+	 * Checks that a mirror is reachable and that its copy of the file has the
+	 * expected size and modification time.
+	 */
+	protected boolean mirrorMatches(URL mirrorURL, long totalBytes, long lastModified)
+	{
+		try
+		{
+			RemoteMetadata metadata = connector.getMetadata(mirrorURL);
+			if (metadata.getContentLength() == totalBytes && metadata.getLastModified() == lastModified)
+				return true;
+			
+			logger.warn("Mirror " + mirrorURL + " has a different copy of the file (" + metadata.getContentLength() + " bytes, modified " + metadata.getLastModified() + ") than expected (" + totalBytes + " bytes, modified " + lastModified + "); skipping it");
+		}
+		catch (IOException ioe)
+		{
+			logger.warn("Could not check mirror " + mirrorURL + ": " + ioe.getMessage());
+			reportFailure(mirrorURL);
+		}
+		return false;
+	}
+	
+	protected void logArchiveStatistics(String archiveName, IInStream archiveInStream)
+	{
+		if (!(archiveInStream instanceof InputStreamInStream))
+			return;
+		
+		InputStreamInStream inStream = (InputStreamInStream) archiveInStream;
+		BlockCache blockCache = inStream.getBlockCache();
+		SparseFile sparseFile = inStream.getSparseFile();
+		if (blockCache == null)
+			logger.debug("Read '" + archiveName + "' using " + inStream.getStreamRequests() + " stream(s)");
+		else
+			logger.info("Read '" + archiveName + "' using " + inStream.getStreamRequests() + " stream(s); block cache had " + blockCache.getHits() + " hits and " + blockCache.getMisses() + " misses, with " + blockCache.getSpilledBlocks() + " blocks spilled to disk");
+		if (sparseFile != null)
+			logger.info("Prefetched " + sparseFile.getFilledBytes() + " bytes of '" + archiveName + "'");
+	}
+	
+	/**
+	 * Only HTTP lets us ask for part of a file, which is needed both to resume
+	 * a download and to split it into segments.
+	 */
+	protected boolean supportsRanges(URL sourceURL)
+	{
+		String protocol = sourceURL.getProtocol();
+		return protocol.equalsIgnoreCase("http") || protocol.equalsIgnoreCase("https");
+	}
+	
+	/**
+	 * Gets the file that a file: URL refers to, or null if the URL is for
+	 * something else (or the file isn't there, in which case the usual path
+	 * will report the problem).
+	 */
+	protected File getLocalFile(URL sourceURL)
+	{
+		if (!sourceURL.getProtocol().equalsIgnoreCase("file"))
+			return null;
+		
+		File file;
+		try
+		{
+			file = new File(sourceURL.toURI());
+		}
+		catch (URISyntaxException use)
+		{
+			file = null;
+		}
+		catch (IllegalArgumentException iae)
+		{
+			file = null;
+		}
+		
+		// URLs that are typed in by hand don't always follow the rules (e.g. unescaped spaces, or a UNC host)
+		if (file == null)
+		{
+			String authority = sourceURL.getAuthority();
+			file = new File(((authority == null || authority.length() == 0) ? "" : "//" + authority) + sourceURL.getPath());
+		}
+		
+		return file.isFile() ? file : null;
+	}
+	
+	/**
+	 * Copies a local file (e.g. from a file:// mirror) by letting the
+	 * operating system move the bytes, a chunk at a time so that we can report
+	 * progress and notice if we are cancelled.
+	 */
+	protected void copyLocalFile(File sourceFile, File destinationFile, long totalBytes) throws IOException, InterruptedException
+	{
+		String downloadName = destinationFile.getName();
+		createParentDirectories(destinationFile);
+		
+		FileInputStream inputStream = null;
+		FileOutputStream outputStream = null;
+		try
+		{
+			inputStream = new FileInputStream(sourceFile);
+			long before = DirectoryIndex.getInstance().beforeChange(destinationFile);
+			outputStream = new FileOutputStream(destinationFile);
+			DirectoryIndex.getInstance().added(destinationFile, before);
+			FileChannel inputChannel = inputStream.getChannel();
+			FileChannel outputChannel = outputStream.getChannel();
+			
+			long size = inputChannel.size();
+			if (totalBytes > 0 && size != totalBytes)
+				throw new IOException("'" + sourceFile.getAbsolutePath() + "' is " + size + " bytes long rather than " + totalBytes);
+			
+			logger.debug("Copying...");
+			fireAboutToStart(downloadName, 0, size);
+			
+			long position = 0;
+			while (position < size)
+			{
+				long count = inputChannel.transferTo(position, Math.min(LOCAL_COPY_CHUNK_SIZE, size - position), outputChannel);
+				if (count <= 0)
+					throw new IOException("Copying '" + sourceFile.getAbsolutePath() + "' stopped at byte " + position + " of " + size);
+				position += count;
+				
+				// check for thread interruption
+				if (Thread.interrupted())
+					throw new InterruptedException("Thread was interrupted during file copying");
+				
+				fireProgressReport(downloadName, position, size);
+			}
+			
+			logger.debug("Closing output stream...");
+			outputStream.close();
+			outputStream = null;
+			
+			logger.debug("Copy complete");
+			fireDownloadComplete(downloadName, size, size);
+		}
+		finally
+		{
+			cleanup(inputStream, outputStream);
+		}
+	}
+	
+	/**
+	 * Picks up the state of an earlier attempt at this download if the remote
+	 * file hasn't changed since, or starts a new one otherwise.
+	 */
+	protected PartialDownload preparePartialDownload(URL sourceURL, File destinationFile, long totalBytes, long lastModified, String etag) throws IOException
+	{
+		PartialDownload partial = PartialDownload.load(destinationFile);
+		if (partial != null)
+		{
+			if (partial.matches(totalBytes, lastModified, etag, sourceURL))
+			{
+				logger.info("Resuming download of '" + destinationFile.getName() + "' with " + partial.getTotalCommitted() + " of " + totalBytes + " bytes already downloaded");
+				return partial;
+			}
+			
+			logger.info("The remote copy of '" + destinationFile.getName() + "' has changed since it was partially downloaded, or can't be shown to be the same; starting over");
+		}
+		
+		// split the file into roughly equal ranges (the end points are inclusive, as in HTTP)
+		int numSegments = planSegmentCount(totalBytes);
+		long segmentSize = totalBytes / numSegments;
+		long[] starts = new long[numSegments];
+		long[] ends = new long[numSegments];
+		for (int i = 0; i < numSegments; i++)
+		{
+			starts[i] = i * segmentSize;
+			ends[i] = (i == numSegments - 1) ? (totalBytes - 1) : (starts[i] + segmentSize - 1);
+		}
+		
+		createParentDirectories(destinationFile);
+		return PartialDownload.create(destinationFile, sourceURL, totalBytes, lastModified, etag, starts, ends);
+	}
+	
+	/**
+	 * Decides how many byte ranges a new partial download of this size is split
+	 * into. A file must be at least two segments long for this to kick in.
+	 */
+	protected int planSegmentCount(long totalBytes)
+	{
+		if (downloadSegments >= 2 && totalBytes >= 2 * minSegmentSize)
+			return (int) Math.min(downloadSegments, totalBytes / minSegmentSize);
+		return 1;
+	}
+	
+	/**
+	 * Lists the segments of a partial download that still need work.
+	 */
+	protected List<Integer> getRemainingSegments(PartialDownload partial)
+	{
+		List<Integer> remainingSegments = new ArrayList<Integer>();
+		for (int i = 0; i < partial.getSegmentCount(); i++)
+		{
+			if (partial.getCommitted(i) < partial.getSegmentEnd(i) - partial.getSegmentStart(i) + 1)
+				remainingSegments.add(i);
+		}
+		return remainingSegments;
+	}
+	
+	/**
+	 * Downloads a file as a single stream into its .part file, asking the
+	 * server to skip whatever we already have. If <tt>connection</tt> is not
+	 * null, it must be an unsent request for the whole file, which is used
+	 * instead of opening a new one if there is nothing to skip.
+	 */
+	protected void downloadResumable(URL sourceURL, PartialDownload partial, URLConnection connection) throws IOException, InterruptedException
+	{
+		String downloadName = partial.getDestinationFile().getName();
+		long totalBytes = partial.getTotalBytes();
+		long alreadyDownloaded = partial.getCommitted(0);
+		
+		if (connection != null && alreadyDownloaded > 0)
+		{
+			cleanup(connection);
+			connection = null;
+		}
+		if (connection == null)
+		{
+			logger.debug("Opening connection to file...");
+			connection = connector.openConnection(sourceURL);
+			if (alreadyDownloaded > 0)
+			{
+				connection.setRequestProperty("Range", "bytes=" + alreadyDownloaded + "-");
+				if (partial.getETag(sourceURL) != null)
+					connection.setRequestProperty("If-Range", partial.getETag(sourceURL));
+			}
+		}
+		
+		InputStream inputStream = null;
+		OutputStream outputStream = null;
+		try
+		{
+			logger.debug("Opening input and output streams...");
+			inputStream = StallWatchdog.getInstance().monitor(connection.getInputStream(), connection, sourceURL.toString());
+			
+			// what the server says now trumps whatever it said earlier
+			checkUnchanged(sourceURL, partial, connector.getMetadata(sourceURL, connection));
+			
+			// the server is free to ignore the range and send the whole thing
+			if (alreadyDownloaded > 0 && ((HttpURLConnection) connection).getResponseCode() != HttpURLConnection.HTTP_PARTIAL)
+			{
+				logger.info("The site at " + sourceURL + " did not resume the download; starting over");
+				partial.restart(new long[] { 0 }, new long[] { totalBytes - 1 });
+				alreadyDownloaded = 0;
+			}
+			rememberETag(partial, sourceURL, connection);
+			
+			outputStream = openPartOutputStream(partial);
+			
+			// if the connection fails partway through, pick up where it left off
+			downloadUsingStreams(inputStream, getInputStreamSource(connector, sourceURL, totalBytes), outputStream, downloadName, alreadyDownloaded, totalBytes);
+			
+			logger.debug("Closing output stream...");
+			outputStream.close();
+			outputStream = null;
+		}
+		finally
+		{
+			cleanup(inputStream, outputStream);
+		}
+		
+		if (!partial.isComplete())
+			throw new IOException("Download of '" + downloadName + "' ended after " + partial.getTotalCommitted() + " of " + totalBytes + " bytes");
+	}
+	
+	/**
+	 * Downloads a file as several byte ranges at once. The .part file is
+	 * preallocated to its full size and each range is written directly to its
+	 * own position in the file, so there is nothing to reassemble afterward
+	 * beyond verifying that every range arrived intact. Ranges that were
+	 * partly downloaded by an earlier attempt pick up where they left off. At
+	 * most <tt>downloadSegments</tt> ranges are fetched at a time, no matter
+	 * how many the file was split into. If the server ignores the Range header
+	 * and returns the whole file, we fall back to reading it as a single
+	 * stream.
+	 */
+	protected void downloadSegmented(URL sourceURL, PartialDownload partial) throws IOException, InterruptedException
+	{
+		String downloadName = partial.getDestinationFile().getName();
+		long totalBytes = partial.getTotalBytes();
+		
+		// figure out which ranges still need work
+		List<Integer> remainingSegments = getRemainingSegments(partial);
+		if (remainingSegments.isEmpty())
+			return;
+		
+		logger.info("Downloading '" + downloadName + "' in " + remainingSegments.size() + " of " + partial.getSegmentCount() + " segments");
+		
+		// the first range tells us whether the server supports this at all
+		int firstSegment = remainingSegments.get(0);
+		long firstStart = partial.getSegmentStart(firstSegment) + partial.getCommitted(firstSegment);
+		HttpURLConnection firstConnection = openSegmentConnection(sourceURL, partial, firstSegment);
+		if (firstConnection.getResponseCode() == HttpURLConnection.HTTP_OK)
+		{
+			// (this could also be If-Range telling us that the file has changed, in which case we mustn't mix it with what we have)
+			try
+			{
+				checkUnchanged(sourceURL, partial, connector.getMetadata(sourceURL, firstConnection));
+			}
+			catch (IOException ioe)
+			{
+				cleanup(firstConnection);
+				throw ioe;
+			}
+			
+			logger.warn("The site at " + sourceURL + " returned the entire file instead of a range; falling back to a single stream");
+			partial.restart(new long[] { 0 }, new long[] { totalBytes - 1 });
+			rememberETag(partial, sourceURL, firstConnection);
+			
+			InputStream inputStream = null;
+			OutputStream outputStream = null;
+			try
+			{
+				inputStream = StallWatchdog.getInstance().monitor(firstConnection.getInputStream(), firstConnection, sourceURL.toString());
+				outputStream = openPartOutputStream(partial);
+				
+				// if the connection fails partway through, pick up where it left off
+				downloadUsingStreams(inputStream, getInputStreamSource(connector, sourceURL, totalBytes), outputStream, downloadName, 0, totalBytes);
+				
+				outputStream.close();
+				outputStream = null;
+			}
+			finally
+			{
+				cleanup(inputStream, outputStream);
+			}
+			
+			if (!partial.isComplete())
+				throw new IOException("Download of '" + downloadName + "' ended after " + partial.getTotalCommitted() + " of " + totalBytes + " bytes");
+			return;
+		}
+		checkRangeResponse(firstConnection, sourceURL, firstStart, partial.getSegmentEnd(firstSegment), totalBytes);
+		rememberETag(partial, sourceURL, firstConnection);
+		
+		RandomAccessFile randomAccessFile = new RandomAccessFile(partial.getPartFile(), "rw");
+		FileChannel channel = null;
+		List<Future<Long>> futures = new ArrayList<Future<Long>>();
+		String host = DownloadScheduler.hostOf(sourceURL);
+		int extraConnections = 0;
+		try
+		{
+			channel = randomAccessFile.getChannel();
+			partial.attachChannel(channel);
+			
+			final AtomicLong totalBytesWritten = new AtomicLong(partial.getTotalCommitted());
+			logger.debug("Downloading...");
+			fireAboutToStart(downloadName, totalBytesWritten.get(), totalBytes);
+			
+			// the worker threads take the other ranges one at a time until there are none left;
+			// each of them needs another connection to the host, which it can't have if others are waiting for it
+			Queue<Integer> segmentQueue = new ConcurrentLinkedQueue<Integer>(remainingSegments.subList(1, remainingSegments.size()));
+			int numWorkers = Math.min(downloadSegments, remainingSegments.size());
+			for (int i = 1; i < numWorkers && DownloadScheduler.getInstance().tryAcquireConnection(host); i++)
+			{
+				extraConnections++;
+				futures.add(segmentExecutor.submit(new SegmentTask(sourceURL, channel, partial, segmentQueue, downloadName, totalBytesWritten)));
+			}
+			if (extraConnections + 1 < numWorkers)
+				logger.debug("Using " + (extraConnections + 1) + " of " + numWorkers + " connections to " + host);
+			
+			// the first range is done on this thread, since its connection is already open; then this thread pitches in with the rest
+			downloadSegment(sourceURL, firstConnection, channel, partial, firstSegment, downloadName, totalBytesWritten);
+			new SegmentTask(sourceURL, channel, partial, segmentQueue, downloadName, totalBytesWritten).call();
+			
+			// wait for the rest
+			for (Future<Long> future: futures)
+				awaitSegment(future);
+			
+			// every range was checked as it finished, but make sure the whole thing adds up
+			if (!partial.isComplete() || channel.size() != totalBytes)
+				throw new IOException("Segmented download of '" + downloadName + "' is incomplete; " + partial.getTotalCommitted() + " of " + totalBytes + " bytes were written");
+			
+			logger.debug("Download complete");
+			fireDownloadComplete(downloadName, totalBytes, totalBytes);
+		}
+		finally
+		{
+			// if we're bailing out early, stop any ranges that are still going
+			for (Future<Long> future: futures)
+				future.cancel(true);
+			for (int i = 0; i < extraConnections; i++)
+				DownloadScheduler.getInstance().releaseConnection(host);
+			
+			if (channel != null)
+			{
+				partial.detachChannel(channel);
+				try
+				{
+					channel.close();
+				}
+				catch (IOException ioe)
+				{
+					logger.warn("Could not close file channel!", ioe);
+				}
+			}
+			try
+			{
+				randomAccessFile.close();
+			}
+			catch (IOException ioe)
+			{
+				logger.warn("Could not close file stream!", ioe);
+			}
+		}
+	}
+	
+	/**
+	 * Fetches the uncommitted remainder of one segment of a partial download
+	 * and writes it to the same position in the channel, committing it as it
+	 * goes. If <tt>connection</tt> is null, a new range request is made.
+	 * 
+	 * @return the number of bytes written
+	 */
+	protected long downloadSegment(URL sourceURL, HttpURLConnection connection, FileChannel channel, PartialDownload partial, int segment, String downloadName, AtomicLong totalBytesWritten) throws IOException, InterruptedException
+	{
+		long start = partial.getSegmentStart(segment) + partial.getCommitted(segment);
+		long end = partial.getSegmentEnd(segment);
+		long totalBytes = partial.getTotalBytes();
+		
+		byte[] buffer = new byte[SEGMENT_BUFFER_SIZE];
+		long position = start;
+		long remaining = end - start + 1;
+		int reconnects = 0;
+		
+		while (remaining > 0)
+		{
+			// if the connection failed partway through, ask for whatever is left of the range
+			if (connection == null)
+			{
+				connection = openSegmentConnection(sourceURL, partial, segment);
+				checkRangeResponse(connection, sourceURL, position, end, totalBytes);
+			}
+			
+			InputStream inputStream = StallWatchdog.getInstance().monitor(connection.getInputStream(), connection, sourceURL.toString());
+			try
+			{
+				while (remaining > 0)
+				{
+					int bytesRead = inputStream.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+					if (bytesRead < 0)
+						break;
+					
+					// check for thread interruption
+					if (Thread.interrupted())
+						throw new InterruptedException("Thread was interrupted during stream reading");
+					
+					// positional writes don't disturb the other segments
+					ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, bytesRead);
+					while (byteBuffer.hasRemaining())
+						position += channel.write(byteBuffer, position);
+					remaining -= bytesRead;
+					partial.commit(segment, bytesRead);
+					
+					fireProgressReport(downloadName, totalBytesWritten.addAndGet(bytesRead), totalBytes);
+				}
+				
+				if (remaining > 0)
+					throw new IOException("Segment " + start + "-" + end + " of " + sourceURL + " ended " + remaining + " bytes early");
+			}
+			catch (IOException ioe)
+			{
+				if (reconnects >= maxReconnects)
+					throw ioe;
+				reconnects++;
+				
+				logger.warn("Segment " + start + "-" + end + " of " + sourceURL + " failed at byte " + position + " (" + ioe.getMessage() + "); reconnecting (attempt " + reconnects + " of " + maxReconnects + ")");
+			}
+			finally
+			{
+				try
+				{
+					inputStream.close();
+				}
+				catch (IOException ioe)
+				{
+					logger.warn("Could not close download stream!", ioe);
+				}
+				connection = null;
+			}
+		}
+		
+		return end - start + 1;
+	}
+	
+	/**
+	 * Requests whatever is left of one segment of a partial download. If we
+	 * know the file's ETag, the server is asked to send the whole file instead
+	 * should it have changed in the meantime.
+	 */
+	protected HttpURLConnection openSegmentConnection(URL sourceURL, PartialDownload partial, int segment) throws IOException
+	{
+		long start = partial.getSegmentStart(segment) + partial.getCommitted(segment);
+		HttpURLConnection connection = openRangeConnection(sourceURL, start, partial.getSegmentEnd(segment));
+		if (start > 0 && partial.getETag(sourceURL) != null)
+			connection.setRequestProperty("If-Range", partial.getETag(sourceURL));
+		return connection;
+	}
+	
+	protected void reportTransfer(URL sourceURL, long bytes, long millis)
+	{
+		if (mirrorRanker != null && supportsRanges(sourceURL))
+			mirrorRanker.recordTransfer(sourceURL, bytes, millis);
+	}
+	
+	protected void reportFailure(URL sourceURL)
+	{
+		if (mirrorRanker != null && supportsRanges(sourceURL))
+			mirrorRanker.recordFailure(sourceURL);
+	}
+	
+	/**
+	 * Abandons a connection whose response we don't need (or no longer need).
+	 * Closing the stream rather than disconnecting lets the connection be kept
+	 * alive for the next request if the response was small.
+	 */
+	protected void cleanup(URLConnection connection)
+	{
+		if (connection == null)
+			return;
+		
+		try
+		{
+			connection.getInputStream().close();
+		}
+		catch (IOException ioe)
+		{
+			logger.debug("Could not close abandoned connection: " + ioe.getMessage());
+		}
+	}
+	
+	/**
+	 * Makes sure that a server's response describes the same file that a
+	 * partial download was started with, so that the two are never mixed.
+	 */
+	protected void checkUnchanged(URL sourceURL, PartialDownload partial, RemoteMetadata metadata) throws IOException
+	{
+		if (metadata.getContentLength() >= 0 && metadata.getContentLength() != partial.getTotalBytes())
+			throw new IOException("The size of " + sourceURL + " changed from " + partial.getTotalBytes() + " to " + metadata.getContentLength() + " bytes during the download");
+		if (metadata.getLastModified() > 0 && partial.getLastModified() > 0 && metadata.getLastModified() != partial.getLastModified())
+			throw new IOException("The modification time of " + sourceURL + " changed from " + partial.getLastModified() + " to " + metadata.getLastModified() + " during the download");
+	}
+	
+	/**
+	 * Records the ETag of the file being downloaded so that a later resume can
+	 * make sure it is still getting the same file. Weak validators can't be
+	 * used with If-Range, so they are ignored.
+	 */
+	protected void rememberETag(PartialDownload partial, URL sourceURL, URLConnection connection)
+	{
+		String etag = connection.getHeaderField("ETag");
+		if (etag != null && !etag.startsWith("W/"))
+			partial.setETag(etag, sourceURL);
+	}
+	
+	protected HttpURLConnection openRangeConnection(URL sourceURL, long start, long end) throws IOException
+	{
+		URLConnection connection = connector.openConnection(sourceURL);
+		if (!(connection instanceof HttpURLConnection))
+			throw new IOException("Byte ranges can only be requested over HTTP!");
+		
+		connection.setRequestProperty("Range", "bytes=" + start + "-" + end);
+		return (HttpURLConnection) connection;
+	}
+	
+	/**
+	 * Makes sure the server sent back exactly the range we asked for.
+	 */
+	protected void checkRangeResponse(HttpURLConnection connection, URL sourceURL, long start, long end, long totalBytes) throws IOException
+	{
+		int response = connection.getResponseCode();
+		if (response != HttpURLConnection.HTTP_PARTIAL)
+			throw new IOException("The site at " + sourceURL + " does not support returning partial content!  HTTP response code = " + response);
+		
+		// not every server sends this, but if it's there, it had better match
+		String contentRange = connection.getHeaderField("Content-Range");
+		if (contentRange != null && !contentRange.trim().equals("bytes " + start + "-" + end + "/" + totalBytes))
+			throw new IOException("The site at " + sourceURL + " returned range '" + contentRange + "' instead of " + start + "-" + end + "/" + totalBytes);
+	}
+	
+	/**
+	 * Fetches just the parts of a zip file that the given entries need into a
+	 * sparse file, which 7-Zip then reads in place of the network. This only
+	 * pays off if a good part of the archive can be skipped; otherwise 7-Zip
+	 * might as well read it from start to finish. If anything goes wrong, the
+	 * parts that are missing are simply read as usual.
+	 */
+	protected void prefetchEntries(URL sourceURL, InputStreamInStream inStream, long archiveBytes, String[] archiveEntries, List<Integer> extractionIndexes) throws InterruptedException
+	{
+		String archiveName = DownloadCache.getFileName(sourceURL);
+		
+		// the directory is at the end, which 7-Zip has just read, so this doesn't go back to the network
+		ZipRangePlanner planner = ZipRangePlanner.read(inStream, archiveBytes);
+		if (planner == null)
+			return;
+		
+		List<String> entryNames = new ArrayList<String>();
+		for (int item: extractionIndexes)
+			entryNames.add(archiveEntries[item]);
+		List<long[]> ranges = planner.plan(entryNames, RANGE_GAP);
+		if (ranges == null)
+			return;
+		
+		long plannedBytes = ZipRangePlanner.countBytes(ranges);
+		if (plannedBytes > archiveBytes / 2)
+		{
+			logger.debug("The out-of-date entries take up " + plannedBytes + " of " + archiveBytes + " bytes of '" + archiveName + "'; reading it as usual");
+			return;
+		}
+		
+		logger.info("Fetching " + ranges.size() + " range(s) totalling " + plannedBytes + " of " + archiveBytes + " bytes of '" + archiveName + "'");
+		long startTime = System.currentTimeMillis();
+		try
 		{
-			if (extractingFile != null)
-				currentEntry = extractingFile.getName();
-			else if (sourceFileName != null)
-				currentEntry = sourceFileName;
-			else
-				currentEntry = "";
-			
-			logger.error("An exception was thrown during download!", sze);
-			fireDownloadFailed(currentEntry, 0, totalBytes, sze);
+			SparseFile sparseFile = new SparseFile(new File(System.getProperty("java.io.tmpdir")));
+			inStream.setSparseFile(sparseFile);
 			
-			return false;
+			fetchRanges(sourceURL, ranges, archiveBytes, sparseFile, archiveName);
+			reportTransfer(sourceURL, plannedBytes, System.currentTimeMillis() - startTime);
 		}
 		catch (IOException ioe)
 		{
-			if (extractingFile != null)
-				currentEntry = extractingFile.getName();
-			else if (sourceFileName != null)
-				currentEntry = sourceFileName;
+			logger.warn("Could not fetch the ranges of '" + archiveName + "' ahead of time; the rest will be read as usual", ioe);
+		}
+		finally
+		{
+			progressChannel.flush();
+		}
+	}
+	
+	/**
+	 * Fetches the given ranges of a file into a sparse file. The ranges are
+	 * divided into batches of about the same size, each of which is asked
+	 * for in one request; as with a segmented download, the batches are
+	 * shared out among as many connections as the host allows us.
+	 */
+	protected void fetchRanges(URL sourceURL, List<long[]> ranges, long totalBytes, SparseFile sparseFile, String downloadName) throws IOException, InterruptedException
+	{
+		long plannedBytes = ZipRangePlanner.countBytes(ranges);
+		long batchTarget = Math.max(1, plannedBytes / downloadSegments);
+		
+		Queue<List<long[]>> batchQueue = new ConcurrentLinkedQueue<List<long[]>>();
+		List<long[]> batch = new ArrayList<long[]>();
+		long batchBytes = 0;
+		for (long[] range: ranges)
+		{
+			batch.add(range);
+			batchBytes += range[1] - range[0];
+			if (batchBytes >= batchTarget || batch.size() >= MAX_RANGES_PER_REQUEST)
+			{
+				batchQueue.add(batch);
+				batch = new ArrayList<long[]>();
+				batchBytes = 0;
+			}
+		}
+		if (!batch.isEmpty())
+			batchQueue.add(batch);
+		
+		AtomicLong fetchedBytes = new AtomicLong(0);
+		List<Future<Long>> futures = new ArrayList<Future<Long>>();
+		String host = DownloadScheduler.hostOf(sourceURL);
+		int extraConnections = 0;
+		try
+		{
+			int numWorkers = Math.min(downloadSegments, batchQueue.size());
+			for (int i = 1; i < numWorkers && DownloadScheduler.getInstance().tryAcquireConnection(host); i++)
+			{
+				extraConnections++;
+				futures.add(segmentExecutor.submit(new RangeTask(sourceURL, batchQueue, totalBytes, sparseFile, downloadName, fetchedBytes, plannedBytes)));
+			}
+			
+			new RangeTask(sourceURL, batchQueue, totalBytes, sparseFile, downloadName, fetchedBytes, plannedBytes).call();
+			for (Future<Long> future: futures)
+				awaitSegment(future);
+		}
+		finally
+		{
+			for (Future<Long> future: futures)
+				future.cancel(true);
+			for (int i = 0; i < extraConnections; i++)
+				DownloadScheduler.getInstance().releaseConnection(host);
+		}
+	}
+	
+	/**
+	 * Asks for a batch of ranges in one request. The server may send them back
+	 * as a multipart response, or merge them into a single range, or leave
+	 * some out; any that are left out are asked for again one at a time.
+	 * 
+	 * @return the number of bytes received
+	 */
+	protected long fetchRangeBatch(URL sourceURL, List<long[]> batch, long totalBytes, SparseFile sparseFile, String downloadName, AtomicLong fetchedBytes, long plannedBytes) throws IOException, InterruptedException
+	{
+		HttpURLConnection connection = openRangeConnection(sourceURL, batch);
+		int response = connection.getResponseCode();
+		if (response != HttpURLConnection.HTTP_PARTIAL)
+		{
+			// (this might be the entire file, so don't read it)
+			connection.disconnect();
+			throw new IOException("The site at " + sourceURL + " does not support returning partial content!  HTTP response code = " + response);
+		}
+		
+		long received = 0;
+		String contentType = connection.getContentType();
+		InputStream inputStream = new BufferedInputStream(StallWatchdog.getInstance().monitor(connection.getInputStream(), connection, sourceURL.toString()), SEGMENT_BUFFER_SIZE);
+		try
+		{
+			if (contentType != null && contentType.toLowerCase().startsWith("multipart/byteranges"))
+			{
+				String boundary = getBoundary(contentType);
+				if (boundary == null)
+					throw new IOException("The site at " + sourceURL + " returned a multipart response without a boundary");
+				received = readMultipartRanges(inputStream, boundary, sourceURL, totalBytes, sparseFile, downloadName, fetchedBytes, plannedBytes);
+			}
 			else
-				currentEntry = "";
+			{
+				long[] range = parseContentRange(connection.getHeaderField("Content-Range"), sourceURL, totalBytes);
+				received = copyRange(inputStream, range, sparseFile, downloadName, fetchedBytes, plannedBytes);
+			}
+		}
+		finally
+		{
+			try
+			{
+				inputStream.close();
+			}
+			catch (IOException ioe)
+			{
+				logger.warn("Could not close download stream!", ioe);
+			}
+		}
+		
+		for (long[] range: batch)
+		{
+			if (sparseFile.contains(range[0], range[1]))
+				continue;
+			if (batch.size() == 1)
+				throw new IOException("The site at " + sourceURL + " did not return range " + range[0] + "-" + (range[1] - 1));
+			received += fetchRangeBatch(sourceURL, Collections.singletonList(range), totalBytes, sparseFile, downloadName, fetchedBytes, plannedBytes);
+		}
+		return received;
+	}
+	
+	/**
+	 * Reads each part of a multipart/byteranges response into the sparse file.
+	 * 
+	 * @return the number of bytes received
+	 */
+	protected long readMultipartRanges(InputStream inputStream, String boundary, URL sourceURL, long totalBytes, SparseFile sparseFile, String downloadName, AtomicLong fetchedBytes, long plannedBytes) throws IOException, InterruptedException
+	{
+		String delimiter = "--" + boundary;
+		long received = 0;
+		
+		String line;
+		while ((line = readLine(inputStream)) != null)
+		{
+			line = line.trim();
+			if (line.equals(delimiter + "--"))
+				break;
+			// (this skips the preamble, and the line break after each part)
+			if (!line.equals(delimiter))
+				continue;
 			
-			logger.error("An exception was thrown during download!", ioe);
-			fireDownloadFailed(currentEntry, 0, totalBytes, ioe);
+			long[] range = null;
+			while ((line = readLine(inputStream)) != null && line.length() > 0)
+			{
+				int colon = line.indexOf(':');
+				if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Content-Range"))
+					range = parseContentRange(line.substring(colon + 1), sourceURL, totalBytes);
+			}
+			if (range == null)
+				throw new IOException("The site at " + sourceURL + " returned a part without a Content-Range");
 			
-			return false;
+			received += copyRange(inputStream, range, sparseFile, downloadName, fetchedBytes, plannedBytes);
 		}
-		catch (InterruptedException ie)
+		return received;
+	}
+	
+	/**
+	 * Copies one range from the stream into the sparse file. Whole buffers
+	 * are written at a time, so that the sparse file doesn't end up in
+	 * however many pieces the network happened to deliver.
+	 * 
+	 * @return the number of bytes copied
+	 */
+	protected long copyRange(InputStream inputStream, long[] range, SparseFile sparseFile, String downloadName, AtomicLong fetchedBytes, long plannedBytes) throws IOException, InterruptedException
+	{
+		byte[] buffer = new byte[SEGMENT_BUFFER_SIZE];
+		long position = range[0];
+		while (position < range[1])
 		{
-			currentEntry = (extractingFile != null) ? extractingFile.getName() : "";
-			
-			logger.warn("The download was interrupted!", ie);
-			fireDownloadCancelled(currentEntry, 0, totalBytes, ie);
+			int length = (int) Math.min(buffer.length, range[1] - position);
+			int count = 0;
+			while (count < length)
+			{
+				int bytesRead = inputStream.read(buffer, count, length - count);
+				if (bytesRead < 0)
+					throw new IOException("Range " + range[0] + "-" + (range[1] - 1) + " ended " + (range[1] - position - count) + " bytes early");
+				count += bytesRead;
+			}
 			
-			// try to delete incomplete file
-			cleanup(archive, inStream);
-			archive = null;
-			inStream = null;
-			cleanup(extractingOutStream);
-			extractingOutStream = null;
-			if (extractingFile != null && !extractingFile.delete())
-				logger.warn("Could not delete incompletely downloaded file '" + extractingFile.getAbsolutePath() + "'!");
+			// check for thread interruption
+			if (Thread.interrupted())
+				throw new InterruptedException("Thread was interrupted during stream reading");
 			
-			// restore interrupt and exit
-			Thread.currentThread().interrupt();
-			return false;
+			sparseFile.write(position, buffer, 0, count);
+			position += count;
+			fireProgressReport(downloadName, Math.min(fetchedBytes.addAndGet(count), plannedBytes), plannedBytes);
 		}
-		finally
+		return range[1] - range[0];
+	}
+	
+	/**
+	 * Reads a line of a multipart response, without the line break.
+	 * 
+	 * @return the line, or null at the end of the stream
+	 */
+	protected String readLine(InputStream inputStream) throws IOException
+	{
+		StringBuilder line = new StringBuilder();
+		int b;
+		while ((b = inputStream.read()) >= 0)
 		{
-			cleanup(archive, inStream);
-			cleanup(extractingOutStream);
+			if (b == '\n')
+				break;
+			if (b != '\r')
+				line.append((char) b);
 		}
+		return (b < 0 && line.length() == 0) ? null : line.toString();
 	}
 	
-	protected OutputStream openOutputStream(File file) throws IOException
+	protected String getBoundary(String contentType)
 	{
-		logger.debug("output file: " + file.getAbsolutePath());
+		for (String parameter: contentType.split(";"))
+		{
+			parameter = parameter.trim();
+			if (parameter.toLowerCase().startsWith("boundary="))
+			{
+				String boundary = parameter.substring("boundary=".length()).trim();
+				if (boundary.length() >= 2 && boundary.startsWith("\"") && boundary.endsWith("\""))
+					boundary = boundary.substring(1, boundary.length() - 1);
+				return boundary;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Parses a Content-Range value such as <tt>bytes 100-199/1000</tt>.
+	 * 
+	 * @return the start (inclusive) and end (exclusive) of the range
+	 */
+	protected long[] parseContentRange(String contentRange, URL sourceURL, long totalBytes) throws IOException
+	{
+		if (contentRange != null)
+		{
+			String value = contentRange.trim();
+			int dash = value.indexOf('-');
+			int slash = value.indexOf('/');
+			if (value.toLowerCase().startsWith("bytes ") && dash > 0 && slash > dash)
+			{
+				try
+				{
+					long start = Long.parseLong(value.substring("bytes ".length(), dash).trim());
+					long end = Long.parseLong(value.substring(dash + 1, slash).trim());
+					String total = value.substring(slash + 1).trim();
+					
+					// the file had better not have changed in the meantime
+					if (start >= 0 && start <= end && end < totalBytes && (total.equals("*") || Long.parseLong(total) == totalBytes))
+						return new long[] { start, end + 1 };
+				}
+				catch (NumberFormatException nfe)
+				{
+					// fall through
+				}
+			}
+		}
+		throw new IOException("The site at " + sourceURL + " returned an unexpected range '" + contentRange + "' of a file of " + totalBytes + " bytes");
+	}
+	
+	protected HttpURLConnection openRangeConnection(URL sourceURL, List<long[]> ranges) throws IOException
+	{
+		URLConnection connection = connector.openConnection(sourceURL);
+		if (!(connection instanceof HttpURLConnection))
+			throw new IOException("Byte ranges can only be requested over HTTP!");
 		
-		if (!file.getParentFile().exists())
+		StringBuilder spec = new StringBuilder("bytes=");
+		for (long[] range: ranges)
+		{
+			if (spec.length() > "bytes=".length())
+				spec.append(',');
+			spec.append(range[0]).append('-').append(range[1] - 1);
+		}
+		connection.setRequestProperty("Range", spec.toString());
+		return (HttpURLConnection) connection;
+	}
+	
+	protected void awaitSegment(Future<?> future) throws IOException, InterruptedException
+	{
+		try
+		{
+			future.get();
+		}
+		catch (ExecutionException ee)
+		{
+			Throwable cause = ee.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			else if (cause instanceof InterruptedException)
+				throw (InterruptedException) cause;
+			else if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			else if (cause instanceof Error)
+				throw (Error) cause;
+			
+			IOException ioe = new IOException("Segment download failed");
+			ioe.initCause(cause);
+			throw ioe;
+		}
+	}
+	
+	protected void createParentDirectories(File file) throws IOException
+	{
+		File parent = file.getParentFile();
+		if (!parent.exists())
 		{
 			logger.debug("parent directory not found; creating it");
-			if (!file.getParentFile().mkdirs())
+			long before = DirectoryIndex.getInstance().beforeChange(parent);
+			if (!parent.mkdirs())
 				throw new IOException("Failed to create parent directory for '" + file.getAbsolutePath() + "'");
+			DirectoryIndex.getInstance().added(parent, before);
 		}
+	}
+	
+	protected OutputStream openOutputStream(File file) throws IOException
+	{
+		logger.debug("output file: " + file.getAbsolutePath());
+		
+		createParentDirectories(file);
 		
 		if (!file.exists())
 		{
 			logger.debug("local file not found; creating it");
+			long before = DirectoryIndex.getInstance().beforeChange(file);
 			if (!file.createNewFile())
 				throw new IOException("Failed to create new file '" + file.getAbsolutePath() + "'!");
+			DirectoryIndex.getInstance().added(file, before);
+		}
+		
+		// hash the file underneath the buffer, so that only what reached the file is hashed
+		OutputStream outputStream = new FileOutputStream(file);
+		Map<String, String> expectedHashes = getExpectedHashes(file);
+		if (expectedHashes != null)
+			outputStream = hashWhileWriting(file, outputStream, expectedHashes);
+		
+		return new BufferedOutputStream(outputStream);
+	}
+	
+	/**
+	 * The hashes a file is expected to have, keyed by algorithm, or null if
+	 * the mod doesn't say.
+	 */
+	protected Map<String, String> getExpectedHashes(File file)
+	{
+		if (fileHashes.isEmpty())
+			return null;
+		
+		File directory = destination.isDirectory() ? destination : destination.getAbsoluteFile().getParentFile();
+		String prefix = directory.getAbsolutePath() + File.separator;
+		String path = file.getAbsolutePath();
+		if (!path.startsWith(prefix))
+			return null;
+		
+		return fileHashes.get(getFileHashKey(path.substring(prefix.length())));
+	}
+	
+	/**
+	 * Turns a path within the destination directory into the form that file
+	 * hashes are looked up by.
+	 */
+	public static String getFileHashKey(String fileName)
+	{
+		return fileName.replace('\\', '/').toLowerCase();
+	}
+	
+	/**
+	 * Opens a stream that writes a single-segment partial download from where
+	 * it left off. If the part file is being written in one go from its first
+	 * byte, it is hashed on the way just like any other file; if some of it was
+	 * written earlier, it is left to be hashed after it is moved into place.
+	 */
+	protected OutputStream openPartOutputStream(PartialDownload partial) throws IOException
+	{
+		OutputStream outputStream = partial.openSegmentOutputStream(0);
+		if (partial.getSegmentCount() == 1 && partial.getTotalCommitted() == 0)
+		{
+			Map<String, String> expectedHashes = getExpectedHashes(partial.getDestinationFile());
+			if (expectedHashes != null)
+				outputStream = hashWhileWriting(partial.getDestinationFile(), outputStream, expectedHashes, partial);
 		}
 		
-		return new BufferedOutputStream(new FileOutputStream(file));
+		return new BufferedOutputStream(outputStream);
+	}
+	
+	/**
+	 * Wraps a file's stream so that the file is hashed as it is written. A
+	 * hash that doesn't match is reported as soon as the file is closed.
+	 */
+	protected OutputStream hashWhileWriting(File file, OutputStream outputStream, Map<String, String> expectedHashes)
+	{
+		return hashWhileWriting(file, outputStream, expectedHashes, null);
+	}
+	
+	/**
+	 * Same as above, but for the part file of a partial download, whose hashes
+	 * only count once every byte of it has been written.
+	 */
+	protected OutputStream hashWhileWriting(File file, OutputStream outputStream, Map<String, String> expectedHashes, PartialDownload partial)
+	{
+		final File _file = file;
+		final Map<String, String> _expectedHashes = expectedHashes;
+		final PartialDownload _partial = partial;
+		try
+		{
+			return new DigestingOutputStream(outputStream, expectedHashes.keySet())
+			{
+				@Override
+				protected void hashed(Map<String, String> hashes)
+				{
+					// the rest of it will come through another stream, so this is only the hash of the first part
+					if (_partial != null && !_partial.isComplete())
+					{
+						logger.debug("'" + _file.getName() + "' was not finished, so it will be hashed later");
+						return;
+					}
+					
+					for (Map.Entry<String, String> hash: hashes.entrySet())
+					{
+						String expectedHash = _expectedHashes.get(hash.getKey());
+						if (!hash.getValue().equalsIgnoreCase(expectedHash))
+							logger.error("The " + hash.getKey() + " hash of '" + _file.getName() + "' is " + hash.getValue() + ", but it should be " + expectedHash + "!");
+						else
+							logger.debug("The " + hash.getKey() + " hash of '" + _file.getName() + "' is correct");
+					}
+					writtenHashes.put(_file, hashes);
+				}
+			};
+		}
+		catch (NoSuchAlgorithmException nsae)
+		{
+			// the hash check will report this properly
+			logger.warn("Cannot hash '" + file.getName() + "' as it is written", nsae);
+			return outputStream;
+		}
+	}
+	
+	/**
+	 * Gives the hashes of the files that were hashed as they were written to
+	 * the hash cache. This happens after the files are given their
+	 * modification times, since the cache goes by those.
+	 */
+	protected void recordWrittenHashes()
+	{
+		HashCache cache = hashCache;
+		if (cache != null)
+		{
+			for (Map.Entry<File, Map<String, String>> written: writtenHashes.entrySet())
+			{
+				for (Map.Entry<String, String> hash: written.getValue().entrySet())
+					cache.record(hash.getKey(), written.getKey(), hash.getValue());
+			}
+		}
+		writtenHashes.clear();
 	}
 	
 	protected InputStreamSource getInputStreamSource(Connector connector, URL sourceURL, long totalBytes)
@@ -600,13 +2441,18 @@ public class Downloader
 				}
 				
 				logger.debug("Opening new input stream...");
-				InputStream newInputStream = connection.getInputStream();
+				InputStream newInputStream = StallWatchdog.getInstance().monitor(connection.getInputStream(), connection, _sourceURL.toString());
 				
 				// see if we got to the position we wanted to
 				if (connection instanceof HttpURLConnection)
 				{
 					if (position > 0 && ((HttpURLConnection) connection).getResponseCode() != HttpURLConnection.HTTP_PARTIAL)
 						throw new IOException("The site at " + _sourceURL + " does not support returning partial content!  HTTP response code = " + ((HttpURLConnection) connection).getResponseCode());
+					
+					// the rest of the bytes had better belong to the same file
+					long length = RemoteMetadata.fromConnection(_sourceURL, connection).getContentLength();
+					if (length >= 0 && length != _totalBytes)
+						throw new IOException("The size of " + _sourceURL + " changed from " + _totalBytes + " to " + length + " bytes during the download");
 				}
 				// we couldn't open the stream right at the place we wanted, but let's see if we can jump to it
 				else
@@ -617,33 +2463,116 @@ public class Downloader
 					int tries = 0;
 					while (offset > 0 && tries < MAX_SKIP_TRIES)
 					{
-						long skipped = newInputStream.skip(offset);
-						if (skipped > 0)
-							offset -= skipped;
-						else
-							tries++;
+						long skipped = newInputStream.skip(offset);
+						if (skipped > 0)
+							offset -= skipped;
+						else
+							tries++;
+					}
+				}
+				
+				return newInputStream;
+			}
+		};
+	}
+	
+	protected IArchiveExtractCallback getExtractCallback(File destinationDirectory, String[] archiveEntries, long[] archiveSizes, long[] archiveModifiedTimes)
+	{
+		return new ExtractCallback(destinationDirectory, archiveEntries, archiveModifiedTimes, new ExtractionProgress(1), 0);
+	}
+	
+	/**
+	 * Extracts the single entry of a compressed .tar, which is the .tar
+	 * itself, by unpacking it as it is decompressed. Each file inside is
+	 * checked, extracted and recorded in the install manifest as it goes by.
+	 */
+	protected IArchiveExtractCallback getTarExtractCallback(URL sourceURL, File destinationDirectory, List<File> extractedFiles)
+	{
+		final URL _sourceURL = sourceURL;
+		final File _destinationDirectory = destinationDirectory;
+		final List<File> _extractedFiles = extractedFiles;
+		
+		return new IArchiveExtractCallback()
+		{
+			private long archiveCompletionValue = 0;
+			private long archiveTotalValue = 0;
+			
+			private File currentFile = null;
+			
+			private final TarStreamParser.EntryHandler handler = new TarStreamParser.EntryHandler()
+			{
+				public OutputStream startEntry(TarStreamParser.Entry entry) throws IOException
+				{
+					String name = entry.getName();
+					logger.debug("Checking entry '" + name + "'");
+					
+					// don't let an entry escape the destination directory
+					for (String component: name.split("/"))
+					{
+						if (component.equals(".."))
+						{
+							logger.warn("Skipping entry '" + name + "' because it points outside the destination directory!");
+							return null;
+						}
+					}
+					
+					if (entry.isFolder())
+					{
+						File folder = new File(_destinationDirectory, name);
+						if (!folder.exists())
+						{
+							long before = DirectoryIndex.getInstance().beforeChange(folder);
+							if (!folder.mkdirs())
+								throw new IOException("Could not create directory '" + folder.getAbsolutePath() + "'");
+							DirectoryIndex.getInstance().added(folder, before);
+						}
+						return null;
+					}
+					else if (!entry.isFile())
+					{
+						logger.debug("Skipping entry '" + name + "' because it is not a file or a folder");
+						return null;
+					}
+					
+					currentFile = IOUtils.syncFileLetterCase(new File(_destinationDirectory, name));
+					
+					logger.debug("Checking if the file is up to date...");
+					if (uptodate(currentFile, entry.getSize(), entry.getModifiedTime()))
+					{
+						fireNoDownloadNecessary(currentFile.getName(), 0, entry.getSize());
+						return null;
+					}
+					
+					logger.debug("Opening output stream...");
+					extractingFile = currentFile;
+					OutputStream outputStream = openOutputStream(extractingFile);
+					
+					logger.debug("Downloading...");
+					fireAboutToStart(currentFile.getName(), archiveCompletionValue, archiveTotalValue);
+					return outputStream;
+				}
+				
+				public void endEntry(TarStreamParser.Entry entry) throws IOException
+				{
+					if (currentFile == null)
+						return;
+					
+					if (extractingFile != null)
+					{
+						if (entry.getModifiedTime() > 0 && !extractingFile.setLastModified(entry.getModifiedTime()))
+							logger.warn("Could not set file modification time for '" + extractingFile.getAbsolutePath() + "'!");
+						
+						logger.debug("Download complete");
+						fireDownloadComplete(extractingFile.getName(), archiveCompletionValue, archiveTotalValue);
+						extractingFile = null;
 					}
+					
+					InstallManifest.getInstance().recordExtraction(currentFile, _sourceURL, entry.getSize(), entry.getModifiedTime());
+					if (_extractedFiles != null)
+						_extractedFiles.add(currentFile);
+					currentFile = null;
 				}
-				
-				return newInputStream;
-			}
-		};
-	}
-	
-	protected IArchiveExtractCallback getExtractCallback(File destinationDirectory, String[] archiveEntries, long[] archiveSizes, long[] archiveModifiedTimes)
-	{
-		final File _destinationDirectory = destinationDirectory;
-		final String[] _archiveEntries = archiveEntries;
-		//final long[] _archiveSizes = archiveSizes;
-		final long[] _archiveModifiedTimes = archiveModifiedTimes;
-		
-		return new IArchiveExtractCallback()
-		{
-			private long archiveCompletionValue = 0;
-			private long archiveTotalValue = 0;
-			
-			private int currentIndex = -1;
-			private ExtractAskMode currentExtractMode;
+			};
 			
 			public ISequentialOutStream getStream(int index, ExtractAskMode extractAskMode) throws SevenZipException
 			{
@@ -651,22 +2580,11 @@ public class Downloader
 				if (Thread.interrupted())
 					throw new SevenZipException(new InterruptedException("Thread was interrupted during 7Zip extraction"));
 				
-				currentIndex = index;
-				currentExtractMode = extractAskMode;
-				
 				switch (extractAskMode)
 				{
 					case EXTRACT:
-						try
-						{
-							logger.debug("Opening output stream...");
-							extractingFile = IOUtils.syncFileLetterCase(new File(_destinationDirectory, _archiveEntries[index]));
-							extractingOutStream = new OutputStreamSequentialOutStream(openOutputStream(extractingFile));
-						}
-						catch (IOException ioe)
-						{
-							throw new SevenZipException("Error opening output stream", ioe);
-						}
+						extractingFile = null;
+						extractingOutStream = new OutputStreamSequentialOutStream(new TarStreamParser(handler));
 						break;
 					
 					case TEST:
@@ -689,16 +2607,6 @@ public class Downloader
 				// check for thread interruption
 				if (Thread.interrupted())
 					throw new SevenZipException(new InterruptedException("Thread was interrupted during 7Zip extraction"));
-				
-				if (extractAskMode == ExtractAskMode.EXTRACT)
-				{
-					logger.debug("Downloading...");
-					fireAboutToStart(_archiveEntries[currentIndex], archiveCompletionValue, archiveTotalValue);
-				}
-				else if (extractAskMode == ExtractAskMode.SKIP)
-				{
-					logger.debug("Skipping...");
-				}
 			}
 			
 			public void setOperationResult(ExtractOperationResult extractOperationResult) throws SevenZipException
@@ -707,66 +2615,29 @@ public class Downloader
 				if (Thread.interrupted())
 					throw new SevenZipException(new InterruptedException("Thread was interrupted during 7Zip extraction"));
 				
-				// if an entry actually produced an error, we should throw an exception
-				SevenZipException exception = null;
-				
-				switch (extractOperationResult)
+				if (extractOperationResult != ExtractOperationResult.OK)
 				{
-					case OK:
-						if (currentExtractMode == ExtractAskMode.EXTRACT)
-						{
-							logger.debug("Download complete");
-							fireDownloadComplete(_archiveEntries[currentIndex], archiveCompletionValue, archiveTotalValue);
-						}
-						break;
-					
-					case UNSUPPORTEDMETHOD:
-						logger.warn("Extraction failed due to unknown compression method!");
-						exception = new SevenZipException("Unknown compression method");
-						if (currentIndex >= 0)
-							fireDownloadFailed(_archiveEntries[currentIndex], archiveCompletionValue, archiveTotalValue, exception);
-						break;
-					
-					case DATAERROR:
-						logger.warn("Extraction failed due to data error!");
-						exception = new SevenZipException("Data error");
-						if (currentIndex >= 0)
-							fireDownloadFailed(_archiveEntries[currentIndex], archiveCompletionValue, archiveTotalValue, exception);
-						break;
-					
-					case CRCERROR:
-						logger.warn("Extraction failed due to CRC error!");
-						exception = new SevenZipException("CRC error");
-						if (currentIndex >= 0)
-							fireDownloadFailed(_archiveEntries[currentIndex], archiveCompletionValue, archiveTotalValue, exception);
-						break;
-					
-					default:
-						exception = new SevenZipException("Unknown operation result: " + extractOperationResult.name());
+					logger.warn("Extraction failed with result " + extractOperationResult.name() + "!");
+					throw new SevenZipException("Extraction failed: " + extractOperationResult.name());
 				}
 				
 				if (extractingOutStream != null)
 				{
+					// closing the parser is what tells us whether the .tar was complete
 					try
 					{
-						logger.debug("Closing output stream...");
+						logger.debug("Closing tar stream...");
 						extractingOutStream.close();
-						if (_archiveModifiedTimes[currentIndex] > 0 && !extractingFile.setLastModified(_archiveModifiedTimes[currentIndex]))
-							logger.warn("Could not set file modification time for '" + extractingFile.getAbsolutePath() + "'!");
 					}
 					catch (IOException ioe)
 					{
-						logger.warn("Could not close file stream!", ioe);
+						throw new SevenZipException("Error reading tar file", ioe);
 					}
 					finally
 					{
-						extractingFile = null;
 						extractingOutStream = null;
 					}
 				}
-				
-				if (exception != null)
-					throw exception;
 			}
 			
 			public void setCompleted(long completeValue) throws SevenZipException
@@ -776,8 +2647,8 @@ public class Downloader
 					throw new SevenZipException(new InterruptedException("Thread was interrupted during 7Zip extraction"));
 				
 				archiveCompletionValue = completeValue;
-				if (currentExtractMode == ExtractAskMode.EXTRACT)
-					fireProgressReport(_archiveEntries[currentIndex], archiveCompletionValue, archiveTotalValue);
+				if (extractingFile != null)
+					fireProgressReport(extractingFile.getName(), archiveCompletionValue, archiveTotalValue);
 				else
 					fireProgressReport(XSTR.getString("progressBarWorking2"), archiveCompletionValue, archiveTotalValue);
 			}
@@ -795,26 +2666,78 @@ public class Downloader
 	
 	protected void downloadUsingStreams(InputStream inputStream, OutputStream outputStream, String downloadName, long downloadTotalSize) throws IOException, InterruptedException
 	{
-		long totalBytesWritten = 0;
+		downloadUsingStreams(inputStream, outputStream, downloadName, 0, downloadTotalSize);
+	}
+	
+	/**
+	 * Copies the stream as usual, but reports progress as if
+	 * <tt>alreadyDownloaded</tt> bytes had been received beforehand (i.e. when
+	 * resuming a download).
+	 */
+	protected void downloadUsingStreams(InputStream inputStream, OutputStream outputStream, String downloadName, long alreadyDownloaded, long downloadTotalSize) throws IOException, InterruptedException
+	{
+		downloadUsingStreams(inputStream, null, outputStream, downloadName, alreadyDownloaded, downloadTotalSize);
+	}
+	
+	/**
+	 * Copies the stream as above. If <tt>reconnectSource</tt> is not null and
+	 * the stream fails partway through, the source is asked for a new stream
+	 * at the byte we had reached, up to <tt>maxReconnects</tt> times. The
+	 * positions are counted from the start of the file, including the bytes
+	 * that were already downloaded.
+	 */
+	protected void downloadUsingStreams(InputStream inputStream, InputStreamSource reconnectSource, OutputStream outputStream, String downloadName, long alreadyDownloaded, long downloadTotalSize) throws IOException, InterruptedException
+	{
+		long totalBytesWritten = alreadyDownloaded;
+		InputStream currentInputStream = inputStream;
+		int reconnects = 0;
 		
 		logger.debug("Downloading...");
 		fireAboutToStart(downloadName, totalBytesWritten, downloadTotalSize);
 		
-		int bytesRead = 0;
-		while ((bytesRead = inputStream.read(downloadBuffer)) != -1)
+		try
 		{
-			// check for thread interruption
-			if (Thread.interrupted())
-				throw new InterruptedException("Thread was interrupted during stream reading");
-			
-			outputStream.write(downloadBuffer, 0, bytesRead);
-			totalBytesWritten += bytesRead;
-			
-			// check for thread interruption
-			if (Thread.interrupted())
-				throw new InterruptedException("Thread was interrupted during stream writing");
-			
-			fireProgressReport(downloadName, totalBytesWritten, downloadTotalSize);
+			while (true)
+			{
+				int bytesRead;
+				try
+				{
+					bytesRead = currentInputStream.read(downloadBuffer);
+				}
+				catch (IOException ioe)
+				{
+					if (reconnectSource == null || reconnects >= maxReconnects)
+						throw ioe;
+					if (Thread.interrupted())
+						throw new InterruptedException("Thread was interrupted during stream reading");
+					reconnects++;
+					
+					logger.warn("Download of '" + downloadName + "' failed at byte " + totalBytesWritten + " (" + ioe.getMessage() + "); reconnecting (attempt " + reconnects + " of " + maxReconnects + ")");
+					currentInputStream = reconnectSource.recycleInputStream(currentInputStream, totalBytesWritten);
+					continue;
+				}
+				if (bytesRead == -1)
+					break;
+				
+				// check for thread interruption
+				if (Thread.interrupted())
+					throw new InterruptedException("Thread was interrupted during stream reading");
+				
+				outputStream.write(downloadBuffer, 0, bytesRead);
+				totalBytesWritten += bytesRead;
+				
+				// check for thread interruption
+				if (Thread.interrupted())
+					throw new InterruptedException("Thread was interrupted during stream writing");
+				
+				fireProgressReport(downloadName, totalBytesWritten, downloadTotalSize);
+			}
+		}
+		finally
+		{
+			// the caller only knows about the stream it gave us
+			if (currentInputStream != inputStream)
+				cleanup(currentInputStream, null);
 		}
 		
 		logger.debug("Download complete");
@@ -826,6 +2749,50 @@ public class Downloader
 		return destinationFile.exists() && (totalBytes > 0) && (destinationFile.length() == totalBytes);
 	}
 	
+	/**
+	 * Checks a downloaded file against the install manifest, or if it isn't
+	 * in the manifest, by its length alone. A file the manifest knows about
+	 * but which has been changed since is never up to date.
+	 */
+	protected boolean uptodate(File destinationFile, InstallManifest.FileRecord record, RemoteMetadata metadata)
+	{
+		if (record != null)
+			return record.matches(metadata);
+		return !InstallManifest.getInstance().contains(destinationFile) && uptodate(destinationFile, metadata.getContentLength());
+	}
+	
+	/**
+	 * Checks an extracted file against the install manifest, or if it isn't
+	 * in the manifest, by its length alone. A file the manifest knows about
+	 * but which has been changed since is never up to date.
+	 */
+	protected boolean uptodate(File destinationFile, long entrySize, long entryModified)
+	{
+		InstallManifest manifest = InstallManifest.getInstance();
+		InstallManifest.FileRecord record = manifest.getRecord(destinationFile);
+		if (record != null)
+			return record.matches(entrySize, entryModified);
+		return !manifest.contains(destinationFile) && uptodate(destinationFile, entrySize);
+	}
+	
+	/**
+	 * Checks an extracted file against the install manifest, or failing that,
+	 * against the CRC of its archive entry. The CRC catches a file of the
+	 * right length but with the wrong contents, and vouches for a file that
+	 * the manifest doesn't know about or that was touched but not changed.
+	 * The file is only read if its CRC isn't already in the index.
+	 */
+	protected boolean uptodate(File destinationFile, long entrySize, long entryModified, CrcIndex crcIndex, long entryCrc)
+	{
+		if (entryCrc < 0)
+			return uptodate(destinationFile, entrySize, entryModified);
+		
+		InstallManifest.FileRecord record = InstallManifest.getInstance().getRecord(destinationFile);
+		if (record != null && record.matches(entrySize, entryModified))
+			return true;
+		return destinationFile.exists() && destinationFile.length() == entrySize && crcIndex.getCrc(destinationFile) == entryCrc;
+	}
+	
 	protected void cleanup(InputStream inputStream, OutputStream outputStream)
 	{
 		if (outputStream != null)
@@ -853,7 +2820,7 @@ public class Downloader
 		}
 	}
 	
-	protected void cleanup(IInArchive archive, InputStreamInStream inStream)
+	protected void cleanup(IInArchive archive, IInStream inStream)
 	{
 		if (archive != null)
 		{
@@ -867,11 +2834,12 @@ public class Downloader
 			}
 		}
 		
-		if (inStream != null)
+		// (all of ours can be closed)
+		if (inStream instanceof Closeable)
 		{
 			try
 			{
-				inStream.close();
+				((Closeable) inStream).close();
 			}
 			catch (IOException ioe)
 			{
@@ -907,6 +2875,7 @@ public class Downloader
 	
 	protected void fireNoDownloadNecessary(final String downloadName, final long downloadedBytes, final long totalBytes)
 	{
+		progressChannel.flush();
 		EventQueue.invokeLater(new Runnable()
 		{
 			public void run()
@@ -927,6 +2896,7 @@ public class Downloader
 	
 	protected void fireAboutToStart(final String downloadName, final long downloadedBytes, final long totalBytes)
 	{
+		progressChannel.flush();
 		EventQueue.invokeLater(new Runnable()
 		{
 			public void run()
@@ -945,28 +2915,14 @@ public class Downloader
 		});
 	}
 	
-	protected void fireProgressReport(final String downloadName, final long downloadedBytes, final long totalBytes)
+	protected void fireProgressReport(String downloadName, long downloadedBytes, long totalBytes)
 	{
-		EventQueue.invokeLater(new Runnable()
-		{
-			public void run()
-			{
-				DownloadEvent event = null;
-				for (DownloadListener listener: downloadListeners)
-				{
-					// lazy instantiation of the event
-					if (event == null)
-						event = new DownloadEvent(this, downloadName, downloadedBytes, totalBytes);
-					
-					// fire it
-					listener.downloadProgressReport(event);
-				}
-			}
-		});
+		progressChannel.report(downloadName, downloadedBytes, totalBytes);
 	}
 	
 	protected void fireDownloadComplete(final String downloadName, final long downloadedBytes, final long totalBytes)
 	{
+		progressChannel.flush();
 		EventQueue.invokeLater(new Runnable()
 		{
 			public void run()
@@ -987,6 +2943,7 @@ public class Downloader
 	
 	protected void fireDownloadFailed(final String downloadName, final long downloadedBytes, final long totalBytes, final Exception exception)
 	{
+		progressChannel.flush();
 		EventQueue.invokeLater(new Runnable()
 		{
 			public void run()
@@ -1007,6 +2964,7 @@ public class Downloader
 	
 	protected void fireDownloadCancelled(final String downloadName, final long downloadedBytes, final long totalBytes, final Exception exception)
 	{
+		progressChannel.flush();
 		EventQueue.invokeLater(new Runnable()
 		{
 			public void run()
@@ -1025,6 +2983,356 @@ public class Downloader
 		});
 	}
 	
+	/**
+	 * Downloads ranges of a segmented download, taking them from a shared
+	 * queue until it is empty.
+	 */
+	protected class SegmentTask implements Callable<Long>
+	{
+		private final URL sourceURL;
+		private final FileChannel channel;
+		private final PartialDownload partial;
+		private final Queue<Integer> segmentQueue;
+		private final String downloadName;
+		private final AtomicLong totalBytesWritten;
+		
+		public SegmentTask(URL sourceURL, FileChannel channel, PartialDownload partial, Queue<Integer> segmentQueue, String downloadName, AtomicLong totalBytesWritten)
+		{
+			this.sourceURL = sourceURL;
+			this.channel = channel;
+			this.partial = partial;
+			this.segmentQueue = segmentQueue;
+			this.downloadName = downloadName;
+			this.totalBytesWritten = totalBytesWritten;
+		}
+		
+		public Long call() throws IOException, InterruptedException
+		{
+			long written = 0;
+			Integer segment;
+			while ((segment = segmentQueue.poll()) != null)
+				written += downloadSegment(sourceURL, null, channel, partial, segment, downloadName, totalBytesWritten);
+			return written;
+		}
+	}
+	
+	/**
+	 * Fetches batches of ranges for a sparse file until there are none left.
+	 */
+	protected class RangeTask implements Callable<Long>
+	{
+		private final URL sourceURL;
+		private final Queue<List<long[]>> batchQueue;
+		private final long totalBytes;
+		private final SparseFile sparseFile;
+		private final String downloadName;
+		private final AtomicLong fetchedBytes;
+		private final long plannedBytes;
+		
+		public RangeTask(URL sourceURL, Queue<List<long[]>> batchQueue, long totalBytes, SparseFile sparseFile, String downloadName, AtomicLong fetchedBytes, long plannedBytes)
+		{
+			this.sourceURL = sourceURL;
+			this.batchQueue = batchQueue;
+			this.totalBytes = totalBytes;
+			this.sparseFile = sparseFile;
+			this.downloadName = downloadName;
+			this.fetchedBytes = fetchedBytes;
+			this.plannedBytes = plannedBytes;
+		}
+		
+		public Long call() throws IOException, InterruptedException
+		{
+			long fetched = 0;
+			List<long[]> batch;
+			while ((batch = batchQueue.poll()) != null)
+				fetched += fetchRangeBatch(sourceURL, batch, totalBytes, sparseFile, downloadName, fetchedBytes, plannedBytes);
+			return fetched;
+		}
+	}
+	
+	/**
+	 * Extracts the chosen entries of an archive into the destination
+	 * directory. Each callback keeps track of its own output, so that several
+	 * can extract from the same archive at once; they then share an
+	 * ExtractionProgress, so that progress is still reported for the archive
+	 * as a whole.
+	 */
+	protected class ExtractCallback implements IArchiveExtractCallback
+	{
+		private final File destinationDirectory;
+		private final String[] archiveEntries;
+		private final long[] archiveModifiedTimes;
+		private final ExtractionProgress progress;
+		private final int part;
+		
+		private int currentIndex = -1;
+		private ExtractAskMode currentExtractMode;
+		private File outputFile = null;
+		private OutputStreamSequentialOutStream outputStream = null;
+		
+		public ExtractCallback(File destinationDirectory, String[] archiveEntries, long[] archiveModifiedTimes, ExtractionProgress progress, int part)
+		{
+			this.destinationDirectory = destinationDirectory;
+			this.archiveEntries = archiveEntries;
+			this.archiveModifiedTimes = archiveModifiedTimes;
+			this.progress = progress;
+			this.part = part;
+		}
+		
+		/**
+		 * The file being extracted right now, if any.
+		 */
+		public File getOutputFile()
+		{
+			return outputFile;
+		}
+		
+		/**
+		 * Closes and deletes the file being extracted, if it wasn't finished.
+		 */
+		public void abandon()
+		{
+			if (outputStream == null)
+				return;
+			
+			cleanup(outputStream);
+			outputStream = null;
+			if (outputFile != null)
+			{
+				if (!outputFile.delete())
+					logger.warn("Could not delete incompletely downloaded file '" + outputFile.getAbsolutePath() + "'!");
+				DirectoryIndex.getInstance().invalidate(outputFile.getParentFile());
+			}
+			outputFile = null;
+		}
+		
+		public ISequentialOutStream getStream(int index, ExtractAskMode extractAskMode) throws SevenZipException
+		{
+			// check for thread interruption
+			if (Thread.interrupted())
+				throw new SevenZipException(new InterruptedException("Thread was interrupted during 7Zip extraction"));
+			
+			currentIndex = index;
+			currentExtractMode = extractAskMode;
+			
+			switch (extractAskMode)
+			{
+				case EXTRACT:
+					try
+					{
+						logger.debug("Opening output stream...");
+						outputFile = IOUtils.syncFileLetterCase(new File(destinationDirectory, archiveEntries[index]));
+						outputStream = new OutputStreamSequentialOutStream(openOutputStream(outputFile));
+					}
+					catch (IOException ioe)
+					{
+						throw new SevenZipException("Error opening output stream", ioe);
+					}
+					break;
+				
+				case TEST:
+					throw new UnsupportedOperationException("Testing of archives not supported");
+				
+				case SKIP:
+					outputFile = null;
+					outputStream = null;
+					break;
+				
+				default:
+					throw new IllegalArgumentException("Unknown ask mode");
+			}
+			
+			return outputStream;
+		}
+		
+		public void prepareOperation(ExtractAskMode extractAskMode) throws SevenZipException
+		{
+			// check for thread interruption
+			if (Thread.interrupted())
+				throw new SevenZipException(new InterruptedException("Thread was interrupted during 7Zip extraction"));
+			
+			if (extractAskMode == ExtractAskMode.EXTRACT)
+			{
+				logger.debug("Downloading...");
+				fireAboutToStart(archiveEntries[currentIndex], progress.getCompleted(), progress.getTotal());
+			}
+			else if (extractAskMode == ExtractAskMode.SKIP)
+			{
+				logger.debug("Skipping...");
+			}
+		}
+		
+		public void setOperationResult(ExtractOperationResult extractOperationResult) throws SevenZipException
+		{
+			// check for thread interruption
+			if (Thread.interrupted())
+				throw new SevenZipException(new InterruptedException("Thread was interrupted during 7Zip extraction"));
+			
+			// if an entry actually produced an error, we should throw an exception
+			SevenZipException exception = null;
+			
+			switch (extractOperationResult)
+			{
+				case OK:
+					if (currentExtractMode == ExtractAskMode.EXTRACT)
+					{
+						logger.debug("Download complete");
+						fireDownloadComplete(archiveEntries[currentIndex], progress.getCompleted(), progress.getTotal());
+					}
+					break;
+				
+				case UNSUPPORTEDMETHOD:
+					logger.warn("Extraction failed due to unknown compression method!");
+					exception = new SevenZipException("Unknown compression method");
+					if (currentIndex >= 0)
+						fireDownloadFailed(archiveEntries[currentIndex], progress.getCompleted(), progress.getTotal(), exception);
+					break;
+				
+				case DATAERROR:
+					logger.warn("Extraction failed due to data error!");
+					exception = new SevenZipException("Data error");
+					if (currentIndex >= 0)
+						fireDownloadFailed(archiveEntries[currentIndex], progress.getCompleted(), progress.getTotal(), exception);
+					break;
+				
+				case CRCERROR:
+					logger.warn("Extraction failed due to CRC error!");
+					exception = new SevenZipException("CRC error");
+					if (currentIndex >= 0)
+						fireDownloadFailed(archiveEntries[currentIndex], progress.getCompleted(), progress.getTotal(), exception);
+					break;
+				
+				default:
+					exception = new SevenZipException("Unknown operation result: " + extractOperationResult.name());
+			}
+			
+			if (outputStream != null)
+			{
+				try
+				{
+					logger.debug("Closing output stream...");
+					outputStream.close();
+					if (archiveModifiedTimes[currentIndex] > 0 && !outputFile.setLastModified(archiveModifiedTimes[currentIndex]))
+						logger.warn("Could not set file modification time for '" + outputFile.getAbsolutePath() + "'!");
+				}
+				catch (IOException ioe)
+				{
+					logger.warn("Could not close file stream!", ioe);
+				}
+				finally
+				{
+					outputFile = null;
+					outputStream = null;
+				}
+			}
+			
+			if (exception != null)
+				throw exception;
+		}
+		
+		public void setCompleted(long completeValue) throws SevenZipException
+		{
+			// check for thread interruption
+			if (Thread.interrupted())
+				throw new SevenZipException(new InterruptedException("Thread was interrupted during 7Zip extraction"));
+			
+			progress.setCompleted(part, completeValue);
+			if (currentExtractMode == ExtractAskMode.EXTRACT)
+				fireProgressReport(archiveEntries[currentIndex], progress.getCompleted(), progress.getTotal());
+			else
+				fireProgressReport(XSTR.getString("progressBarWorking2"), progress.getCompleted(), progress.getTotal());
+		}
+		
+		public void setTotal(long total) throws SevenZipException
+		{
+			// check for thread interruption
+			if (Thread.interrupted())
+				throw new SevenZipException(new InterruptedException("Thread was interrupted during 7Zip extraction"));
+			
+			progress.setTotal(part, total);
+		}
+	}
+	
+	/**
+	 * Adds up the progress of the callbacks extracting from one archive, each
+	 * of which only knows about its own share of the entries.
+	 */
+	protected static class ExtractionProgress
+	{
+		private final long[] completed;
+		private final long[] totals;
+		
+		public ExtractionProgress(int parts)
+		{
+			this.completed = new long[parts];
+			this.totals = new long[parts];
+		}
+		
+		public synchronized void setCompleted(int part, long value)
+		{
+			completed[part] = value;
+		}
+		
+		public synchronized void setTotal(int part, long total)
+		{
+			totals[part] = total;
+		}
+		
+		public synchronized long getCompleted()
+		{
+			long sum = 0;
+			for (long value: completed)
+				sum += value;
+			return sum;
+		}
+		
+		public synchronized long getTotal()
+		{
+			long sum = 0;
+			for (long total: totals)
+				sum += total;
+			return sum;
+		}
+	}
+	
+	/**
+	 * Extracts one share of the entries of an archive on disk, through its
+	 * own view of the archive.
+	 */
+	protected class ExtractTask implements Callable<Void>
+	{
+		private final File archiveFile;
+		private final ArchiveFormat format;
+		private final int[] items;
+		private final ExtractCallback callback;
+		
+		public ExtractTask(File archiveFile, ArchiveFormat format, int[] items, ExtractCallback callback)
+		{
+			this.archiveFile = archiveFile;
+			this.format = format;
+			this.items = items;
+			this.callback = callback;
+		}
+		
+		public Void call() throws IOException, InterruptedException
+		{
+			FileChannelInStream inStream = null;
+			IInArchive archive = null;
+			try
+			{
+				inStream = new FileChannelInStream(archiveFile, mapLocalArchives);
+				archive = SevenZip.openInArchive(format, inStream);
+				extract(archive, items, callback);
+				return null;
+			}
+			finally
+			{
+				callback.abandon();
+				cleanup(archive, inStream);
+			}
+		}
+	}
+	
 	protected static enum DownloadState
 	{
 		INITIALIZED,
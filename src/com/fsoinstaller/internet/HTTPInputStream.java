@@ -65,9 +65,6 @@ public class HTTPInputStream extends InputStream
 	
 	public HTTPInputStream(Connector connector, URL sourceURL, long totalBytes, int bufferSize)
 	{
-		if (totalBytes >= Integer.MAX_VALUE)
-			throw new IllegalArgumentException("HTTPInputStream has not been tested for sizes above Integer.MAX_VALUE (size = " + totalBytes + ")");
-		
 		if (connector == null)
 			throw new NullPointerException("Connector must not be null!");
 		if (sourceURL == null)
@@ -113,15 +110,16 @@ public class HTTPInputStream extends InputStream
 			if (overallPos >= overallCount - buffer.length)
 			{
 				// calculate amount we'd need to seek
+				// (the seek itself may be longer than an int can hold, but the position within the buffer can't be)
 				int newBufferPos = (int) (overallPos - (overallCount - buffer.length));
-				int offset = (int) (bufferPos - bufferCount) - newBufferPos;
+				long offset = (bufferPos - bufferCount) - newBufferPos;
 				
 				// it's possible that we've arrived in bounds already
 				if (offset < 0)
 				{
 					// finish the buffer
 					// (the buffer info will be properly adjusted below)
-					readFully(buffer, -offset, buffer.length + offset);
+					readFully(buffer, (int) -offset, buffer.length + (int) offset);
 				}
 				// not there yet
 				else
@@ -394,6 +392,9 @@ public class HTTPInputStream extends InputStream
 	@Override
 	public int available() throws IOException
 	{
+		// after a seek, the position may be nowhere near the buffer
+		if (bufferPos < 0 || bufferPos >= bufferCount)
+			return 0;
 		return bufferCount - (int) bufferPos;
 	}
 }
@@ -0,0 +1,450 @@
+/*
+ * This file is part of the FreeSpace Open Installer
+ * Copyright (C) 2026 The FreeSpace 2 Source Code Project
+ * 
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package com.fsoinstaller.internet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import com.fsoinstaller.utils.Logger;
+
+
+/**
+ * A record of every file the installer has put in place, so that a later run
+ * can tell whether it is still current without relying on its length alone.
+ * For each installed file we remember its size and modification time as we
+ * left it, which tells us whether anyone has touched it since, along with the
+ * version of its source: the ETag and Last-Modified time of a downloaded
+ * file, or the size and modification time of an archive entry. A downloaded
+ * file can then be checked with a conditional request, which costs no more
+ * than a HEAD and sends nothing back if the file hasn't changed. For each
+ * extracted archive we also remember the version of the archive and the files
+ * it produced, so an archive that hasn't changed need not be opened at all.
+ * <p>
+ * The manifest is kept in the file named by the <tt>installManifest</tt>
+ * option, and is keyed by absolute path so that it can serve every
+ * installation directory.
+ * <p>
+ * This class is thread-safe.
+ */
+public class InstallManifest
+{
+	private static final Logger logger = Logger.getLogger(InstallManifest.class);
+	
+	/**
+	 * Use the Initialization On Demand Holder idiom for thread-safe
+	 * non-synchronized singletons.
+	 */
+	private static final class InstanceHolder
+	{
+		private static final InstallManifest INSTANCE = new InstallManifest(new File(System.getProperty("installManifest", System.getProperty("user.home") + File.separator + ".fsoinstaller" + File.separator + "manifest.properties")));
+	}
+	
+	public static InstallManifest getInstance()
+	{
+		return InstanceHolder.INSTANCE;
+	}
+	
+	protected static final String FILE_PREFIX = "file:";
+	protected static final String ARCHIVE_PREFIX = "archive:";
+	protected static final String SEPARATOR = "\t";
+	
+	protected final File manifestFile;
+	
+	// all of the following are guarded by this, and filled in the first time the manifest is used
+	private Map<String, FileRecord> files;
+	private Map<String, ArchiveRecord> archives;
+	private boolean dirty;
+	
+	public InstallManifest(File manifestFile)
+	{
+		this.manifestFile = manifestFile;
+		
+		this.files = null;
+		this.archives = null;
+		this.dirty = false;
+	}
+	
+	/**
+	 * Gets what we know about an installed file, provided it is still exactly
+	 * as we left it.
+	 * 
+	 * @return the record, or null if the file isn't in the manifest or has
+	 *         been changed or removed since
+	 */
+	public synchronized FileRecord getRecord(File file)
+	{
+		load();
+		
+		FileRecord record = files.get(file.getAbsolutePath());
+		if (record == null || !record.isUnchanged(file))
+			return null;
+		return record;
+	}
+	
+	/**
+	 * Checks whether a file is in the manifest at all, whether or not it has
+	 * changed since.
+	 */
+	public synchronized boolean contains(File file)
+	{
+		load();
+		
+		return files.containsKey(file.getAbsolutePath());
+	}
+	
+	/**
+	 * Records a file that has just been downloaded. The metadata may be null
+	 * if the version of the file is unknown, in which case only its length
+	 * can be checked later.
+	 */
+	public synchronized void recordDownload(File file, URL sourceURL, RemoteMetadata metadata)
+	{
+		load();
+		
+		String etag = (metadata == null) ? null : metadata.getETag();
+		long lastModified = (metadata == null) ? -1 : metadata.getLastModified();
+		put(new FileRecord(file.getAbsolutePath(), file.length(), file.lastModified(), sourceURL.toString(), etag, lastModified));
+	}
+	
+	/**
+	 * Records a file that has just been extracted from an archive, along with
+	 * the size and modification time of its archive entry.
+	 */
+	public synchronized void recordExtraction(File file, URL archiveURL, long entrySize, long entryModified)
+	{
+		load();
+		
+		put(new FileRecord(file.getAbsolutePath(), entrySize, file.lastModified(), archiveURL.toString(), null, entryModified));
+	}
+	
+	/**
+	 * Records that an archive was fully extracted into a directory, producing
+	 * the given files.
+	 */
+	public synchronized void recordArchive(URL archiveURL, RemoteMetadata metadata, File destinationDirectory, List<File> extractedFiles)
+	{
+		load();
+		
+		List<String> paths = new ArrayList<String>();
+		for (File file: extractedFiles)
+			paths.add(file.getAbsolutePath());
+		
+		archives.put(getArchiveKey(archiveURL, destinationDirectory), new ArchiveRecord(metadata.getContentLength(), metadata.getLastModified(), metadata.getETag(), paths));
+		dirty = true;
+	}
+	
+	/**
+	 * Checks whether an archive was already extracted into a directory, is
+	 * still the same version on the server, and left files that are all still
+	 * exactly as they were extracted.
+	 */
+	public synchronized boolean isArchiveCurrent(URL archiveURL, RemoteMetadata metadata, File destinationDirectory)
+	{
+		load();
+		
+		ArchiveRecord record = archives.get(getArchiveKey(archiveURL, destinationDirectory));
+		if (record == null || !sameVersion(record.length, record.lastModified, record.etag, metadata))
+			return false;
+		
+		for (String path: record.paths)
+		{
+			FileRecord fileRecord = files.get(path);
+			if (fileRecord == null || !fileRecord.isUnchanged(new File(path)))
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Gets the files that an archive produced the last time it was extracted
+	 * into a directory, whether or not they have changed since.
+	 * 
+	 * @return the files, or null if the archive isn't in the manifest
+	 */
+	public synchronized List<File> getArchiveFiles(URL archiveURL, File destinationDirectory)
+	{
+		load();
+		
+		ArchiveRecord record = archives.get(getArchiveKey(archiveURL, destinationDirectory));
+		if (record == null)
+			return null;
+		
+		List<File> files = new ArrayList<File>();
+		for (String path: record.paths)
+			files.add(new File(path));
+		return files;
+	}
+	
+	/**
+	 * Writes the manifest out if anything has been recorded since it was last
+	 * saved.
+	 */
+	public synchronized void save()
+	{
+		if (!dirty)
+			return;
+		
+		Properties properties = new Properties();
+		for (FileRecord record: files.values())
+			properties.setProperty(FILE_PREFIX + record.path, join(Long.toString(record.length), Long.toString(record.localModified), Long.toString(record.lastModified), (record.etag == null) ? "" : record.etag, record.source));
+		for (Map.Entry<String, ArchiveRecord> entry: archives.entrySet())
+		{
+			ArchiveRecord record = entry.getValue();
+			StringBuilder value = new StringBuilder(join(Long.toString(record.length), Long.toString(record.lastModified), (record.etag == null) ? "" : record.etag));
+			for (String path: record.paths)
+				value.append(SEPARATOR).append(path);
+			properties.setProperty(ARCHIVE_PREFIX + entry.getKey(), value.toString());
+		}
+		
+		// write to a temporary file first, so that a crash can't leave us with half a manifest
+		File parent = manifestFile.getParentFile();
+		File tempFile = new File(parent, manifestFile.getName() + ".tmp");
+		try
+		{
+			if (parent != null && !parent.exists() && !parent.mkdirs())
+				throw new IOException("Could not create the directory '" + parent.getAbsolutePath() + "'");
+			
+			OutputStream os = new FileOutputStream(tempFile);
+			try
+			{
+				properties.store(os, "FSO Installer manifest of installed files");
+			}
+			finally
+			{
+				os.close();
+			}
+			
+			if (manifestFile.exists() && !manifestFile.delete())
+				throw new IOException("Could not replace '" + manifestFile.getAbsolutePath() + "'");
+			if (!tempFile.renameTo(manifestFile))
+				throw new IOException("Could not rename '" + tempFile.getName() + "' to '" + manifestFile.getName() + "'");
+			
+			dirty = false;
+		}
+		catch (IOException ioe)
+		{
+			logger.warn("Could not save the install manifest", ioe);
+			tempFile.delete();
+		}
+	}
+	
+	private void put(FileRecord record)
+	{
+		files.put(record.path, record);
+		dirty = true;
+	}
+	
+	/**
+	 * Reads the manifest. Must be called while holding the lock.
+	 */
+	private void load()
+	{
+		if (files != null)
+			return;
+		
+		files = new HashMap<String, FileRecord>();
+		archives = new HashMap<String, ArchiveRecord>();
+		if (!manifestFile.exists())
+			return;
+		
+		Properties properties = new Properties();
+		try
+		{
+			InputStream is = new FileInputStream(manifestFile);
+			try
+			{
+				properties.load(is);
+			}
+			finally
+			{
+				is.close();
+			}
+		}
+		catch (IOException ioe)
+		{
+			logger.warn("Could not read the install manifest", ioe);
+			return;
+		}
+		
+		for (String key: properties.stringPropertyNames())
+		{
+			String[] fields = properties.getProperty(key).split(SEPARATOR, -1);
+			try
+			{
+				if (key.startsWith(FILE_PREFIX))
+				{
+					String path = key.substring(FILE_PREFIX.length());
+					files.put(path, new FileRecord(path, Long.parseLong(fields[0]), Long.parseLong(fields[1]), fields[4], (fields[3].length() == 0) ? null : fields[3], Long.parseLong(fields[2])));
+				}
+				else if (key.startsWith(ARCHIVE_PREFIX))
+				{
+					List<String> paths = new ArrayList<String>();
+					for (int i = 3; i < fields.length; i++)
+						paths.add(fields[i]);
+					archives.put(key.substring(ARCHIVE_PREFIX.length()), new ArchiveRecord(Long.parseLong(fields[0]), Long.parseLong(fields[1]), (fields[2].length() == 0) ? null : fields[2], paths));
+				}
+			}
+			catch (RuntimeException re)
+			{
+				// covers NumberFormatException and ArrayIndexOutOfBoundsException on malformed values
+				logger.warn("Ignoring invalid install manifest entry '" + key + "'");
+			}
+		}
+		
+		logger.debug("The install manifest lists " + files.size() + " files and " + archives.size() + " archives");
+	}
+	
+	protected static String getArchiveKey(URL archiveURL, File destinationDirectory)
+	{
+		return destinationDirectory.getAbsolutePath() + SEPARATOR + archiveURL.toString();
+	}
+	
+	/**
+	 * Decides whether the server is describing the version of a file that we
+	 * recorded. Either validator is enough, since mirrors often agree on one
+	 * but not the other.
+	 */
+	protected static boolean sameVersion(long length, long lastModified, String etag, RemoteMetadata metadata)
+	{
+		if (metadata.getContentLength() >= 0 && metadata.getContentLength() != length)
+			return false;
+		if (lastModified > 0 && lastModified == metadata.getLastModified())
+			return true;
+		if (etag != null && etag.equals(metadata.getETag()))
+			return true;
+		return false;
+	}
+	
+	private static String join(String... fields)
+	{
+		StringBuilder sb = new StringBuilder();
+		for (String field: fields)
+		{
+			if (sb.length() > 0)
+				sb.append(SEPARATOR);
+			sb.append(field);
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * What we know about one installed file.
+	 */
+	public static class FileRecord
+	{
+		private final String path;
+		private final long length;
+		private final long localModified;
+		private final String source;
+		private final String etag;
+		private final long lastModified;
+		
+		private FileRecord(String path, long length, long localModified, String source, String etag, long lastModified)
+		{
+			this.path = path;
+			this.length = length;
+			this.localModified = localModified;
+			this.source = source;
+			this.etag = etag;
+			this.lastModified = lastModified;
+		}
+		
+		public long getLength()
+		{
+			return length;
+		}
+		
+		/**
+		 * The URL of the file or archive this file came from.
+		 */
+		public String getSource()
+		{
+			return source;
+		}
+		
+		public String getETag()
+		{
+			return etag;
+		}
+		
+		/**
+		 * The modification time of the source: the Last-Modified time of a
+		 * download, or the time stored in an archive entry.
+		 */
+		public long getLastModified()
+		{
+			return lastModified;
+		}
+		
+		/**
+		 * Checks whether the server is describing the version of the file we
+		 * installed. If we never knew the version, the length is all we can
+		 * go by.
+		 */
+		public boolean matches(RemoteMetadata metadata)
+		{
+			if (etag == null && lastModified <= 0)
+				return length > 0 && length == metadata.getContentLength();
+			return sameVersion(length, lastModified, etag, metadata);
+		}
+		
+		/**
+		 * Checks whether this archive entry is the one we extracted.
+		 */
+		public boolean matches(long entrySize, long entryModified)
+		{
+			return length == entrySize && lastModified == entryModified;
+		}
+		
+		protected boolean isUnchanged(File file)
+		{
+			return file.exists() && file.length() == length && file.lastModified() == localModified;
+		}
+	}
+	
+	/**
+	 * What we know about one extracted archive.
+	 */
+	private static class ArchiveRecord
+	{
+		public final long length;
+		public final long lastModified;
+		public final String etag;
+		public final List<String> paths;
+		
+		public ArchiveRecord(long length, long lastModified, String etag, List<String> paths)
+		{
+			this.length = length;
+			this.lastModified = lastModified;
+			this.etag = etag;
+			this.paths = paths;
+		}
+	}
+}
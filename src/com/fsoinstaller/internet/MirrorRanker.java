@@ -0,0 +1,381 @@
+/*
+ * This file is part of the FreeSpace Open Installer
+ * Copyright (C) 2026 The FreeSpace 2 Source Code Project
+ * 
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package com.fsoinstaller.internet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.fsoinstaller.common.BaseURL;
+import com.fsoinstaller.utils.Logger;
+import com.fsoinstaller.utils.PropertiesUtils;
+
+
+/**
+ * Keeps a running score for every mirror host we download from, so that the
+ * installer can try the fastest mirror first rather than picking one at
+ * random. A host is scored by its expected time to deliver a reference amount
+ * of data: the time to the first byte of a response plus the time to transfer
+ * the bytes at the host's observed throughput. Both figures are exponentially
+ * weighted moving averages, seeded by a small range request the first time the
+ * host is seen and updated afterward by every real download.
+ * <p>
+ * This class is thread-safe.
+ */
+public class MirrorRanker
+{
+	private static final Logger logger = Logger.getLogger(MirrorRanker.class);
+	
+	// the size of the range requested when probing a mirror
+	protected static final int PROBE_BYTES = 64 * 1024;
+	
+	// the amount of data a score represents the time to transfer
+	protected static final double REFERENCE_BYTES = 1024 * 1024;
+	
+	// downloads smaller than this say more about latency than throughput, so we don't count them
+	protected static final long MIN_THROUGHPUT_SAMPLE = 256 * 1024;
+	
+	// how much weight a new sample gets relative to the history
+	protected static final double SMOOTHING = 0.3;
+	
+	// how long to wait for probes before ranking with whatever we have
+	protected static final long probeTimeout = PropertiesUtils.getLongSystemProperty("mirrorProbeTimeout", 5000, 0);
+	
+	protected static final ExecutorService probeExecutor = Executors.newCachedThreadPool(new ThreadFactory()
+	{
+		private final AtomicInteger threadNumber = new AtomicInteger(1);
+		
+		public Thread newThread(Runnable runnable)
+		{
+			Thread thread = new Thread(runnable, "MirrorRanker-probe-" + threadNumber.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	
+	protected final Connector connector;
+	protected final ConcurrentHashMap<String, HostScore> scores;
+	protected final ConcurrentHashMap<String, Future<Void>> probes;
+	
+	public MirrorRanker(Connector connector)
+	{
+		this.connector = connector;
+		this.scores = new ConcurrentHashMap<String, HostScore>();
+		this.probes = new ConcurrentHashMap<String, Future<Void>>();
+	}
+	
+	/**
+	 * Returns a copy of the mirror list with the best mirrors first. Any host
+	 * that hasn't been seen before is probed (concurrently with the others)
+	 * using a small piece of <tt>sampleFile</tt>. Mirrors whose scores are
+	 * indistinguishable, such as those that could not be probed in time, stay
+	 * in random order so that the load is still spread among them.
+	 */
+	public List<BaseURL> rank(List<BaseURL> mirrors, String sampleFile)
+	{
+		List<BaseURL> ranked = new ArrayList<BaseURL>(mirrors);
+		if (ranked.size() < 2)
+			return ranked;
+		Collections.shuffle(ranked);
+		
+		// make sure every host has been probed, or is in the middle of it
+		List<Future<Void>> pending = new ArrayList<Future<Void>>();
+		for (BaseURL mirror: ranked)
+		{
+			Future<Void> probe = startProbe(mirror, sampleFile);
+			if (probe != null && !probe.isDone())
+				pending.add(probe);
+		}
+		
+		// give the probes a little time to come back
+		long deadline = System.currentTimeMillis() + probeTimeout;
+		try
+		{
+			for (Future<Void> probe: pending)
+			{
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0)
+					break;
+				
+				try
+				{
+					probe.get(remaining, TimeUnit.MILLISECONDS);
+				}
+				catch (ExecutionException ee)
+				{
+					// the probe recorded its own failure
+				}
+				catch (TimeoutException te)
+				{
+					break;
+				}
+			}
+		}
+		catch (InterruptedException ie)
+		{
+			logger.warn("Thread was interrupted while waiting for mirror probes!", ie);
+			Thread.currentThread().interrupt();
+			return ranked;
+		}
+		
+		// take a snapshot of the scores so that the sort sees consistent values
+		final Map<BaseURL, Double> snapshot = new HashMap<BaseURL, Double>();
+		for (BaseURL mirror: ranked)
+			snapshot.put(mirror, getScore(hostOf(mirror)));
+		
+		// this is a stable sort, so equal scores keep their shuffled order
+		Collections.sort(ranked, new Comparator<BaseURL>()
+		{
+			public int compare(BaseURL o1, BaseURL o2)
+			{
+				return snapshot.get(o1).compareTo(snapshot.get(o2));
+			}
+		});
+		
+		if (logger.isDebugEnabled())
+		{
+			for (BaseURL mirror: ranked)
+				logger.debug("Mirror " + mirror + " has score " + snapshot.get(mirror));
+		}
+		return ranked;
+	}
+	
+	/**
+	 * Records a completed transfer from the given URL.
+	 */
+	public void recordTransfer(URL url, long bytes, long millis)
+	{
+		HostScore score = getHostScore(hostOf(url));
+		if (bytes >= MIN_THROUGHPUT_SAMPLE)
+			score.addThroughputSample(bytes / (double) Math.max(millis, 1));
+		score.addSuccess();
+	}
+	
+	/**
+	 * Records a failed transfer from the given URL.
+	 */
+	public void recordFailure(URL url)
+	{
+		getHostScore(hostOf(url)).addFailure();
+	}
+	
+	/**
+	 * Gets the expected number of milliseconds for the host to deliver the
+	 * reference amount of data. Lower is better.
+	 */
+	public double getScore(String host)
+	{
+		HostScore score = scores.get(host);
+		if (score == null)
+			return HostScore.UNKNOWN;
+		return score.getScore();
+	}
+	
+	protected Future<Void> startProbe(final BaseURL mirror, final String sampleFile)
+	{
+		final String host = hostOf(mirror);
+		Future<Void> existing = probes.get(host);
+		if (existing != null)
+			return existing;
+		
+		FutureTask<Void> task = new FutureTask<Void>(new Runnable()
+		{
+			public void run()
+			{
+				probe(mirror, sampleFile);
+			}
+		}, null);
+		
+		// only one thread gets to probe a given host
+		existing = probes.putIfAbsent(host, task);
+		if (existing != null)
+			return existing;
+		
+		probeExecutor.execute(task);
+		return task;
+	}
+	
+	/**
+	 * Requests the first few kilobytes of a file from the mirror, timing the
+	 * first byte and the transfer separately. Since the response headers are
+	 * there anyway, the file's metadata is handed to the Connector as well.
+	 */
+	protected void probe(BaseURL mirror, String sampleFile)
+	{
+		String host = hostOf(mirror);
+		HostScore score = getHostScore(host);
+		
+		URLConnection connection = null;
+		InputStream inputStream = null;
+		try
+		{
+			URL url = mirror.toURL(sampleFile);
+			logger.debug("Probing mirror " + host + " with " + url);
+			
+			long startTime = System.currentTimeMillis();
+			connection = connector.openConnection(url);
+			connection.setRequestProperty("Range", "bytes=0-" + (PROBE_BYTES - 1));
+			
+			inputStream = connection.getInputStream();
+			connector.getMetadata(url, connection);
+			long firstByteTime = System.currentTimeMillis();
+			
+			// read the range (or, if the server ignored it, the same amount of the file)
+			byte[] buffer = new byte[8192];
+			long totalRead = 0;
+			int bytesRead;
+			while (totalRead < PROBE_BYTES && (bytesRead = inputStream.read(buffer)) != -1)
+				totalRead += bytesRead;
+			long endTime = System.currentTimeMillis();
+			
+			score.addLatencySample(firstByteTime - startTime);
+			if (totalRead > 0)
+				score.addThroughputSample(totalRead / (double) Math.max(endTime - firstByteTime, 1));
+			score.addSuccess();
+			
+			logger.info("Mirror " + host + " answered in " + (firstByteTime - startTime) + " ms and sent " + totalRead + " bytes in " + (endTime - firstByteTime) + " ms");
+		}
+		catch (MalformedURLException murle)
+		{
+			logger.warn("Bad URL '" + mirror + sampleFile + "'", murle);
+			score.addFailure();
+		}
+		catch (IOException ioe)
+		{
+			logger.warn("Could not probe mirror " + host + ": " + ioe.getMessage());
+			score.addFailure();
+		}
+		finally
+		{
+			if (inputStream != null)
+			{
+				try
+				{
+					inputStream.close();
+				}
+				catch (IOException ioe)
+				{
+					logger.debug("Could not close probe stream: " + ioe.getMessage());
+				}
+			}
+			else if (connection instanceof HttpURLConnection)
+			{
+				((HttpURLConnection) connection).disconnect();
+			}
+		}
+	}
+	
+	protected HostScore getHostScore(String host)
+	{
+		HostScore score = scores.get(host);
+		if (score == null)
+		{
+			HostScore newScore = new HostScore();
+			score = scores.putIfAbsent(host, newScore);
+			if (score == null)
+				score = newScore;
+		}
+		return score;
+	}
+	
+	protected static String hostOf(BaseURL mirror)
+	{
+		try
+		{
+			return hostOf(mirror.toURL());
+		}
+		catch (MalformedURLException murle)
+		{
+			return mirror.toString();
+		}
+	}
+	
+	protected static String hostOf(URL url)
+	{
+		return url.getProtocol() + "://" + url.getAuthority();
+	}
+	
+	/**
+	 * The moving averages for a single host.
+	 */
+	protected static class HostScore
+	{
+		// a host we know nothing about ranks behind any host that has worked, but ahead of one that has failed
+		public static final double UNKNOWN = 1000000.0;
+		
+		private double latencyMillis = -1;
+		private double bytesPerMilli = -1;
+		private int consecutiveFailures = 0;
+		
+		public synchronized void addLatencySample(long millis)
+		{
+			latencyMillis = (latencyMillis < 0) ? millis : (SMOOTHING * millis + (1 - SMOOTHING) * latencyMillis);
+		}
+		
+		public synchronized void addThroughputSample(double sample)
+		{
+			bytesPerMilli = (bytesPerMilli < 0) ? sample : (SMOOTHING * sample + (1 - SMOOTHING) * bytesPerMilli);
+		}
+		
+		public synchronized void addSuccess()
+		{
+			consecutiveFailures = 0;
+		}
+		
+		public synchronized void addFailure()
+		{
+			consecutiveFailures++;
+		}
+		
+		public synchronized double getScore()
+		{
+			double score;
+			if (bytesPerMilli <= 0)
+				score = UNKNOWN;
+			else
+				score = Math.max(latencyMillis, 0) + REFERENCE_BYTES / bytesPerMilli;
+			
+			// every failure in a row pushes the host further down the list
+			if (consecutiveFailures > 0)
+				score = (score + UNKNOWN) * (1 + consecutiveFailures);
+			
+			return score;
+		}
+	}
+}
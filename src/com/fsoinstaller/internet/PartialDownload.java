@@ -0,0 +1,521 @@
+/*
+ * This file is part of the FreeSpace Open Installer
+ * Copyright (C) 2026 The FreeSpace 2 Source Code Project
+ * 
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package com.fsoinstaller.internet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.fsoinstaller.utils.DirectoryIndex;
+import com.fsoinstaller.utils.Logger;
+
+
+/**
+ * Keeps track of a file that has only been partly downloaded, so that a later
+ * attempt can pick up where the last one left off instead of starting from
+ * byte zero. The bytes themselves are kept in a <tt>.part</tt> file next to
+ * the destination, and a small properties file alongside it records where they
+ * came from (URL, expected length, Last-Modified, ETag and the URL that sent
+ * it) and how many bytes of
+ * each segment have been safely written. The destination file is only
+ * replaced once every segment is complete.
+ * <p>
+ * The committed counts may be updated from several segment threads at once;
+ * saving the state is synchronized. Every channel that writes to the part file
+ * is forced to disk before the state is saved, so the state file never claims
+ * bytes that a crash could still take away.
+ */
+public class PartialDownload
+{
+	private static final Logger logger = Logger.getLogger(PartialDownload.class);
+	
+	public static final String PART_EXTENSION = ".part";
+	public static final String STATE_EXTENSION = ".part.properties";
+	
+	// how many newly committed bytes we allow before writing the state file again
+	private static final long SAVE_INTERVAL = 4L * 1024 * 1024;
+	
+	private final File destinationFile;
+	private final File partFile;
+	private final File stateFile;
+	
+	private final String sourceURL;
+	private final long totalBytes;
+	private final long lastModified;
+	private String etag;
+	private String etagSource;
+	
+	private long[] starts;
+	private long[] ends;
+	private AtomicLongArray committed;
+	private final AtomicLong unsavedBytes;
+	
+	// channels currently writing to the part file
+	private final List<FileChannel> channels;
+	
+	private PartialDownload(File destinationFile, String sourceURL, long totalBytes, long lastModified, String etag, String etagSource, long[] starts, long[] ends, long[] committed)
+	{
+		this.destinationFile = destinationFile;
+		this.partFile = new File(destinationFile.getParentFile(), destinationFile.getName() + PART_EXTENSION);
+		this.stateFile = new File(destinationFile.getParentFile(), destinationFile.getName() + STATE_EXTENSION);
+		
+		this.sourceURL = sourceURL;
+		this.totalBytes = totalBytes;
+		this.lastModified = lastModified;
+		this.etag = etag;
+		this.etagSource = (etag == null) ? null : etagSource;
+		
+		this.starts = starts;
+		this.ends = ends;
+		this.committed = new AtomicLongArray(committed);
+		this.unsavedBytes = new AtomicLong(0);
+		this.channels = new CopyOnWriteArrayList<FileChannel>();
+	}
+	
+	/**
+	 * Starts tracking a brand new partial download, discarding any previous
+	 * one for the same destination. The segments are given as inclusive byte
+	 * ranges, and the ETag, if any, is the one sourceURL reported.
+	 */
+	public static PartialDownload create(File destinationFile, URL sourceURL, long totalBytes, long lastModified, String etag, long[] starts, long[] ends) throws IOException
+	{
+		if (totalBytes <= 0)
+			throw new IllegalArgumentException("A partial download must have a known length!");
+		if (starts.length == 0 || starts.length != ends.length)
+			throw new IllegalArgumentException("Segment boundaries must be non-empty and of equal length!");
+		
+		PartialDownload partial = new PartialDownload(destinationFile, sourceURL.toString(), totalBytes, lastModified, etag, sourceURL.toString(), starts.clone(), ends.clone(), new long[starts.length]);
+		partial.truncate();
+		partial.save();
+		
+		// the part and state files are new
+		DirectoryIndex.getInstance().invalidate(destinationFile.getParentFile());
+		return partial;
+	}
+	
+	/**
+	 * Looks for the state left behind by an earlier attempt to download the
+	 * specified file.
+	 * 
+	 * @return the previous state, or null if there is none or it could not be
+	 *         read
+	 */
+	public static PartialDownload load(File destinationFile)
+	{
+		File partFile = new File(destinationFile.getParentFile(), destinationFile.getName() + PART_EXTENSION);
+		File stateFile = new File(destinationFile.getParentFile(), destinationFile.getName() + STATE_EXTENSION);
+		if (!stateFile.exists() || !partFile.exists())
+			return null;
+		
+		Properties properties = new Properties();
+		try
+		{
+			InputStream is = new FileInputStream(stateFile);
+			try
+			{
+				properties.load(is);
+			}
+			finally
+			{
+				is.close();
+			}
+			
+			String url = properties.getProperty("url");
+			long totalBytes = Long.parseLong(properties.getProperty("length"));
+			long lastModified = Long.parseLong(properties.getProperty("lastModified"));
+			String etag = properties.getProperty("etag");
+			String etagSource = properties.getProperty("etagSource");
+			
+			int numSegments = Integer.parseInt(properties.getProperty("segments"));
+			long[] starts = new long[numSegments];
+			long[] ends = new long[numSegments];
+			long[] committed = new long[numSegments];
+			for (int i = 0; i < numSegments; i++)
+			{
+				starts[i] = Long.parseLong(properties.getProperty("segment." + i + ".start"));
+				ends[i] = Long.parseLong(properties.getProperty("segment." + i + ".end"));
+				committed[i] = Long.parseLong(properties.getProperty("segment." + i + ".committed"));
+				
+				// don't trust anything that doesn't make sense
+				if (starts[i] < 0 || ends[i] < starts[i] || ends[i] >= totalBytes || committed[i] < 0 || committed[i] > ends[i] - starts[i] + 1)
+					throw new IllegalArgumentException("Segment " + i + " is out of range");
+			}
+			
+			// the part file might have been truncated behind our backs
+			if (partFile.length() != totalBytes)
+				throw new IllegalArgumentException("Part file has the wrong length");
+			
+			return new PartialDownload(destinationFile, url, totalBytes, lastModified, etag, etagSource, starts, ends, committed);
+		}
+		catch (IOException ioe)
+		{
+			logger.warn("Could not read the partial download state for '" + destinationFile.getName() + "'", ioe);
+		}
+		catch (RuntimeException re)
+		{
+			// covers NumberFormatException, NullPointerException on missing keys, and our own sanity checks
+			logger.warn("The partial download state for '" + destinationFile.getName() + "' is not valid", re);
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Checks whether an earlier attempt to download the specified file left
+	 * anything behind, without reading it.
+	 */
+	public static boolean exists(File destinationFile)
+	{
+		return new File(destinationFile.getParentFile(), destinationFile.getName() + STATE_EXTENSION).exists();
+	}
+	
+	/**
+	 * Removes any trace of a partial download for the specified file.
+	 */
+	public static void discard(File destinationFile)
+	{
+		File partFile = new File(destinationFile.getParentFile(), destinationFile.getName() + PART_EXTENSION);
+		File stateFile = new File(destinationFile.getParentFile(), destinationFile.getName() + STATE_EXTENSION);
+		
+		if (stateFile.exists() && !stateFile.delete())
+			logger.warn("Could not delete '" + stateFile.getAbsolutePath() + "'!");
+		if (partFile.exists() && !partFile.delete())
+			logger.warn("Could not delete '" + partFile.getAbsolutePath() + "'!");
+		DirectoryIndex.getInstance().invalidate(destinationFile.getParentFile());
+	}
+	
+	/**
+	 * Checks whether the bytes we already have belong to the remote file as it
+	 * exists now. The URL is deliberately not compared, since any mirror with
+	 * an identical copy of the file can supply the rest of it.
+	 * <p>
+	 * The length alone proves nothing, so at least one validator (the
+	 * Last-Modified time or the ETag) has to be known and agree; if there is
+	 * none, the download can't be resumed safely. ETags are specific to each
+	 * server, so the ETag only counts if it came from the same URL that the
+	 * new one did.
+	 */
+	public synchronized boolean matches(long totalBytes, long lastModified, String etag, URL sourceURL)
+	{
+		if (this.totalBytes != totalBytes || this.lastModified != lastModified)
+			return false;
+		
+		boolean validated = lastModified > 0;
+		String previousETag = getETag(sourceURL);
+		if (previousETag != null && etag != null)
+		{
+			if (!previousETag.equals(etag))
+				return false;
+			validated = true;
+		}
+		
+		return validated;
+	}
+	
+	/**
+	 * Throws away everything downloaded so far and switches to a new segment
+	 * layout, e.g. when the server turns out not to support ranges after all.
+	 */
+	public synchronized void restart(long[] starts, long[] ends) throws IOException
+	{
+		this.starts = starts.clone();
+		this.ends = ends.clone();
+		this.committed = new AtomicLongArray(starts.length);
+		truncate();
+		save();
+	}
+	
+	private void truncate() throws IOException
+	{
+		if (!partFile.getParentFile().exists() && !partFile.getParentFile().mkdirs())
+			throw new IOException("Failed to create parent directory for '" + partFile.getAbsolutePath() + "'");
+		
+		RandomAccessFile raf = new RandomAccessFile(partFile, "rw");
+		try
+		{
+			raf.setLength(0);
+			raf.setLength(totalBytes);
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+	
+	public File getDestinationFile()
+	{
+		return destinationFile;
+	}
+	
+	public File getPartFile()
+	{
+		return partFile;
+	}
+	
+	public long getTotalBytes()
+	{
+		return totalBytes;
+	}
+	
+	public long getLastModified()
+	{
+		return lastModified;
+	}
+	
+	/**
+	 * Gets the ETag of the file, provided it was sent by the given URL; one
+	 * server's ETag means nothing to another.
+	 */
+	public synchronized String getETag(URL sourceURL)
+	{
+		if (etag == null || !sourceURL.toString().equals(etagSource))
+			return null;
+		return etag;
+	}
+	
+	public synchronized void setETag(String etag, URL sourceURL)
+	{
+		this.etag = etag;
+		this.etagSource = (etag == null) ? null : sourceURL.toString();
+	}
+	
+	public int getSegmentCount()
+	{
+		return starts.length;
+	}
+	
+	public long getSegmentStart(int segment)
+	{
+		return starts[segment];
+	}
+	
+	public long getSegmentEnd(int segment)
+	{
+		return ends[segment];
+	}
+	
+	public long getCommitted(int segment)
+	{
+		return committed.get(segment);
+	}
+	
+	public long getTotalCommitted()
+	{
+		long sum = 0;
+		for (int i = 0; i < committed.length(); i++)
+			sum += committed.get(i);
+		return sum;
+	}
+	
+	public boolean isComplete()
+	{
+		return getTotalCommitted() == totalBytes;
+	}
+	
+	/**
+	 * Records that the given number of bytes of a segment have been written to
+	 * the part file. The state file is rewritten every few megabytes so that a
+	 * crash loses at most that much.
+	 */
+	public void commit(int segment, long bytes)
+	{
+		committed.addAndGet(segment, bytes);
+		
+		if (unsavedBytes.addAndGet(bytes) >= SAVE_INTERVAL)
+		{
+			try
+			{
+				save();
+			}
+			catch (IOException ioe)
+			{
+				logger.warn("Could not save the partial download state for '" + destinationFile.getName() + "'", ioe);
+			}
+		}
+	}
+	
+	public synchronized void save() throws IOException
+	{
+		unsavedBytes.set(0);
+		
+		// take the counts before forcing, since anything counted has already been written
+		long[] committedNow = new long[starts.length];
+		for (int i = 0; i < starts.length; i++)
+			committedNow[i] = committed.get(i);
+		
+		for (FileChannel channel: channels)
+			force(channel);
+		
+		Properties properties = new Properties();
+		if (sourceURL != null)
+			properties.setProperty("url", sourceURL);
+		properties.setProperty("length", Long.toString(totalBytes));
+		properties.setProperty("lastModified", Long.toString(lastModified));
+		if (etag != null)
+		{
+			properties.setProperty("etag", etag);
+			properties.setProperty("etagSource", etagSource);
+		}
+		
+		properties.setProperty("segments", Integer.toString(starts.length));
+		for (int i = 0; i < starts.length; i++)
+		{
+			properties.setProperty("segment." + i + ".start", Long.toString(starts[i]));
+			properties.setProperty("segment." + i + ".end", Long.toString(ends[i]));
+			properties.setProperty("segment." + i + ".committed", Long.toString(committedNow[i]));
+		}
+		
+		OutputStream os = new FileOutputStream(stateFile);
+		try
+		{
+			properties.store(os, "FSO Installer partial download");
+		}
+		finally
+		{
+			os.close();
+		}
+	}
+	
+	private void force(FileChannel channel) throws IOException
+	{
+		try
+		{
+			channel.force(false);
+		}
+		catch (ClosedChannelException cce)
+		{
+			// whoever closed it should have detached it first; either way it has nothing more to write
+			channels.remove(channel);
+		}
+	}
+	
+	/**
+	 * Registers a channel that writes to the part file, so that it is forced
+	 * to disk before every save.
+	 */
+	public void attachChannel(FileChannel channel)
+	{
+		channels.add(channel);
+	}
+	
+	/**
+	 * Forces a channel to disk one last time and stops tracking it. Call this
+	 * before closing the channel, since the state may be saved again after it
+	 * is closed.
+	 */
+	public void detachChannel(FileChannel channel)
+	{
+		try
+		{
+			if (channel.isOpen())
+				channel.force(false);
+		}
+		catch (IOException ioe)
+		{
+			logger.warn("Could not flush '" + partFile.getAbsolutePath() + "' to disk", ioe);
+		}
+		channels.remove(channel);
+	}
+	
+	/**
+	 * Same as save(), but only logs a failure. Used when we are already on an
+	 * error path.
+	 */
+	public void saveQuietly()
+	{
+		try
+		{
+			save();
+		}
+		catch (IOException ioe)
+		{
+			logger.warn("Could not save the partial download state for '" + destinationFile.getName() + "'", ioe);
+		}
+	}
+	
+	/**
+	 * Opens a stream that writes the rest of a segment sequentially, starting
+	 * at its first uncommitted byte. Bytes are committed as they reach the
+	 * file, so any buffering should be layered on top of this stream.
+	 */
+	public OutputStream openSegmentOutputStream(final int segment) throws IOException
+	{
+		final RandomAccessFile raf = new RandomAccessFile(partFile, "rw");
+		raf.seek(starts[segment] + committed.get(segment));
+		attachChannel(raf.getChannel());
+		
+		return new FilterOutputStream(new FileOutputStream(raf.getFD()))
+		{
+			@Override
+			public void write(int b) throws IOException
+			{
+				out.write(b);
+				commit(segment, 1);
+			}
+			
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException
+			{
+				out.write(b, off, len);
+				commit(segment, len);
+			}
+			
+			@Override
+			public void close() throws IOException
+			{
+				detachChannel(raf.getChannel());
+				raf.close();
+			}
+		};
+	}
+	
+	/**
+	 * Moves the finished part file into place and removes the state file.
+	 */
+	public synchronized void complete() throws IOException
+	{
+		if (!isComplete())
+			throw new IOException("Cannot complete '" + destinationFile.getName() + "'; only " + getTotalCommitted() + " of " + totalBytes + " bytes have been downloaded");
+		
+		if (destinationFile.exists() && !destinationFile.delete())
+			throw new IOException("Could not replace '" + destinationFile.getAbsolutePath() + "'!");
+		if (!partFile.renameTo(destinationFile))
+			throw new IOException("Could not rename '" + partFile.getAbsolutePath() + "' to '" + destinationFile.getName() + "'!");
+		
+		if (stateFile.exists() && !stateFile.delete())
+			logger.warn("Could not delete '" + stateFile.getAbsolutePath() + "'!");
+		
+		// the part file is now the destination file
+		DirectoryIndex.getInstance().invalidate(destinationFile.getParentFile());
+	}
+}
@@ -0,0 +1,175 @@
+/*
+ * This file is part of the FreeSpace Open Installer
+ * Copyright (C) 2026 The FreeSpace 2 Source Code Project
+ * 
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package com.fsoinstaller.internet;
+
+import java.awt.EventQueue;
+import java.util.Queue;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.fsoinstaller.utils.PropertiesUtils;
+
+
+/**
+ * Collects progress reports from downloads and extractions and passes them
+ * on to the event dispatch thread at a steady rate (the
+ * <tt>progressInterval</tt> option, in milliseconds), rather than once for
+ * every buffer that is read. A report only updates its channel's latest
+ * figures, so it costs next to nothing; every interval, a single task on the
+ * event dispatch thread delivers the latest figures of each channel that has
+ * changed. Reports that arrive in between are simply superseded.
+ * <p>
+ * Since the other download events are still delivered individually, a
+ * channel should be flushed before firing one of them, so that the listeners
+ * never see progress for a file after they have been told it is finished.
+ * <p>
+ * This class is thread-safe.
+ */
+public class ProgressAggregator
+{
+	/**
+	 * Use the Initialization On Demand Holder idiom for thread-safe
+	 * non-synchronized singletons.
+	 */
+	private static final class InstanceHolder
+	{
+		private static final ProgressAggregator INSTANCE = new ProgressAggregator(PropertiesUtils.getLongSystemProperty("progressInterval", 100, 10));
+	}
+	
+	public static ProgressAggregator getInstance()
+	{
+		return InstanceHolder.INSTANCE;
+	}
+	
+	protected final long intervalMillis;
+	protected final Queue<Channel> changedChannels;
+	protected final AtomicBoolean deliveryQueued;
+	
+	public ProgressAggregator(long intervalMillis)
+	{
+		this.intervalMillis = intervalMillis;
+		this.changedChannels = new ConcurrentLinkedQueue<Channel>();
+		this.deliveryQueued = new AtomicBoolean(false);
+		
+		Timer timer = new Timer("ProgressAggregator", true);
+		timer.schedule(new TimerTask()
+		{
+			@Override
+			public void run()
+			{
+				scheduleDelivery();
+			}
+		}, intervalMillis, intervalMillis);
+	}
+	
+	/**
+	 * Queues one delivery on the event dispatch thread if anything has
+	 * changed, unless the last one hasn't even run yet.
+	 */
+	protected void scheduleDelivery()
+	{
+		if (changedChannels.isEmpty() || !deliveryQueued.compareAndSet(false, true))
+			return;
+		
+		EventQueue.invokeLater(new Runnable()
+		{
+			public void run()
+			{
+				deliveryQueued.set(false);
+				
+				Channel channel;
+				while ((channel = changedChannels.poll()) != null)
+					channel.deliverLatest();
+			}
+		});
+	}
+	
+	/**
+	 * The progress of one download (or extraction). Each report replaces the
+	 * previous one, and the latest is handed to deliver() on the event
+	 * dispatch thread.
+	 */
+	public static abstract class Channel
+	{
+		private final ProgressAggregator aggregator;
+		private final AtomicBoolean changed;
+		
+		// these are written before changed is set, and read after it is cleared
+		private volatile String name;
+		private volatile long completed;
+		private volatile long total;
+		
+		protected Channel(ProgressAggregator aggregator)
+		{
+			this.aggregator = aggregator;
+			this.changed = new AtomicBoolean(false);
+			
+			this.name = null;
+			this.completed = 0;
+			this.total = 0;
+		}
+		
+		public void report(String name, long completed, long total)
+		{
+			this.name = name;
+			this.total = total;
+			this.completed = completed;
+			
+			// only queue the channel once per delivery
+			if (changed.compareAndSet(false, true))
+				aggregator.changedChannels.add(this);
+		}
+		
+		/**
+		 * Passes on any report that hasn't been delivered yet, ahead of any
+		 * event fired after this call. (The channel may still be in the queue,
+		 * but it will be skipped there if nothing else is reported.)
+		 */
+		public void flush()
+		{
+			if (!changed.getAndSet(false))
+				return;
+			
+			final String _name = name;
+			final long _completed = completed;
+			final long _total = total;
+			EventQueue.invokeLater(new Runnable()
+			{
+				public void run()
+				{
+					deliver(_name, _completed, _total);
+				}
+			});
+		}
+		
+		private void deliverLatest()
+		{
+			if (changed.getAndSet(false))
+				deliver(name, completed, total);
+		}
+		
+		/**
+		 * Called on the event dispatch thread with the latest report.
+		 */
+		protected abstract void deliver(String name, long completed, long total);
+	}
+}
@@ -0,0 +1,160 @@
+/*
+ * This file is part of the FreeSpace Open Installer
+ * Copyright (C) 2026 The FreeSpace 2 Source Code Project
+ * 
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package com.fsoinstaller.internet;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+
+
+/**
+ * Everything we care to know about a remote file before downloading it, as
+ * gathered from the headers of a single response. Instances are immutable.
+ */
+public class RemoteMetadata
+{
+	private final URL url;
+	private final URL finalURL;
+	private final long contentLength;
+	private final long lastModified;
+	private final String etag;
+	private final boolean acceptRanges;
+	
+	public RemoteMetadata(URL url, URL finalURL, long contentLength, long lastModified, String etag, boolean acceptRanges)
+	{
+		this.url = url;
+		this.finalURL = finalURL;
+		this.contentLength = contentLength;
+		this.lastModified = lastModified;
+		this.etag = etag;
+		this.acceptRanges = acceptRanges;
+	}
+	
+	/**
+	 * Reads the metadata from the headers of a connection, connecting it if
+	 * necessary. This works for HEAD and GET requests alike; for a 206
+	 * response the length is taken from the total in the Content-Range header
+	 * rather than the length of the range itself.
+	 */
+	public static RemoteMetadata fromConnection(URL url, URLConnection conn) throws IOException
+	{
+		int response = -1;
+		if (conn instanceof HttpURLConnection)
+		{
+			response = ((HttpURLConnection) conn).getResponseCode();
+			if (response / 100 == 4 || response / 100 == 5)
+				throw new IOException("Server returned HTTP response code " + response + " for URL " + url);
+		}
+		
+		long contentLength = -1;
+		if (response == HttpURLConnection.HTTP_PARTIAL)
+			contentLength = parseContentRangeTotal(conn.getHeaderField("Content-Range"));
+		else
+			contentLength = parseLong(conn.getHeaderField("Content-Length"));
+		
+		// some connection types (e.g. local files) don't supply the header, but still know the length
+		if (contentLength < 0 && response != HttpURLConnection.HTTP_PARTIAL)
+			contentLength = conn.getContentLength();
+		
+		String etag = conn.getHeaderField("ETag");
+		String acceptRanges = conn.getHeaderField("Accept-Ranges");
+		
+		return new RemoteMetadata(url, conn.getURL(), contentLength, conn.getLastModified(), etag, response == HttpURLConnection.HTTP_PARTIAL || "bytes".equalsIgnoreCase(acceptRanges));
+	}
+	
+	private static long parseLong(String value)
+	{
+		if (value == null)
+			return -1;
+		
+		try
+		{
+			return Long.parseLong(value.trim());
+		}
+		catch (NumberFormatException nfe)
+		{
+			return -1;
+		}
+	}
+	
+	/**
+	 * Extracts the complete length from a header such as
+	 * <tt>bytes 0-499/1234</tt>, or returns -1 if it is missing or given as
+	 * <tt>*</tt>.
+	 */
+	private static long parseContentRangeTotal(String contentRange)
+	{
+		if (contentRange == null)
+			return -1;
+		
+		int slashPos = contentRange.lastIndexOf('/');
+		if (slashPos < 0)
+			return -1;
+		
+		return parseLong(contentRange.substring(slashPos + 1));
+	}
+	
+	public URL getURL()
+	{
+		return url;
+	}
+	
+	/**
+	 * The URL that actually served the file, after following any redirects.
+	 */
+	public URL getFinalURL()
+	{
+		return finalURL;
+	}
+	
+	/**
+	 * The length of the file, or -1 if it is not known.
+	 */
+	public long getContentLength()
+	{
+		return contentLength;
+	}
+	
+	/**
+	 * The modification time of the file in milliseconds, or 0 if it is not
+	 * known.
+	 */
+	public long getLastModified()
+	{
+		return lastModified;
+	}
+	
+	public String getETag()
+	{
+		return etag;
+	}
+	
+	public boolean acceptsRanges()
+	{
+		return acceptRanges;
+	}
+	
+	@Override
+	public String toString()
+	{
+		return "RemoteMetadata[url=" + url + ", finalURL=" + finalURL + ", contentLength=" + contentLength + ", lastModified=" + lastModified + ", etag=" + etag + ", acceptRanges=" + acceptRanges + "]";
+	}
+}
@@ -0,0 +1,290 @@
+/*
+ * This file is part of the FreeSpace Open Installer
+ * Copyright (C) 2026 The FreeSpace 2 Source Code Project
+ * 
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package com.fsoinstaller.internet;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URLConnection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.fsoinstaller.utils.Logger;
+import com.fsoinstaller.utils.PropertiesUtils;
+
+
+/**
+ * Keeps an eye on download streams and aborts any whose throughput drops
+ * below a floor (the <tt>stallThroughputFloor</tt> option, in bytes per
+ * second) for a whole window (the <tt>stallWindow</tt> option, in
+ * milliseconds). The read timeout set by the Connector catches a connection
+ * that goes completely silent, but not one that trickles a few bytes at a
+ * time; this catches both. Only the time spent waiting inside a read counts
+ * against a stream, so a consumer that is slow to ask for data is not
+ * mistaken for a slow server.
+ * <p>
+ * Aborting a stream disconnects its socket, which makes the blocked read
+ * throw an IOException. It's up to the reader to reconnect at the offset it
+ * had reached. A floor of 0 turns the watchdog off.
+ * <p>
+ * This class is thread-safe.
+ */
+public class StallWatchdog
+{
+	private static final Logger logger = Logger.getLogger(StallWatchdog.class);
+	
+	/**
+	 * Use the Initialization On Demand Holder idiom for thread-safe
+	 * non-synchronized singletons.
+	 */
+	private static final class InstanceHolder
+	{
+		private static final StallWatchdog INSTANCE = new StallWatchdog(PropertiesUtils.getLongSystemProperty("stallThroughputFloor", 1024, 0), PropertiesUtils.getLongSystemProperty("stallWindow", 30000, 1000));
+	}
+	
+	public static StallWatchdog getInstance()
+	{
+		return InstanceHolder.INSTANCE;
+	}
+	
+	// how often the streams are checked
+	protected static final long CHECK_INTERVAL = 1000;
+	
+	protected final long floorBytesPerSecond;
+	protected final long windowMillis;
+	protected final Set<MonitoredInputStream> streams;
+	
+	public StallWatchdog(long floorBytesPerSecond, long windowMillis)
+	{
+		this.floorBytesPerSecond = floorBytesPerSecond;
+		this.windowMillis = windowMillis;
+		this.streams = Collections.newSetFromMap(new ConcurrentHashMap<MonitoredInputStream, Boolean>());
+		
+		if (floorBytesPerSecond > 0)
+		{
+			Timer timer = new Timer("StallWatchdog", true);
+			timer.schedule(new TimerTask()
+			{
+				@Override
+				public void run()
+				{
+					checkStreams();
+				}
+			}, CHECK_INTERVAL, CHECK_INTERVAL);
+		}
+	}
+	
+	/**
+	 * Wraps a stream so that it is watched until it is closed. The connection,
+	 * if given, is what gets disconnected when the stream stalls.
+	 */
+	public InputStream monitor(InputStream inputStream, URLConnection connection, String description)
+	{
+		if (floorBytesPerSecond <= 0)
+			return inputStream;
+		
+		MonitoredInputStream stream = new MonitoredInputStream(inputStream, connection, description);
+		streams.add(stream);
+		return stream;
+	}
+	
+	protected void checkStreams()
+	{
+		long now = System.currentTimeMillis();
+		for (MonitoredInputStream stream: streams)
+		{
+			if (stream.checkStalled(now))
+			{
+				logger.warn("The transfer of " + stream.description + " has stalled (less than " + floorBytesPerSecond + " bytes per second for " + windowMillis + " ms); aborting the connection");
+				streams.remove(stream);
+				stream.abort();
+			}
+		}
+	}
+	
+	/**
+	 * A stream that keeps track of how many bytes arrived during how much time
+	 * spent reading.
+	 */
+	protected class MonitoredInputStream extends FilterInputStream
+	{
+		private final URLConnection connection;
+		private final String description;
+		private volatile boolean stalled;
+		
+		// these are guarded by this
+		private long readStart;
+		private long readMillis;
+		private long bytesRead;
+		
+		public MonitoredInputStream(InputStream inputStream, URLConnection connection, String description)
+		{
+			super(inputStream);
+			this.connection = connection;
+			this.description = description;
+			this.stalled = false;
+			
+			this.readStart = 0;
+			this.readMillis = 0;
+			this.bytesRead = 0;
+		}
+		
+		@Override
+		public int read() throws IOException
+		{
+			beginRead();
+			int result = -1;
+			try
+			{
+				result = super.read();
+				return result;
+			}
+			catch (IOException ioe)
+			{
+				throw translate(ioe);
+			}
+			finally
+			{
+				endRead((result < 0) ? 0 : 1);
+			}
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			beginRead();
+			int result = -1;
+			try
+			{
+				result = super.read(b, off, len);
+				return result;
+			}
+			catch (IOException ioe)
+			{
+				throw translate(ioe);
+			}
+			finally
+			{
+				endRead((result < 0) ? 0 : result);
+			}
+		}
+		
+		@Override
+		public long skip(long n) throws IOException
+		{
+			beginRead();
+			long result = 0;
+			try
+			{
+				result = super.skip(n);
+				return result;
+			}
+			catch (IOException ioe)
+			{
+				throw translate(ioe);
+			}
+			finally
+			{
+				endRead(result);
+			}
+		}
+		
+		@Override
+		public void close() throws IOException
+		{
+			streams.remove(this);
+			
+			// an aborted HTTP stream might try to drain the rest of the response, so don't bother
+			if (!stalled)
+				super.close();
+		}
+		
+		private void beginRead() throws IOException
+		{
+			if (stalled)
+				throw new IOException("The transfer of " + description + " stalled and was aborted");
+			
+			synchronized (this)
+			{
+				readStart = System.currentTimeMillis();
+			}
+		}
+		
+		private synchronized void endRead(long bytes)
+		{
+			readMillis += System.currentTimeMillis() - readStart;
+			readStart = 0;
+			bytesRead += bytes;
+		}
+		
+		private IOException translate(IOException ioe)
+		{
+			if (!stalled)
+				return ioe;
+			return new IOException("The transfer of " + description + " stalled and was aborted", ioe);
+		}
+		
+		/**
+		 * Decides, once enough reading time has passed to fill a window,
+		 * whether the window fell short of the floor. Then starts a new window.
+		 */
+		protected synchronized boolean checkStalled(long now)
+		{
+			long busyMillis = readMillis + ((readStart > 0) ? (now - readStart) : 0);
+			if (busyMillis < windowMillis)
+				return false;
+			
+			boolean result = bytesRead * 1000 < floorBytesPerSecond * busyMillis;
+			
+			readMillis = 0;
+			bytesRead = 0;
+			if (readStart > 0)
+				readStart = now;
+			
+			return result;
+		}
+		
+		protected void abort()
+		{
+			stalled = true;
+			
+			// disconnecting closes the socket out from under the blocked read
+			if (connection instanceof HttpURLConnection)
+			{
+				((HttpURLConnection) connection).disconnect();
+			}
+			else
+			{
+				try
+				{
+					in.close();
+				}
+				catch (IOException ioe)
+				{
+					logger.debug("Could not close stalled stream: " + ioe.getMessage());
+				}
+			}
+		}
+	}
+}
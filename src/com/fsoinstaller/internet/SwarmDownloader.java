@@ -0,0 +1,284 @@
+/*
+ * This file is part of the FreeSpace Open Installer
+ * Copyright (C) 2026 The FreeSpace 2 Source Code Project
+ * 
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package com.fsoinstaller.internet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fsoinstaller.utils.PropertiesUtils;
+
+
+/**
+ * A downloader that fetches a single file from all of its mirrors at once.
+ * The file is divided into small chunks which are kept in a shared queue, and
+ * each mirror has its own workers which take the next chunk whenever they
+ * finish the last one, so a fast mirror ends up supplying more of the file
+ * than a slow one. Every chunk is written directly to its own position in the
+ * .part file, and its progress is tracked like any other segment of a
+ * partial download, so a swarm download can be resumed as well. If a mirror
+ * fails, the chunk it was working on goes back in the queue for the others.
+ * <p>
+ * Archives are handled the same way as in Downloader, since they are
+ * extracted as they are streamed.
+ */
+public class SwarmDownloader extends Downloader
+{
+	// the size of the pieces a file is divided into for sharing among mirrors
+	protected static final long swarmChunkSize = PropertiesUtils.getLongSystemProperty("swarmChunkSize", 2L * 1024 * 1024, 64 * 1024);
+	
+	// this keeps the partial download state file to a reasonable size
+	protected static final int MAX_CHUNKS = 4096;
+	
+	// how long to wait for a connection to a mirror when every host is busy
+	protected static final long swarmConnectionWait = PropertiesUtils.getLongSystemProperty("swarmConnectionWait", 30000, 0);
+	
+	public SwarmDownloader(Connector connector, List<URL> sourceURLs, File destination, String modName)
+	{
+		super(connector, sourceURLs, destination, modName);
+	}
+	
+	@Override
+	protected int planSegmentCount(long totalBytes)
+	{
+		// with only one mirror, or a small file, there is nothing to share
+		if (sourceURLs.size() < 2 || totalBytes < 2 * swarmChunkSize)
+			return super.planSegmentCount(totalBytes);
+		
+		return (int) Math.min(MAX_CHUNKS, totalBytes / swarmChunkSize);
+	}
+	
+	@Override
+	protected URL downloadPartial(URL sourceURL, PartialDownload partial, URLConnection connection, long lastModified) throws IOException, InterruptedException
+	{
+		if (partial.getSegmentCount() < 2)
+			return super.downloadPartial(sourceURL, partial, connection, lastModified);
+		
+		// gather every mirror that has the same copy of the file
+		List<URL> swarm = new ArrayList<URL>();
+		swarm.add(sourceURL);
+		URL mirrorURL;
+		while ((mirrorURL = nextMirror(null)) != null)
+		{
+			if (mirrorMatches(mirrorURL, partial.getTotalBytes(), lastModified))
+				swarm.add(mirrorURL);
+		}
+		if (swarm.size() < 2)
+			return super.downloadPartial(sourceURL, partial, connection, lastModified);
+		
+		// the connection we already have is for the whole file, so it's no use here
+		cleanup(connection);
+		
+		if (downloadSwarm(swarm, partial))
+			return null;
+		
+		// the last resort is the ordinary download, which can cope with servers that don't send ranges
+		logger.warn("No mirror could finish '" + partial.getDestinationFile().getName() + "' as part of a swarm; trying " + sourceURL + " on its own");
+		return super.downloadPartial(sourceURL, partial, null, lastModified);
+	}
+	
+	/**
+	 * Shares the remaining chunks of a partial download among the mirrors.
+	 * Each worker reports its own transfers to the mirror ranker.
+	 * 
+	 * @return true if the download is complete, or false if every mirror
+	 *         dropped out first
+	 */
+	protected boolean downloadSwarm(List<URL> swarm, PartialDownload partial) throws IOException, InterruptedException
+	{
+		String downloadName = partial.getDestinationFile().getName();
+		long totalBytes = partial.getTotalBytes();
+		
+		Queue<Integer> chunkQueue = new ConcurrentLinkedQueue<Integer>(getRemainingSegments(partial));
+		if (chunkQueue.isEmpty())
+			return true;
+		
+		logger.info("Downloading '" + downloadName + "' in " + chunkQueue.size() + " chunks from " + swarm.size() + " mirrors");
+		
+		// (keyed by string, since URL.equals() resolves host names)
+		Map<String, URL> healthyMirrors = new ConcurrentHashMap<String, URL>();
+		for (URL mirrorURL: swarm)
+			healthyMirrors.put(mirrorURL.toString(), mirrorURL);
+		int workersPerMirror = Math.max(1, downloadSegments / swarm.size());
+		String sourceHost = DownloadScheduler.hostOf(swarm.get(0));
+		
+		RandomAccessFile randomAccessFile = new RandomAccessFile(partial.getPartFile(), "rw");
+		FileChannel channel = null;
+		try
+		{
+			channel = randomAccessFile.getChannel();
+			partial.attachChannel(channel);
+			
+			final AtomicLong totalBytesWritten = new AtomicLong(partial.getTotalCommitted());
+			logger.debug("Downloading...");
+			fireAboutToStart(downloadName, totalBytesWritten.get(), totalBytes);
+			
+			// a chunk given up by a failed mirror goes back in the queue; if that happens
+			// after the other workers have run out of chunks, go around again with the mirrors that are left
+			while (!chunkQueue.isEmpty() && !healthyMirrors.isEmpty())
+			{
+				List<Future<Long>> futures = new ArrayList<Future<Long>>();
+				List<String> connections = new ArrayList<String>();
+				boolean usedSourceConnection = false;
+				try
+				{
+					// we already hold one connection to the source's host; every other worker needs one of its own
+					for (URL mirrorURL: healthyMirrors.values())
+					{
+						String host = DownloadScheduler.hostOf(mirrorURL);
+						for (int i = 0; i < workersPerMirror; i++)
+						{
+							if (host.equals(sourceHost) && !usedSourceConnection)
+								usedSourceConnection = true;
+							else if (DownloadScheduler.getInstance().tryAcquireConnection(host))
+								connections.add(host);
+							else
+								break;
+							futures.add(segmentExecutor.submit(new SwarmTask(mirrorURL, channel, partial, chunkQueue, healthyMirrors, downloadName, totalBytesWritten)));
+						}
+					}
+					
+					// if every host is busy (and the source's host, whose connection we hold, has dropped out),
+					// wait for a connection to a mirror that is left; if none comes, the ordinary download takes over
+					if (futures.isEmpty())
+					{
+						URL mirrorURL = healthyMirrors.values().iterator().next();
+						String host = DownloadScheduler.hostOf(mirrorURL);
+						if (!DownloadScheduler.getInstance().acquireConnection(host, swarmConnectionWait))
+						{
+							logger.warn("No connection to " + host + " came free for '" + downloadName + "'; giving up on the swarm");
+							break;
+						}
+						connections.add(host);
+						futures.add(segmentExecutor.submit(new SwarmTask(mirrorURL, channel, partial, chunkQueue, healthyMirrors, downloadName, totalBytesWritten)));
+					}
+					
+					for (Future<Long> future: futures)
+						awaitSegment(future);
+				}
+				finally
+				{
+					// if we're bailing out early, stop any chunks that are still going
+					for (Future<Long> future: futures)
+						future.cancel(true);
+					for (String host: connections)
+						DownloadScheduler.getInstance().releaseConnection(host);
+				}
+			}
+			
+			if (!partial.isComplete())
+				return false;
+			
+			logger.debug("Download complete");
+			fireDownloadComplete(downloadName, totalBytes, totalBytes);
+			return true;
+		}
+		finally
+		{
+			if (channel != null)
+			{
+				partial.detachChannel(channel);
+				try
+				{
+					channel.close();
+				}
+				catch (IOException ioe)
+				{
+					logger.warn("Could not close file channel!", ioe);
+				}
+			}
+			try
+			{
+				randomAccessFile.close();
+			}
+			catch (IOException ioe)
+			{
+				logger.warn("Could not close file stream!", ioe);
+			}
+		}
+	}
+	
+	/**
+	 * Downloads chunks from one mirror until the queue is empty or the mirror
+	 * fails.
+	 */
+	protected class SwarmTask implements Callable<Long>
+	{
+		private final URL mirrorURL;
+		private final FileChannel channel;
+		private final PartialDownload partial;
+		private final Queue<Integer> chunkQueue;
+		private final Map<String, URL> healthyMirrors;
+		private final String downloadName;
+		private final AtomicLong totalBytesWritten;
+		
+		public SwarmTask(URL mirrorURL, FileChannel channel, PartialDownload partial, Queue<Integer> chunkQueue, Map<String, URL> healthyMirrors, String downloadName, AtomicLong totalBytesWritten)
+		{
+			this.mirrorURL = mirrorURL;
+			this.channel = channel;
+			this.partial = partial;
+			this.chunkQueue = chunkQueue;
+			this.healthyMirrors = healthyMirrors;
+			this.downloadName = downloadName;
+			this.totalBytesWritten = totalBytesWritten;
+		}
+		
+		public Long call() throws InterruptedException
+		{
+			long written = 0;
+			Integer chunk;
+			while (healthyMirrors.containsKey(mirrorURL.toString()) && (chunk = chunkQueue.poll()) != null)
+			{
+				long startTime = System.currentTimeMillis();
+				try
+				{
+					long bytes = downloadSegment(mirrorURL, null, channel, partial, chunk, downloadName, totalBytesWritten);
+					reportTransfer(mirrorURL, bytes, System.currentTimeMillis() - startTime);
+					written += bytes;
+				}
+				catch (IOException ioe)
+				{
+					// let another mirror finish this chunk from wherever we got to
+					chunkQueue.add(chunk);
+					
+					if (healthyMirrors.remove(mirrorURL.toString()) != null)
+					{
+						logger.warn("Mirror " + mirrorURL + " dropped out of the swarm for '" + downloadName + "': " + ioe.getMessage());
+						reportFailure(mirrorURL);
+					}
+					break;
+				}
+			}
+			return written;
+		}
+	}
+}
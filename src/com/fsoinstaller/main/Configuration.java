@@ -65,6 +65,7 @@ public class Configuration
 	// these are for the settings
 	public static final String PROXY_KEY = "PROXY";
 	public static final String CONNECTOR_KEY = "CONNECTOR";
+	public static final String MIRROR_RANKER_KEY = "MIRROR-RANKER";
 	public static final String REMOTE_VERSION_KEY = "REMOTE-VERSION";
 	public static final String MOD_URLS_KEY = "MOD-URLS";
 	public static final String BASIC_CONFIG_MODS_KEY = "BASIC-CONFIG-MODS";
@@ -31,10 +31,13 @@ import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -49,6 +52,8 @@ import org.apache.commons.compress.compressors.CompressorStreamFactory;
 
 import com.fsoinstaller.common.InstallerNode;
 import com.fsoinstaller.common.InstallerNodeParseException;
+import com.fsoinstaller.utils.DirectoryIndex;
+import com.fsoinstaller.utils.HashService;
 import com.fsoinstaller.utils.IOUtils;
 import com.fsoinstaller.utils.InstallerUtils;
 import com.fsoinstaller.utils.KeyPair;
@@ -382,6 +387,16 @@ rootLoop:		for (File root: roots)
 		{
 			selectAndHashFile(args, true);
 		}
+		// measure how hashing scales with the number of threads
+		else if (command.equals("hash-benchmark"))
+		{
+			benchmarkHashing(args);
+		}
+		// make sure the directory index agrees with the file system
+		else if (command.equals("check-directory-index"))
+		{
+			checkDirectoryIndex(args);
+		}
 		// test out a mod file by piggybacking an installer session on the results of validation
 		else if (command.equals("test"))
 		{
@@ -575,6 +590,265 @@ rootLoop:		for (File root: roots)
 		}
 	}
 	
+	/**
+	 * Hashes the given files (or the files in the given directories) with
+	 * one thread, then two, and so on up to one per processor, and reports
+	 * how fast each went. The files are hashed once beforehand so that every
+	 * run finds them equally cached.
+	 */
+	private static void benchmarkHashing(String[] args)
+	{
+		if (args.length < 3)
+		{
+			logger.error("Usage: hash-benchmark <algorithm> <file or directory>...");
+			return;
+		}
+		String algorithm = HashService.normalizeAlgorithm(args[1]);
+		
+		List<File> files = new ArrayList<File>();
+		for (int i = 2; i < args.length; i++)
+			collectFiles(new File(args[i]), files);
+		if (files.isEmpty())
+		{
+			logger.error("There are no files to hash!");
+			return;
+		}
+		
+		long totalBytes = 0;
+		for (File file: files)
+			totalBytes += file.length();
+		logger.info("Hashing " + files.size() + " files (" + (totalBytes / (1024 * 1024)) + " MB) with " + algorithm);
+		
+		int maxThreads = Runtime.getRuntime().availableProcessors();
+		try
+		{
+			runHashBenchmark(algorithm, files, maxThreads);
+			for (int threads = 1; threads <= maxThreads; threads *= 2)
+			{
+				long millis = runHashBenchmark(algorithm, files, threads);
+				logger.info(threads + " thread(s): " + millis + " ms, " + ((millis == 0) ? "-" : Long.toString(totalBytes * 1000 / millis / (1024 * 1024))) + " MB/s");
+			}
+		}
+		catch (NoSuchAlgorithmException nsae)
+		{
+			logger.error("Unable to compute hash; '" + algorithm + "' is not a recognized algorithm!", nsae);
+		}
+		catch (IOException ioe)
+		{
+			logger.error("There was a problem computing the hashes...", ioe);
+		}
+	}
+	
+	private static long runHashBenchmark(String algorithm, List<File> files, int threads) throws NoSuchAlgorithmException, IOException
+	{
+		HashService service = new HashService(threads);
+		try
+		{
+			long startTime = System.currentTimeMillis();
+			List<Future<String>> futures = new ArrayList<Future<String>>();
+			for (File file: files)
+				futures.add(service.submit(algorithm, file));
+			for (Future<String> future: futures)
+				future.get();
+			return System.currentTimeMillis() - startTime;
+		}
+		catch (InterruptedException ie)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while hashing");
+		}
+		catch (ExecutionException ee)
+		{
+			IOException ioe = new IOException("Hashing failed");
+			ioe.initCause(ee.getCause());
+			throw ioe;
+		}
+		finally
+		{
+			service.shutdown();
+		}
+	}
+	
+	private static void collectFiles(File file, List<File> files)
+	{
+		if (file.isDirectory())
+		{
+			File[] children = file.listFiles();
+			if (children != null)
+			{
+				for (File child: children)
+					collectFiles(child, files);
+			}
+		}
+		else if (file.isFile())
+		{
+			files.add(file);
+		}
+	}
+	
+	/**
+	 * Creates, adds and deletes files in a scratch directory the way the
+	 * installer does, and after each step compares what the directory index
+	 * says with a plain listing of the directory. Any directories named on the
+	 * command line are compared as well.
+	 */
+	private static void checkDirectoryIndex(String[] args)
+	{
+		int problems = 0;
+		File directory = null;
+		try
+		{
+			directory = File.createTempFile("fsoinstaller", ".dirindex");
+			if (!directory.delete() || !directory.mkdir())
+				throw new IOException("Could not create the scratch directory '" + directory.getAbsolutePath() + "'");
+			
+			problems += exerciseDirectoryIndex(directory);
+		}
+		catch (IOException ioe)
+		{
+			logger.error("There was a problem checking the directory index...", ioe);
+			return;
+		}
+		finally
+		{
+			if (directory != null)
+				IOUtils.deleteDirectoryTree(directory);
+		}
+		
+		DirectoryIndex index = new DirectoryIndex();
+		for (int i = 1; i < args.length; i++)
+			problems += compareDirectoryTree(index, new File(args[i]));
+		
+		if (problems == 0)
+			logger.info("The directory index agrees with a plain listing of every directory");
+		else
+			logger.error("The directory index disagrees with a plain listing " + problems + " time(s)!");
+	}
+	
+	private static int exerciseDirectoryIndex(File directory) throws IOException
+	{
+		DirectoryIndex index = new DirectoryIndex();
+		int problems = compareDirectoryIndex(index, directory);
+		
+		// files that the installer creates are added as they are created
+		for (int i = 0; i < 20; i++)
+		{
+			File file = new File(directory, "File" + i + ".txt");
+			long before = index.beforeChange(file);
+			createFile(file);
+			index.added(file, before);
+			problems += compareDirectoryIndex(index, directory);
+		}
+		
+		// as are folders, along with any parents created with them
+		File folder = new File(directory, "Sub" + File.separator + "Folder");
+		long before = index.beforeChange(folder);
+		if (!folder.mkdirs())
+			throw new IOException("Could not create '" + folder.getAbsolutePath() + "'");
+		index.added(folder, before);
+		File nested = new File(folder, "Nested.txt");
+		before = index.beforeChange(nested);
+		createFile(nested);
+		index.added(nested, before);
+		problems += compareDirectoryTree(index, directory);
+		
+		// something else changes the directory behind our backs just before we do; the index must not
+		// take our change as the only one (the timestamp is moved so that it differs even on coarse file systems)
+		createFile(new File(directory, "Foreign.txt"));
+		if (!directory.setLastModified(directory.lastModified() - 10000))
+			throw new IOException("Could not set the modification time of '" + directory.getAbsolutePath() + "'");
+		File ours = new File(directory, "Ours.txt");
+		before = index.beforeChange(ours);
+		createFile(ours);
+		index.added(ours, before);
+		problems += compareDirectoryIndex(index, directory);
+		
+		// something else changes the directory within the same tick of a coarse clock, so its
+		// modification time stays the same; the index must not trust a listing that recent
+		long modified = directory.lastModified();
+		problems += compareDirectoryIndex(index, directory);
+		createFile(new File(directory, "SameTick.txt"));
+		if (!directory.setLastModified(modified))
+			throw new IOException("Could not set the modification time of '" + directory.getAbsolutePath() + "'");
+		problems += compareDirectoryIndex(index, directory);
+		
+		// deleting something invalidates the directory
+		File deleted = new File(directory, "File3.txt");
+		if (!deleted.delete())
+			throw new IOException("Could not delete '" + deleted.getAbsolutePath() + "'");
+		index.invalidate(directory);
+		problems += compareDirectoryIndex(index, directory);
+		
+		return problems;
+	}
+	
+	private static void createFile(File file) throws IOException
+	{
+		if (!file.createNewFile())
+			throw new IOException("Could not create '" + file.getAbsolutePath() + "'");
+	}
+	
+	private static int compareDirectoryTree(DirectoryIndex index, File directory)
+	{
+		int problems = compareDirectoryIndex(index, directory);
+		
+		File[] children = directory.listFiles();
+		if (children != null)
+		{
+			for (File child: children)
+			{
+				if (child.isDirectory())
+					problems += compareDirectoryTree(index, child);
+			}
+		}
+		
+		return problems;
+	}
+	
+	/**
+	 * Compares the indexed names of a directory, and the indexed lookup of
+	 * each name in a different letter case, with File.list().
+	 */
+	private static int compareDirectoryIndex(DirectoryIndex index, File directory)
+	{
+		String[] names = directory.list();
+		List<String> indexedNames = index.getNames(directory);
+		if (names == null || indexedNames == null)
+		{
+			if (names != null || indexedNames != null)
+			{
+				logger.error("The index of '" + directory.getAbsolutePath() + "' doesn't agree on whether it exists!");
+				return 1;
+			}
+			return 0;
+		}
+		
+		int problems = 0;
+		Set<String> listed = new HashSet<String>(Arrays.asList(names));
+		Set<String> indexed = new HashSet<String>(indexedNames);
+		if (!listed.equals(indexed))
+		{
+			logger.error("The index of '" + directory.getAbsolutePath() + "' has " + indexed + ", but the directory has " + listed + "!");
+			problems++;
+		}
+		
+		for (String name: names)
+		{
+			char[] chars = name.toCharArray();
+			for (int i = 0; i < chars.length; i++)
+				chars[i] = Character.isUpperCase(chars[i]) ? Character.toLowerCase(chars[i]) : Character.toUpperCase(chars[i]);
+			
+			String found = index.findName(directory, new String(chars));
+			if (found == null || !found.equalsIgnoreCase(name))
+			{
+				logger.error("Looking up '" + new String(chars) + "' in '" + directory.getAbsolutePath() + "' found " + found + " instead of '" + name + "'!");
+				problems++;
+			}
+		}
+		
+		return problems;
+	}
+	
 	private static void selectAndDiffFiles(String[] args)
 	{
 		final Configuration config = Configuration.getInstance();
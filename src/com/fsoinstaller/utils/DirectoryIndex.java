@@ -0,0 +1,274 @@
+/*
+ * This file is part of the FreeSpace Open Installer
+ * Copyright (C) 2026 The FreeSpace 2 Source Code Project
+ * 
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package com.fsoinstaller.utils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+
+/**
+ * A case-insensitive index of the names in each directory, so that a name can
+ * be matched with whatever letter case is already on disk without listing the
+ * directory every time. A directory is listed the first time it is looked at,
+ * and again whenever its modification time changes. Files and folders that
+ * the installer creates are added as they are created, so that extracting
+ * thousands of files into a directory doesn't mean listing it thousands of
+ * times.
+ * <p>
+ * To add a file, the caller takes the directory's modification time with
+ * beforeChange() before creating it, and passes it to added() afterward. The
+ * listing is only brought up to date if it was still current before the
+ * change; if anything else changed the directory in the meantime, the listing
+ * is thrown away and the directory is listed again. Anything that is harder to
+ * describe, such as a deletion or a rename, simply invalidates the directory.
+ * <p>
+ * Since modification times are coarse (to the second, or two seconds on FAT),
+ * a directory that was modified too recently might be changed again without
+ * its time changing. Such a directory is listed every time it is looked at,
+ * and is only trusted once its modification time has settled, in the same way
+ * as HashCache.
+ * <p>
+ * Names are compared the way String.equalsIgnoreCase compares them, and if a
+ * directory has several names that differ only by case, the first one listed
+ * wins.
+ * <p>
+ * This class is thread-safe.
+ */
+public class DirectoryIndex
+{
+	/**
+	 * Use the Initialization On Demand Holder idiom for thread-safe
+	 * non-synchronized singletons.
+	 */
+	private static final class InstanceHolder
+	{
+		private static final DirectoryIndex INSTANCE = new DirectoryIndex();
+	}
+	
+	public static DirectoryIndex getInstance()
+	{
+		return InstanceHolder.INSTANCE;
+	}
+	
+	// keyed by absolute path
+	private final ConcurrentMap<String, Listing> listings;
+	
+	public DirectoryIndex()
+	{
+		this.listings = new ConcurrentHashMap<String, Listing>();
+	}
+	
+	/**
+	 * Finds the name of the entry in a directory that matches the given name,
+	 * ignoring case.
+	 * 
+	 * @return the name as it is on disk, or null if there is no such entry
+	 *         (or the directory doesn't exist)
+	 */
+	public String findName(File directory, String name)
+	{
+		Listing listing = getListing(directory);
+		if (listing == null)
+			return null;
+		
+		return listing.folded.get(fold(name));
+	}
+	
+	/**
+	 * Gets the names of everything in a directory, in the order the file
+	 * system listed them.
+	 * 
+	 * @return the names, or null if the directory doesn't exist
+	 */
+	public List<String> getNames(File directory)
+	{
+		Listing listing = getListing(directory);
+		if (listing == null)
+			return null;
+		
+		synchronized (listing.names)
+		{
+			return new ArrayList<String>(listing.names);
+		}
+	}
+	
+	/**
+	 * Gets the modification time of the directory that will contain a file,
+	 * to be passed to added() once the file has been created.
+	 * 
+	 * @return the modification time, or 0 if the directory doesn't exist yet
+	 */
+	public long beforeChange(File file)
+	{
+		File parent = file.getAbsoluteFile().getParentFile();
+		return (parent == null) ? 0 : parent.lastModified();
+	}
+	
+	/**
+	 * Records that a file or folder was just created, along with any of its
+	 * parents that were created with it.
+	 * 
+	 * @param before the modification time of the file's directory before the
+	 *        file was created, as returned by beforeChange()
+	 */
+	public void added(File file, long before)
+	{
+		file = file.getAbsoluteFile();
+		File parent = file.getParentFile();
+		if (parent == null)
+			return;
+		
+		Listing listing = listings.get(parent.getPath());
+		if (listing != null && !(listing.exists && listing.add(file.getName(), before, parent.lastModified())))
+			listings.remove(parent.getPath(), listing);
+		
+		// if the directory was already there, nothing further up has changed
+		if (before != 0)
+			return;
+		
+		// otherwise it was created along with the file, and so may some of its parents have been
+		file = parent;
+		parent = parent.getParentFile();
+		while (parent != null)
+		{
+			listing = listings.get(parent.getPath());
+			if (listing != null)
+			{
+				// once a parent already knew about its child, the rest of the path was there before
+				if (listing.exists && listing.contains(file.getName()))
+					return;
+				listings.remove(parent.getPath(), listing);
+			}
+			
+			file = parent;
+			parent = parent.getParentFile();
+		}
+	}
+	
+	/**
+	 * Forgets what is in a directory, so that it is listed again the next
+	 * time it is looked at. Use this after deleting or renaming something.
+	 */
+	public void invalidate(File directory)
+	{
+		if (directory != null)
+			listings.remove(directory.getAbsolutePath());
+	}
+	
+	/**
+	 * Forgets everything, so that every directory is listed again.
+	 */
+	public void clear()
+	{
+		listings.clear();
+	}
+	
+	private Listing getListing(File directory)
+	{
+		String path = directory.getAbsolutePath();
+		
+		// a directory that doesn't exist has a modification time of 0, and gets a real one once it's created
+		long modified = directory.lastModified();
+		Listing listing = listings.get(path);
+		if (listing == null || listing.modified != modified || !listing.settled)
+		{
+			// (this must be decided before listing, since any change after that must then give a new time)
+			boolean settled = HashCache.isSettled(modified);
+			listing = new Listing(directory.list(), modified, settled);
+			listings.put(path, listing);
+		}
+		
+		return listing.exists ? listing : null;
+	}
+	
+	/**
+	 * Folds a name so that names that are equal ignoring case are equal,
+	 * character by character, just as String.equalsIgnoreCase does it.
+	 */
+	protected static String fold(String name)
+	{
+		char[] chars = name.toCharArray();
+		for (int i = 0; i < chars.length; i++)
+			chars[i] = Character.toLowerCase(Character.toUpperCase(chars[i]));
+		return new String(chars);
+	}
+	
+	private static class Listing
+	{
+		public final boolean exists;
+		public final Set<String> names;
+		public final ConcurrentMap<String, String> folded;
+		public final boolean settled;
+		public volatile long modified;
+		
+		public Listing(String[] children, long modified, boolean settled)
+		{
+			this.exists = (children != null);
+			this.names = new LinkedHashSet<String>();
+			this.folded = new ConcurrentHashMap<String, String>();
+			this.settled = settled;
+			this.modified = modified;
+			
+			if (children != null)
+			{
+				for (String child: children)
+				{
+					names.add(child);
+					folded.putIfAbsent(fold(child), child);
+				}
+			}
+		}
+		
+		public boolean contains(String name)
+		{
+			synchronized (names)
+			{
+				return names.contains(name);
+			}
+		}
+		
+		/**
+		 * Adds a name, provided this listing was current just before it was
+		 * created and the directory's new time is too old to be shared with
+		 * a later change; otherwise some other change would go unnoticed.
+		 * 
+		 * @return whether the listing is still current
+		 */
+		public boolean add(String name, long before, long after)
+		{
+			synchronized (names)
+			{
+				if (this.modified != before || !settled || !HashCache.isSettled(after))
+					return false;
+				
+				// the directory has changed, but only because of this
+				this.modified = after;
+				if (names.add(name))
+					folded.putIfAbsent(fold(name), name);
+				return true;
+			}
+		}
+	}
+}
@@ -0,0 +1,458 @@
+/*
+ * This file is part of the FreeSpace Open Installer
+ * Copyright (C) 2026 The FreeSpace 2 Source Code Project
+ * 
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package com.fsoinstaller.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+
+/**
+ * The hashes of the files in one installation directory, so that the hashes
+ * that mods check on every run (and the MD5 of root_fs2.vp) don't mean reading
+ * multi-gigabyte VPs every time. A hash is kept for each algorithm it was
+ * asked for, under the file's canonical path, and is trusted for as long as
+ * the file keeps the same size and modification time; a file that has been
+ * touched since is hashed again.
+ * <p>
+ * Each directory's cache is a log in the directory named by the
+ * <tt>hashCacheDir</tt> option. Every new hash is appended to the log as soon
+ * as it is known, so nothing is lost if the installer is closed half-way
+ * through, and the log is only rewritten (without the hashes that were
+ * superseded) when it has grown well past the number of files it describes.
+ * <p>
+ * This class is thread-safe.
+ */
+public class HashCache
+{
+	private static final Logger logger = Logger.getLogger(HashCache.class);
+	
+	protected static final File cacheDirectory = new File(System.getProperty("hashCacheDir", System.getProperty("user.home") + File.separator + ".fsoinstaller" + File.separator + "hashes"));
+	
+	protected static final String DIRECTORY_KEY = "directory";
+	protected static final String SEPARATOR = "\t";
+	
+	/**
+	 * Many file systems only keep modification times to the second (or two),
+	 * so a file that is changed again right after being hashed may keep the
+	 * same time. Hashes of files that were modified this recently are only
+	 * remembered until the installer exits.
+	 */
+	protected static final long MODIFICATION_GRANULARITY = 2000;
+	
+	// guarded by itself
+	private static final Map<String, HashCache> caches = new HashMap<String, HashCache>();
+	
+	/**
+	 * Gets the cache for an installation directory.
+	 */
+	public static HashCache getInstance(File directory)
+	{
+		String path = directory.getAbsolutePath();
+		synchronized (caches)
+		{
+			HashCache cache = caches.get(path);
+			if (cache == null)
+			{
+				cache = new HashCache(directory, new File(cacheDirectory, Integer.toHexString(path.hashCode()) + ".log"));
+				caches.put(path, cache);
+			}
+			return cache;
+		}
+	}
+	
+	protected final File directory;
+	protected final File logFile;
+	
+	// all of the following are guarded by this, and filled in the first time the cache is used
+	private Map<String, Entry> entries;
+	private int logLines;
+	private boolean damaged;
+	private boolean writable;
+	
+	public HashCache(File directory, File logFile)
+	{
+		this.directory = directory.getAbsoluteFile();
+		this.logFile = logFile;
+		
+		this.entries = null;
+		this.logLines = 0;
+		this.damaged = false;
+		this.writable = true;
+	}
+	
+	/**
+	 * Gets the hash of a file, reading the file only if we don't already know
+	 * it for the file's current size and modification time.
+	 * 
+	 * @return the hash, as a lower-case hex string
+	 */
+	public String getHash(String algorithm, File file) throws NoSuchAlgorithmException, FileNotFoundException, IOException
+	{
+		return HashService.awaitHash(submit(algorithm, file), file.getName());
+	}
+	
+	/**
+	 * Starts getting the hash of a file, and returns straight away. A hash we
+	 * already know is ready at once; any other is computed by the hash
+	 * service, alongside whatever else it is hashing.
+	 */
+	public Future<String> submit(String algorithm, File file) throws NoSuchAlgorithmException, IOException
+	{
+		if (!file.exists() || file.isDirectory())
+			throw new IllegalArgumentException("File '" + file.getAbsolutePath() + "' must exist and not be a directory!");
+		
+		// fail now, rather than when the result is collected
+		final String _algorithm = HashService.normalizeAlgorithm(algorithm);
+		MessageDigest.getInstance(_algorithm);
+		
+		final File _file = file;
+		final String _path = file.getCanonicalPath();
+		final long _length = file.length();
+		final long _lastModified = file.lastModified();
+		synchronized (this)
+		{
+			load();
+			
+			final Entry entry = entries.get(getKey(_algorithm, _path));
+			if (entry != null && entry.length == _length && entry.lastModified == _lastModified)
+			{
+				logger.debug("Using the cached " + _algorithm + " hash of '" + file.getName() + "'");
+				FutureTask<String> known = new FutureTask<String>(new Callable<String>()
+				{
+					public String call()
+					{
+						return entry.hash;
+					}
+				});
+				known.run();
+				return known;
+			}
+		}
+		
+		// hash the file without holding the lock, so that other files can be looked up meanwhile
+		final HashService service = HashService.getInstance();
+		return service.submit(file, new Callable<String>()
+		{
+			public String call() throws IOException, NoSuchAlgorithmException
+			{
+				String hash = service.hash(_algorithm, _file);
+				
+				// only keep it if the file didn't change while we were reading it
+				if (_file.length() == _length && _file.lastModified() == _lastModified)
+					put(new Entry(_algorithm, _path, _length, _lastModified, hash, isSettled(_lastModified)));
+				return hash;
+			}
+		});
+	}
+	
+	/**
+	 * Records the hash of a file whose contents are known to have it, such as
+	 * a file that was hashed as it was written.
+	 */
+	public void record(String algorithm, File file, String hash)
+	{
+		if (!file.isFile())
+			return;
+		
+		String path;
+		try
+		{
+			path = file.getCanonicalPath();
+		}
+		catch (IOException ioe)
+		{
+			logger.warn("Could not record the hash of '" + file.getAbsolutePath() + "'", ioe);
+			return;
+		}
+		
+		long lastModified = file.lastModified();
+		put(new Entry(HashService.normalizeAlgorithm(algorithm), path, file.length(), lastModified, hash.toLowerCase(), isSettled(lastModified)));
+	}
+	
+	/**
+	 * Whether a file was last modified long enough ago that another change
+	 * would give it a different modification time.
+	 */
+	static boolean isSettled(long lastModified)
+	{
+		return System.currentTimeMillis() - lastModified >= MODIFICATION_GRANULARITY;
+	}
+	
+	private synchronized void put(Entry entry)
+	{
+		load();
+		
+		String key = getKey(entry.algorithm, entry.path);
+		Entry previous = entries.put(key, entry);
+		if (previous != null && previous.length == entry.length && previous.lastModified == entry.lastModified && previous.hash.equals(entry.hash) && (previous.persistent || !entry.persistent))
+		{
+			entries.put(key, previous);
+			return;
+		}
+		
+		// a hash that can't be trusted past this run isn't written at all
+		if (!entry.persistent)
+			return;
+		
+		// a log that is damaged or mostly superseded hashes is rewritten, and otherwise the new one is just added to the end
+		if (damaged || logLines > 2 * entries.size() + 100)
+			rewrite();
+		else
+			append(entry);
+	}
+	
+	private static String getKey(String algorithm, String path)
+	{
+		return algorithm + SEPARATOR + path;
+	}
+	
+	/**
+	 * Adds a hash to the end of the log. Must be called while holding the
+	 * lock.
+	 */
+	private void append(Entry entry)
+	{
+		if (!writable)
+			return;
+		
+		try
+		{
+			// a new log starts by saying which directory it's for
+			boolean newLog = !logFile.exists();
+			if (newLog)
+				createParent();
+			
+			Writer writer = new OutputStreamWriter(new FileOutputStream(logFile, true), "UTF-8");
+			try
+			{
+				if (newLog)
+				{
+					writer.write(DIRECTORY_KEY + SEPARATOR + directory.getPath() + "\n");
+					logLines = 0;
+				}
+				writer.write(entry.toLine());
+			}
+			finally
+			{
+				writer.close();
+			}
+			logLines++;
+		}
+		catch (IOException ioe)
+		{
+			// don't keep trying (and warning) for every file
+			logger.warn("Could not write to the hash cache for '" + directory.getPath() + "'; hashes will not be remembered", ioe);
+			writable = false;
+		}
+	}
+	
+	/**
+	 * Writes out the whole log afresh. Must be called while holding the lock.
+	 */
+	private void rewrite()
+	{
+		if (!writable)
+			return;
+		
+		// write to a temporary file first, so that a crash can't leave us with half a log
+		File tempFile = new File(logFile.getParentFile(), logFile.getName() + ".tmp");
+		try
+		{
+			createParent();
+			
+			int count = 0;
+			OutputStream os = new FileOutputStream(tempFile);
+			try
+			{
+				Writer writer = new OutputStreamWriter(os, "UTF-8");
+				writer.write(DIRECTORY_KEY + SEPARATOR + directory.getPath() + "\n");
+				for (Entry entry: entries.values())
+				{
+					if (entry.persistent)
+					{
+						writer.write(entry.toLine());
+						count++;
+					}
+				}
+				writer.flush();
+			}
+			finally
+			{
+				os.close();
+			}
+			
+			if (logFile.exists() && !logFile.delete())
+				throw new IOException("Could not replace '" + logFile.getAbsolutePath() + "'");
+			if (!tempFile.renameTo(logFile))
+				throw new IOException("Could not rename '" + tempFile.getName() + "' to '" + logFile.getName() + "'");
+			
+			logLines = count;
+			damaged = false;
+			logger.debug("Rewrote the hash cache for '" + directory.getPath() + "' with " + logLines + " hashes");
+		}
+		catch (IOException ioe)
+		{
+			logger.warn("Could not rewrite the hash cache for '" + directory.getPath() + "'; hashes will not be remembered", ioe);
+			tempFile.delete();
+			writable = false;
+		}
+	}
+	
+	private void createParent() throws IOException
+	{
+		File parent = logFile.getParentFile();
+		if (parent != null && !parent.exists() && !parent.mkdirs())
+			throw new IOException("Could not create the directory '" + parent.getAbsolutePath() + "'");
+	}
+	
+	/**
+	 * Reads the log. Must be called while holding the lock.
+	 */
+	private void load()
+	{
+		if (entries != null)
+			return;
+		
+		entries = new HashMap<String, Entry>();
+		logLines = 0;
+		if (!logFile.exists())
+			return;
+		
+		try
+		{
+			StringBuilder contents = new StringBuilder();
+			Reader reader = new InputStreamReader(new FileInputStream(logFile), "UTF-8");
+			try
+			{
+				char[] buffer = new char[8192];
+				int count;
+				while ((count = reader.read(buffer)) >= 0)
+					contents.append(buffer, 0, count);
+			}
+			finally
+			{
+				reader.close();
+			}
+			
+			// a crash while appending can leave the last line unfinished, so only finished lines count
+			String[] lines = contents.toString().split("\n", -1);
+			if (lines[lines.length - 1].length() > 0)
+			{
+				logger.warn("Ignoring the unfinished last line of the hash cache for '" + directory.getPath() + "'");
+				damaged = true;
+			}
+			
+			// the file name is only a hash of the directory, so make sure it's the right one
+			if (lines.length < 2 || !lines[0].equals(DIRECTORY_KEY + SEPARATOR + directory.getPath()))
+			{
+				logger.warn("Ignoring the hash cache in '" + logFile.getName() + "' since it belongs to another directory");
+				damaged = true;
+				return;
+			}
+			
+			// later lines supersede earlier ones
+			for (int i = 1; i < lines.length - 1; i++)
+			{
+				logLines++;
+				Entry entry = Entry.fromLine(lines[i]);
+				if (entry == null)
+				{
+					logger.warn("Ignoring invalid hash cache entry '" + lines[i] + "'");
+					damaged = true;
+				}
+				else
+					entries.put(getKey(entry.algorithm, entry.path), entry);
+			}
+		}
+		catch (IOException ioe)
+		{
+			logger.warn("Could not read the hash cache for '" + directory.getPath() + "'", ioe);
+			entries.clear();
+			writable = false;
+			return;
+		}
+		
+		logger.debug("The hash cache for '" + directory.getPath() + "' lists " + entries.size() + " hashes");
+	}
+	
+	private static class Entry
+	{
+		public final String algorithm;
+		public final String path;
+		public final long length;
+		public final long lastModified;
+		public final String hash;
+		public final boolean persistent;
+		
+		public Entry(String algorithm, String path, long length, long lastModified, String hash, boolean persistent)
+		{
+			this.algorithm = algorithm;
+			this.path = path;
+			this.length = length;
+			this.lastModified = lastModified;
+			this.hash = hash;
+			this.persistent = persistent;
+		}
+		
+		/**
+		 * The path goes last, since it is the only field that could have
+		 * anything unusual in it.
+		 */
+		public String toLine()
+		{
+			return algorithm + SEPARATOR + length + SEPARATOR + lastModified + SEPARATOR + hash + SEPARATOR + path + "\n";
+		}
+		
+		/**
+		 * @return the entry, or null if the line is malformed (such as one
+		 *         that was cut off by a crash)
+		 */
+		public static Entry fromLine(String line)
+		{
+			String[] fields = line.split(SEPARATOR, 5);
+			if (fields.length < 5 || fields[0].length() == 0 || fields[3].length() == 0 || fields[4].length() == 0)
+				return null;
+			
+			try
+			{
+				return new Entry(fields[0], fields[4], Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3], true);
+			}
+			catch (NumberFormatException nfe)
+			{
+				return null;
+			}
+		}
+	}
+}
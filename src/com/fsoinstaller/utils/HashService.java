@@ -0,0 +1,446 @@
+/*
+ * This file is part of the FreeSpace Open Installer
+ * Copyright (C) 2026 The FreeSpace 2 Source Code Project
+ * 
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License as published by the Free
+ * Software Foundation; either version 2 of the License, or (at your option)
+ * any later version.
+ * 
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+ * more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc., 51
+ * Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ */
+
+package com.fsoinstaller.utils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Computes file hashes on a pool of worker threads, so that the hashes that
+ * several mods ask for at once are computed side by side rather than one at
+ * a time. Each worker has its own digests and its own direct buffer, so
+ * nothing is shared between hashes but the pool itself; the pool is what
+ * keeps too many files from being read at once.
+ * <p>
+ * The size of the pool is set by the <tt>hashThreads</tt> option. By default
+ * it is the number of processors, up to four, since beyond that most disks
+ * can't keep up anyway. On top of that, no more than <tt>hashesPerVolume</tt>
+ * files (two, by default) are read from any one volume at a time, since a
+ * disk that is asked for several files at once spends its time seeking
+ * between them. Files waiting for their volume don't hold up files on other
+ * volumes.
+ * <p>
+ * This class is thread-safe.
+ */
+public class HashService
+{
+	private static final Logger logger = Logger.getLogger(HashService.class);
+	
+	/**
+	 * Use the Initialization On Demand Holder idiom for thread-safe
+	 * non-synchronized singletons.
+	 */
+	private static final class InstanceHolder
+	{
+		private static final HashService INSTANCE = new HashService(PropertiesUtils.getIntSystemProperty("hashThreads", Math.min(4, Runtime.getRuntime().availableProcessors()), 1), PropertiesUtils.getIntSystemProperty("hashesPerVolume", 2, 1));
+	}
+	
+	public static HashService getInstance()
+	{
+		return InstanceHolder.INSTANCE;
+	}
+	
+	protected static final int BUFFER_SIZE = 1024 * 1024;
+	
+	protected final int numThreads;
+	protected final int readsPerVolume;
+	protected final ExecutorService executor;
+	
+	// keyed by volume name; guarded by itself
+	private final Map<String, Volume> volumes;
+	
+	// each worker keeps its own digests and buffer
+	private final ThreadLocal<Map<String, MessageDigest>> digests;
+	private final ThreadLocal<ByteBuffer> buffers;
+	
+	public HashService(int numThreads)
+	{
+		this(numThreads, numThreads);
+	}
+	
+	public HashService(int numThreads, int readsPerVolume)
+	{
+		this.numThreads = numThreads;
+		this.readsPerVolume = readsPerVolume;
+		this.volumes = new HashMap<String, Volume>();
+		this.executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory()
+		{
+			private final AtomicInteger threadNumber = new AtomicInteger(1);
+			
+			public Thread newThread(Runnable runnable)
+			{
+				Thread thread = new Thread(runnable, "HashService-" + threadNumber.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		
+		this.digests = new ThreadLocal<Map<String, MessageDigest>>()
+		{
+			@Override
+			protected Map<String, MessageDigest> initialValue()
+			{
+				return new HashMap<String, MessageDigest>();
+			}
+		};
+		this.buffers = new ThreadLocal<ByteBuffer>()
+		{
+			@Override
+			protected ByteBuffer initialValue()
+			{
+				return ByteBuffer.allocateDirect(BUFFER_SIZE);
+			}
+		};
+	}
+	
+	public int getNumThreads()
+	{
+		return numThreads;
+	}
+	
+	/**
+	 * Converts the algorithm names used in HASH entries (e.g. SHA1) to the
+	 * names Java knows them by (e.g. SHA-1).
+	 */
+	public static String normalizeAlgorithm(String algorithm)
+	{
+		algorithm = algorithm.toUpperCase();
+		if (algorithm.equals("SHA1"))
+			return "SHA-1";
+		else if (algorithm.equals("SHA256"))
+			return "SHA-256";
+		return algorithm;
+	}
+	
+	/**
+	 * Starts hashing a file, and returns straight away.
+	 */
+	public Future<String> submit(String algorithm, File file) throws NoSuchAlgorithmException
+	{
+		// fail now, rather than when the result is collected
+		MessageDigest.getInstance(normalizeAlgorithm(algorithm));
+		
+		final String _algorithm = normalizeAlgorithm(algorithm);
+		final File _file = file;
+		return submit(file, new Callable<String>()
+		{
+			public String call() throws IOException, NoSuchAlgorithmException
+			{
+				return hash(_algorithm, _file);
+			}
+		});
+	}
+	
+	/**
+	 * Runs a task that reads a file on one of the workers, as soon as the
+	 * file's volume isn't already being read as much as it can take.
+	 */
+	public <T> Future<T> submit(File file, Callable<T> task)
+	{
+		VolumeTask<T> volumeTask = new VolumeTask<T>(task, getVolume(file));
+		synchronized (volumes)
+		{
+			volumeTask.volume.pending.add(volumeTask);
+			dispatch(volumeTask.volume);
+		}
+		return volumeTask;
+	}
+	
+	/**
+	 * Hands a volume's waiting tasks to the workers, as far as the volume
+	 * allows. Must be called while holding the volumes lock.
+	 */
+	private void dispatch(Volume volume)
+	{
+		while (volume.active < readsPerVolume && !volume.pending.isEmpty())
+		{
+			VolumeTask<?> task = volume.pending.poll();
+			
+			// (it may have been cancelled while it was waiting)
+			if (task.isDone())
+				continue;
+			
+			volume.active++;
+			executor.execute(task);
+		}
+	}
+	
+	private void finished(Volume volume)
+	{
+		synchronized (volumes)
+		{
+			volume.active--;
+			dispatch(volume);
+		}
+	}
+	
+	private Volume getVolume(File file)
+	{
+		String name = getVolumeName(file);
+		synchronized (volumes)
+		{
+			Volume volume = volumes.get(name);
+			if (volume == null)
+			{
+				volume = new Volume();
+				volumes.put(name, volume);
+			}
+			return volume;
+		}
+	}
+	
+	/**
+	 * Works out which volume a file is on: the deepest mount point above it
+	 * if the system lists them (as Linux does), or otherwise its file system
+	 * root (such as a drive letter).
+	 */
+	protected static String getVolumeName(File file)
+	{
+		String path;
+		try
+		{
+			path = file.getCanonicalPath();
+		}
+		catch (IOException ioe)
+		{
+			path = file.getAbsolutePath();
+		}
+		
+		String volumeName = null;
+		for (String mountPoint: MountPointsHolder.MOUNT_POINTS)
+		{
+			if (volumeName != null && mountPoint.length() <= volumeName.length())
+				continue;
+			if (path.equals(mountPoint) || path.startsWith(mountPoint.endsWith(File.separator) ? mountPoint : mountPoint + File.separator))
+				volumeName = mountPoint;
+		}
+		if (volumeName != null)
+			return volumeName;
+		
+		for (File root: File.listRoots())
+		{
+			if (path.toUpperCase().startsWith(root.getPath().toUpperCase()))
+				return root.getPath();
+		}
+		return "";
+	}
+	
+	/**
+	 * Hashes a file, waiting for a worker to be free if need be.
+	 * 
+	 * @return the hash, as a lower-case hex string
+	 */
+	public String computeHash(String algorithm, File file) throws NoSuchAlgorithmException, FileNotFoundException, IOException
+	{
+		if (!file.exists() || file.isDirectory())
+			throw new IllegalArgumentException("File '" + file.getAbsolutePath() + "' must exist and not be a directory!");
+		
+		return awaitHash(submit(algorithm, file), file.getName());
+	}
+	
+	/**
+	 * Waits for a hash that was started earlier, and unwraps whatever went
+	 * wrong with it.
+	 * 
+	 * @return the hash, as a lower-case hex string
+	 */
+	public static String awaitHash(Future<String> future, String fileName) throws NoSuchAlgorithmException, IOException
+	{
+		try
+		{
+			return future.get();
+		}
+		catch (InterruptedException ie)
+		{
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			
+			InterruptedIOException iioe = new InterruptedIOException("Interrupted while hashing '" + fileName + "'");
+			iioe.initCause(ie);
+			throw iioe;
+		}
+		catch (ExecutionException ee)
+		{
+			Throwable cause = ee.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			else if (cause instanceof NoSuchAlgorithmException)
+				throw (NoSuchAlgorithmException) cause;
+			else if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			else if (cause instanceof Error)
+				throw (Error) cause;
+			
+			IOException ioe = new IOException("Hashing failed");
+			ioe.initCause(cause);
+			throw ioe;
+		}
+	}
+	
+	/**
+	 * Does the hashing, on whichever thread calls this.
+	 */
+	protected String hash(String algorithm, File file) throws IOException, NoSuchAlgorithmException
+	{
+		Map<String, MessageDigest> threadDigests = digests.get();
+		MessageDigest digest = threadDigests.get(algorithm);
+		if (digest == null)
+		{
+			digest = MessageDigest.getInstance(algorithm);
+			threadDigests.put(algorithm, digest);
+		}
+		
+		long startTime = System.currentTimeMillis();
+		String hash = IOUtils.computeHash(digest, file, buffers.get());
+		logger.debug("Hashed '" + file.getName() + "' in " + (System.currentTimeMillis() - startTime) + " ms");
+		return hash;
+	}
+	
+	/**
+	 * Stops the workers once they have finished what they were given. Only
+	 * needed for services other than the shared one.
+	 */
+	public void shutdown()
+	{
+		executor.shutdown();
+	}
+	
+	/**
+	 * The tasks for one volume, and how many of them are being run.
+	 */
+	private static class Volume
+	{
+		public final Queue<VolumeTask<?>> pending = new LinkedList<VolumeTask<?>>();
+		public int active = 0;
+	}
+	
+	private class VolumeTask<T> extends FutureTask<T>
+	{
+		private final Volume volume;
+		
+		public VolumeTask(Callable<T> task, Volume volume)
+		{
+			super(task);
+			this.volume = volume;
+		}
+		
+		@Override
+		public void run()
+		{
+			// (the executor runs every task it is given, even one that was cancelled meanwhile)
+			try
+			{
+				super.run();
+			}
+			finally
+			{
+				finished(volume);
+			}
+		}
+	}
+	
+	/**
+	 * The mount points listed in /proc/mounts, read the first time they are
+	 * needed. Systems without that file have none.
+	 */
+	private static final class MountPointsHolder
+	{
+		private static final List<String> MOUNT_POINTS = readMountPoints(new File("/proc/mounts"));
+	}
+	
+	private static List<String> readMountPoints(File mountsFile)
+	{
+		List<String> mountPoints = new ArrayList<String>();
+		if (!mountsFile.exists())
+			return mountPoints;
+		
+		try
+		{
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(mountsFile), "UTF-8"));
+			try
+			{
+				// each line is "device mountpoint type options ...", with spaces in the mount point written as \040
+				String line;
+				while ((line = reader.readLine()) != null)
+				{
+					String[] fields = line.split(" ");
+					if (fields.length >= 2)
+						mountPoints.add(unescapeMountPoint(fields[1]));
+				}
+			}
+			finally
+			{
+				reader.close();
+			}
+		}
+		catch (IOException ioe)
+		{
+			logger.warn("Could not read the mount points from '" + mountsFile.getPath() + "'", ioe);
+		}
+		return mountPoints;
+	}
+	
+	private static String unescapeMountPoint(String mountPoint)
+	{
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < mountPoint.length(); i++)
+		{
+			char c = mountPoint.charAt(i);
+			if (c == '\\' && i + 3 < mountPoint.length())
+			{
+				try
+				{
+					sb.append((char) Integer.parseInt(mountPoint.substring(i + 1, i + 4), 8));
+					i += 3;
+					continue;
+				}
+				catch (NumberFormatException nfe)
+				{
+					// not an escape after all
+				}
+			}
+			sb.append(c);
+		}
+		return sb.toString();
+	}
+}
@@ -28,6 +28,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.security.MessageDigest;
@@ -57,8 +58,6 @@ public class IOUtils
 	
 	public static final String ENDL = System.getProperty("line.separator");
 
-	private static final Object hash_lock = new Object();
-
 	/**
 	 * Prevent instantiation.
 	 */
@@ -196,35 +195,50 @@ public class IOUtils
 	}
 	
 	public static String computeHash(MessageDigest messageDigest, File file) throws FileNotFoundException, IOException
+	{
+		return computeHash(messageDigest, file, ByteBuffer.allocate(65536));
+	}
+	
+	/**
+	 * Hashes a file, reading it through the given buffer. Several files can
+	 * be hashed at once, as long as each has its own digest and buffer.
+	 */
+	public static String computeHash(MessageDigest messageDigest, File file, ByteBuffer buffer) throws FileNotFoundException, IOException
 	{
 		if (!file.exists() || file.isDirectory())
 			throw new IllegalArgumentException("File '" + file.getAbsolutePath() + "' must exist and not be a directory!");
-			
-		byte[] buffer = new byte[1024];
-
-		synchronized (hash_lock)
+		
+		// in case a previous hash was abandoned partway through
+		messageDigest.reset();
+		
+		FileInputStream fis = null;
+		try
 		{
-			FileInputStream fis = null;
-			try
-			{
-				fis = new FileInputStream(file);
-
-				int len;
-				while ((len = fis.read(buffer)) != -1)
-				{
-					messageDigest.update(buffer, 0, len);
-				}
-			}
-			finally
+			fis = new FileInputStream(file);
+			FileChannel channel = fis.getChannel();
+			
+			buffer.clear();
+			while (channel.read(buffer) != -1)
 			{
-				if (fis != null)
-					fis.close();
+				buffer.flip();
+				messageDigest.update(buffer);
+				buffer.clear();
 			}
 		}
+		finally
+		{
+			if (fis != null)
+				fis.close();
+		}
 		
-		byte[] hashedBytes = messageDigest.digest();
-		
-		// put the hash into a string
+		return toHexString(messageDigest.digest());
+	}
+	
+	/**
+	 * Puts a hash into a string, the way hashes are written in mod files.
+	 */
+	public static String toHexString(byte[] hashedBytes)
+	{
 		StringBuilder sb = new StringBuilder();
 		for (int i = 0; i < hashedBytes.length; i++)
 			sb.append(Integer.toString((hashedBytes[i] & 0xff) + 0x100, 16).substring(1));
@@ -454,17 +468,10 @@ public class IOUtils
 		if (isRootFolderName(fileName))
 			return directory;
 			
-		// search the files in the directory
-		File[] files = directory.listFiles();
-		if (files != null)
-		{
-			for (File file: files)
-			{
-				// found a file with the same name, using a case-insensitive comparison
-				if (file.getName().equalsIgnoreCase(fileName))
-					return file;
-			}
-		}
+		// look the name up in the directory, using a case-insensitive comparison
+		String name = DirectoryIndex.getInstance().findName(directory, fileName);
+		if (name != null)
+			return new File(directory, name);
 		
 		return null;
 	}
@@ -481,11 +488,11 @@ public class IOUtils
 		List<String> fileNames = new ArrayList<String>();
 		
 		// populate the files in the directory
-		File[] files = directory.listFiles();
-		if (files != null)
+		List<String> names = DirectoryIndex.getInstance().getNames(directory);
+		if (names != null)
 		{
-			for (File file: files)
-				fileNames.add(file.getName().toLowerCase());
+			for (String name: names)
+				fileNames.add(name.toLowerCase());
 		}
 		
 		return fileNames;
@@ -510,33 +517,14 @@ public class IOUtils
 		} while (file.getParentFile() != null);
 		
 		// we are now at the root, so reconstruct the path using case-insensitive elements
+		DirectoryIndex index = DirectoryIndex.getInstance();
 		for (String pathElement: pathElements)
 		{
-			// we can only check to see if alternatives exist if we have an existing path
-			if (file.exists())
-			{
-				// it should be a directory because we haven't added the last path element yet
-				if (file.isDirectory())
-				{
-					String[] children = file.list();
-					if (children != null)
-					{
-						// if we have an existing version of this element, ignoring case, use that instead
-						for (String child: children)
-						{
-							if (pathElement.equalsIgnoreCase(child))
-							{
-								pathElement = child;
-								break;
-							}
-						}
-					}
-					else
-						logger.error("There was an error getting the file listing for '" + file.getAbsolutePath() + "!");
-				}
-				else
-					logger.error("Expected '" + file.getAbsolutePath() + "' to be a directory!");
-			}
+			// if we have an existing version of this element, ignoring case, use that instead
+			// (if the path so far doesn't exist, or isn't a directory, there is no alternative)
+			String existing = index.findName(file, pathElement);
+			if (existing != null)
+				pathElement = existing;
 			
 			// keep reconstructing the path
 			file = new File(file, pathElement);
@@ -45,6 +45,57 @@ public class PropertiesUtils
 	{
 	}
 	
+	/**
+	 * Reads an integer option from the system properties (i.e. the command
+	 * line), applying the default if the option is absent or unparseable and
+	 * clamping it to the given minimum.
+	 */
+	public static int getIntSystemProperty(String name, int defaultValue, int minValue)
+	{
+		long num = getLongSystemProperty(name, defaultValue, minValue);
+		
+		// an int can't hold everything a long can
+		if (num > Integer.MAX_VALUE)
+		{
+			logger.warn(name + " must be at most " + Integer.MAX_VALUE + "!");
+			num = Integer.MAX_VALUE;
+		}
+		
+		return (int) num;
+	}
+	
+	/**
+	 * Reads a long option from the system properties (i.e. the command line),
+	 * applying the default if the option is absent or unparseable and clamping
+	 * it to the given minimum.
+	 */
+	public static long getLongSystemProperty(String name, long defaultValue, long minValue)
+	{
+		long num = defaultValue;
+		
+		// maybe parse the user option
+		try
+		{
+			String val = System.getProperty(name);
+			if (val != null)
+				num = Long.parseLong(val.trim());
+		}
+		catch (NumberFormatException nfe)
+		{
+			logger.error("Couldn't parse " + name + "!", nfe);
+		}
+		
+		// sanity
+		if (num < minValue)
+		{
+			logger.warn(name + " must be at least " + minValue + "!");
+			num = minValue;
+		}
+		
+		logger.info("Setting " + name + " to " + num);
+		return num;
+	}
+	
 	public static Properties loadProperties(String resource)
 	{
 		Properties properties = null;
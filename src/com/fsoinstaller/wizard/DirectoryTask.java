@@ -23,7 +23,6 @@ import java.awt.EventQueue;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
@@ -37,6 +36,7 @@ import javax.swing.JOptionPane;
 
 import com.fsoinstaller.main.Configuration;
 import com.fsoinstaller.main.FreeSpaceOpenInstaller;
+import com.fsoinstaller.utils.HashCache;
 import com.fsoinstaller.utils.IOUtils;
 import com.fsoinstaller.utils.InstallerUtils;
 import com.fsoinstaller.utils.Logger;
@@ -154,11 +154,9 @@ class DirectoryTask implements Callable<Void>
 				if (name.equalsIgnoreCase("root_fs2.vp"))
 				{
 					// let's hash it, so that we can use the hash for the v1.2 check later
-					MessageDigest md5Digest;
 					try
 					{
-						md5Digest = MessageDigest.getInstance("MD5");
-						rootVPHash = IOUtils.computeHash(md5Digest, file);
+						rootVPHash = HashCache.getInstance(destinationDir).getHash("MD5", file);
 					}
 					catch (NoSuchAlgorithmException nsae)
 					{
@@ -32,6 +32,7 @@ import java.util.concurrent.Callable;
 import com.fsoinstaller.common.PayloadEvent;
 import com.fsoinstaller.common.PayloadListener;
 import com.fsoinstaller.main.Configuration;
+import com.fsoinstaller.utils.DirectoryIndex;
 import com.fsoinstaller.utils.IOUtils;
 import com.fsoinstaller.utils.Logger;
 import com.fsoinstaller.utils.MiscUtils;
@@ -380,10 +381,15 @@ class InnoExtractTask implements Callable<Boolean>
 			if (!installFile.exists())
 			{
 				// make sure the new directory structure exists
-				if (!installFile.getParentFile().exists() && !installFile.getParentFile().mkdirs())
+				if (!installFile.getParentFile().exists())
 				{
-					logger.error("Unable to rename '" + extractedFile.getAbsolutePath() + "' to '" + installFile.getAbsolutePath() + "': destination file tree could not be created!");
-					return false;
+					long before = DirectoryIndex.getInstance().beforeChange(installFile.getParentFile());
+					if (!installFile.getParentFile().mkdirs())
+					{
+						logger.error("Unable to rename '" + extractedFile.getAbsolutePath() + "' to '" + installFile.getAbsolutePath() + "': destination file tree could not be created!");
+						return false;
+					}
+					DirectoryIndex.getInstance().added(installFile.getParentFile(), before);
 				}
 				
 				logger.debug("Renaming from '" + extractedFile.getAbsolutePath() + "' to '" + installDir.getAbsolutePath() + "'");
@@ -394,6 +400,7 @@ class InnoExtractTask implements Callable<Boolean>
 					logger.error("Unable to rename '" + extractedFile.getAbsolutePath() + "' to '" + installFile.getAbsolutePath() + "'!");
 					return false;
 				}
+				DirectoryIndex.getInstance().invalidate(installFile.getParentFile());
 			}
 		}
 		
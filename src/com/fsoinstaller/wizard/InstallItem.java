@@ -25,11 +25,11 @@ import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -55,10 +55,17 @@ import com.fsoinstaller.common.InstallerNode.HashTriple;
 import com.fsoinstaller.common.InstallerNode.InstallUnit;
 import com.fsoinstaller.common.InstallerNode.PatchTriple;
 import com.fsoinstaller.internet.Connector;
+import com.fsoinstaller.internet.DownloadScheduler;
 import com.fsoinstaller.internet.Downloader;
+import com.fsoinstaller.internet.InstallManifest;
+import com.fsoinstaller.internet.MirrorRanker;
+import com.fsoinstaller.internet.SwarmDownloader;
 import com.fsoinstaller.main.Configuration;
 import com.fsoinstaller.main.FreeSpaceOpenInstaller;
 import com.fsoinstaller.utils.CollapsiblePanel;
+import com.fsoinstaller.utils.DirectoryIndex;
+import com.fsoinstaller.utils.HashCache;
+import com.fsoinstaller.utils.HashService;
 import com.fsoinstaller.utils.IOUtils;
 import com.fsoinstaller.utils.InstallerUtils;
 import com.fsoinstaller.utils.KeyPair;
@@ -270,6 +277,7 @@ public class InstallItem extends JPanel
 	protected void fireCompletion()
 	{
 		modLogger.info("Processing is complete; alerting listeners...");
+		DownloadScheduler.getInstance().logStatistics(modLogger);
 		
 		EventQueue.invokeLater(new Runnable()
 		{
@@ -350,7 +358,7 @@ public class InstallItem extends JPanel
 						// prepare progress bar for tracking progress
 						setPercentComplete(0);
 						setIndeterminate(false);
-												
+						
 						// before we download anything, let's see if we can patch it
 						boolean success = performPatchTasks(modFolder);
 						if (!success || Thread.currentThread().isInterrupted())
@@ -359,8 +367,16 @@ public class InstallItem extends JPanel
 							return null;
 						}
 						
+						// files whose hashes show they are already here don't need to be downloaded at all
+						Set<KeyPair<InstallUnit, String>> alreadyInstalled = planInstallTasks(modFolder);
+						if (Thread.currentThread().isInterrupted())
+						{
+							failInstallTree();
+							return null;
+						}
+						
 						// now we are about to download stuff
-						success = performInstallTasks(modFolder);
+						success = performInstallTasks(modFolder, alreadyInstalled);
 						if (!success || Thread.currentThread().isInterrupted())
 						{
 							failInstallTree();
@@ -672,7 +688,7 @@ public class InstallItem extends JPanel
 			else
 			{
 				modLogger.info("Creating folder '" + folderName + "'");
-				if (!folder.mkdirs())
+				if (!createDirectory(folder))
 				{
 					modLogger.error("Unable to create the folder '" + folderName + "'!");
 					logInstallError(String.format(XSTR.getString("installResultFolderNotCreated"), folderName));
@@ -708,6 +724,7 @@ public class InstallItem extends JPanel
 					logInstallError(String.format(XSTR.getString("installResultFileNotDeleted"), file));
 					return null;
 				}
+				DirectoryIndex.getInstance().invalidate(file.getParentFile());
 			}
 		}
 		
@@ -729,7 +746,7 @@ public class InstallItem extends JPanel
 				else
 				{
 					// make sure the parent directory exists
-					if (to.getParentFile() != null && !to.getParentFile().exists() && !to.getParentFile().mkdirs())
+					if (to.getParentFile() != null && !to.getParentFile().exists() && !createDirectory(to.getParentFile()))
 					{
 						modLogger.error("Unable to rename '" + rename.getFrom() + "' to '" + rename.getTo() + "': destination file tree could not be created!");
 						logInstallError(String.format(XSTR.getString("installResultFileNotRenamed"), rename.getFrom(), rename.getTo()));
@@ -743,6 +760,8 @@ public class InstallItem extends JPanel
 						logInstallError(String.format(XSTR.getString("installResultFileNotRenamed"), rename.getFrom(), rename.getTo()));
 						return null;
 					}
+					DirectoryIndex.getInstance().invalidate(from.getParentFile());
+					DirectoryIndex.getInstance().invalidate(to.getParentFile());
 				}
 			}
 		}
@@ -768,10 +787,12 @@ public class InstallItem extends JPanel
 					{
 						// make sure the destination parent folder exists
 						if (!to.getParentFile().exists())
-							if (!to.getParentFile().mkdirs())
+							if (!createDirectory(to.getParentFile()))
 								throw new IOException("Could not create destination parent directory!");
 						
+						long before = DirectoryIndex.getInstance().beforeChange(to);
 						IOUtils.copy(from, to);
+						DirectoryIndex.getInstance().added(to, before);
 					}
 					catch (IOException ioe)
 					{
@@ -786,6 +807,20 @@ public class InstallItem extends JPanel
 		return folder;
 	}
 	
+	/**
+	 * Creates a directory, along with any missing parents, and tells the
+	 * directory index about it.
+	 */
+	private boolean createDirectory(File directory)
+	{
+		long before = DirectoryIndex.getInstance().beforeChange(directory);
+		if (!directory.mkdirs())
+			return false;
+		
+		DirectoryIndex.getInstance().added(directory, before);
+		return true;
+	}
+	
 	/**
 	 * Perform patching for this node, if needed.
 	 */
@@ -809,14 +844,8 @@ public class InstallItem extends JPanel
 			
 			for (InstallUnit install: node.getInstallList())
 			{
-				// try mirrors in random order
-				List<BaseURL> tempURLs = install.getBaseURLList();
-				if (tempURLs.size() > 1)
-				{
-					tempURLs = new ArrayList<BaseURL>(tempURLs);
-					Collections.shuffle(tempURLs);
-				}
-				final List<BaseURL> urls = tempURLs;
+				// the mirrors are put in order for each file, in downloadOne
+				final List<BaseURL> urls = install.getBaseURLList();
 				
 				// perform all patches for the unit
 				for (final PatchTriple triple: install.getPatchList())
@@ -876,16 +905,145 @@ public class InstallItem extends JPanel
 		return true;
 	}
 	
+	/**
+	 * Works out which of the files to install are already here, going by the
+	 * node's HASH entries, so that they can be skipped without going to the
+	 * network at all. A plain file is already here if it matches all of its
+	 * hashes (and has at least one). An archive is already here if we know
+	 * which files it extracted last time, at least one of them has hashes,
+	 * every one with hashes matches them, and every other one is exactly as
+	 * it was extracted.
+	 */
+	private Set<KeyPair<InstallUnit, String>> planInstallTasks(File modFolder)
+	{
+		Set<KeyPair<InstallUnit, String>> alreadyInstalled = new HashSet<KeyPair<InstallUnit, String>>();
+		if (node.getHashList().isEmpty())
+			return alreadyInstalled;
+		
+		// group the hashes by file
+		Map<String, List<HashTriple>> hashesByFile = new HashMap<String, List<HashTriple>>();
+		for (HashTriple hash: node.getHashList())
+		{
+			String key = Downloader.getFileHashKey(hash.getFilename());
+			List<HashTriple> hashes = hashesByFile.get(key);
+			if (hashes == null)
+			{
+				hashes = new ArrayList<HashTriple>();
+				hashesByFile.put(key, hashes);
+			}
+			hashes.add(hash);
+		}
+		
+		modLogger.info("Checking which files are already installed");
+		for (InstallUnit install: node.getInstallList())
+		{
+			for (String file: install.getFileList())
+			{
+				if (Thread.currentThread().isInterrupted())
+					return alreadyInstalled;
+				
+				String fileName = new File(file).getName();
+				boolean installed;
+				if (Downloader.getArchiveFormat(fileName) == null)
+					installed = hashesMatch(modFolder, hashesByFile.get(Downloader.getFileHashKey(fileName)));
+				else
+					installed = archiveMatches(modFolder, install, file, hashesByFile);
+				
+				if (installed)
+				{
+					modLogger.info("'" + file + "' is already installed; its hashes match");
+					alreadyInstalled.add(new KeyPair<InstallUnit, String>(install, file));
+				}
+			}
+		}
+		
+		return alreadyInstalled;
+	}
+	
+	/**
+	 * Checks files against their hashes without complaining about the ones
+	 * that don't match; that is for the HASH step to do once they have been
+	 * installed.
+	 */
+	private boolean hashesMatch(File modFolder, List<HashTriple> hashes)
+	{
+		if (hashes == null || hashes.isEmpty())
+			return false;
+		
+		HashCache cache = HashCache.getInstance(configuration.getApplicationDir());
+		for (HashTriple hash: hashes)
+		{
+			File fileToHash = IOUtils.newFileIgnoreCase(modFolder, hash.getFilename());
+			if (!fileToHash.isFile())
+				return false;
+			
+			try
+			{
+				if (!hash.getHash().equalsIgnoreCase(cache.getHash(hash.getAlgorithm(), fileToHash)))
+					return false;
+			}
+			catch (NoSuchAlgorithmException nsae)
+			{
+				return false;
+			}
+			catch (IOException ioe)
+			{
+				modLogger.warn("Could not check the hash of '" + hash.getFilename() + "'", ioe);
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private boolean archiveMatches(File modFolder, InstallUnit install, String file, Map<String, List<HashTriple>> hashesByFile)
+	{
+		// the manifest knows the archive by whichever mirror it came from
+		InstallManifest manifest = InstallManifest.getInstance();
+		List<File> extractedFiles = null;
+		for (BaseURL baseURL: install.getBaseURLList())
+		{
+			try
+			{
+				extractedFiles = manifest.getArchiveFiles(baseURL.toURL(file), modFolder);
+			}
+			catch (MalformedURLException murle)
+			{
+				continue;
+			}
+			if (extractedFiles != null)
+				break;
+		}
+		if (extractedFiles == null)
+			return false;
+		
+		String prefix = modFolder.getAbsolutePath() + File.separator;
+		boolean hashed = false;
+		for (File extractedFile: extractedFiles)
+		{
+			String path = extractedFile.getAbsolutePath();
+			List<HashTriple> hashes = path.startsWith(prefix) ? hashesByFile.get(Downloader.getFileHashKey(path.substring(prefix.length()))) : null;
+			if (hashes != null)
+			{
+				if (!hashesMatch(modFolder, hashes))
+					return false;
+				hashed = true;
+			}
+			else if (manifest.getRecord(extractedFile) == null)
+				return false;
+		}
+		return hashed;
+	}
+	
 	/**
 	 * Perform the main installation tasks for this node.
 	 */
-	private boolean performInstallTasks(final File modFolder)
+	private boolean performInstallTasks(final File modFolder, Set<KeyPair<InstallUnit, String>> alreadyInstalled)
 	{
 		// count task items first
 		int downloadItems = 0;
 		for (InstallUnit unit: node.getInstallList())
 			downloadItems += unit.getFileList().size();
-				
+		
 		if (downloadItems > 0)
 		{
 			modLogger.info("Processing INSTALL items");
@@ -901,23 +1059,33 @@ public class InstallItem extends JPanel
 			// these could be files to download, or they could later be files to extract
 			for (InstallUnit install: node.getInstallList())
 			{
-				// try mirrors in random order
-				List<BaseURL> tempURLs = install.getBaseURLList();
-				if (tempURLs.size() > 1)
-				{
-					tempURLs = new ArrayList<BaseURL>(tempURLs);
-					Collections.shuffle(tempURLs);
-				}
-				final List<BaseURL> urls = tempURLs;
+				// the mirrors are put in order for each file, in downloadOne
+				final List<BaseURL> urls = install.getBaseURLList();
 				
 				// install all files for the unit
 				for (final String file: install.getFileList())
 				{
-					modLogger.debug("Submitting download task for '" + file + "'");
-					
 					int downloadTaskIndex = downloadTaskIndexes.get(new KeyPair<InstallUnit, String>(install, file));
 					final DownloadPanel downloadPanel = (DownloadPanel) installTaskPanelList.get(downloadTaskIndex);
 					
+					// nothing to do for a file that is already here
+					if (alreadyInstalled.contains(new KeyPair<InstallUnit, String>(install, file)))
+					{
+						EventQueue.invokeLater(new Runnable()
+						{
+							public void run()
+							{
+								downloadPanel.downloadNotNecessary(null);
+							}
+						});
+						successes.incrementAndGet();
+						setRatioComplete(completions.incrementAndGet() / ((double) totalTasks));
+						latch.countDown();
+						continue;
+					}
+					
+					modLogger.debug("Submitting download task for '" + file + "'");
+					
 					// submit a task for this file
 					FreeSpaceOpenInstaller.getInstance().submitTask(XSTR.getString("downloadTitle") + " " + file, new Callable<Void>()
 					{
@@ -985,17 +1153,33 @@ public class InstallItem extends JPanel
 	
 	private String computeHash(File modFolder, HashTriple hash)
 	{
-		String algorithm = hash.getAlgorithm().toUpperCase();
-		if (algorithm.equals("SHA1"))
-			algorithm = "SHA-1";
-		else if (algorithm.equals("SHA256"))
-			algorithm = "SHA-256";
+		return awaitHash(submitHash(modFolder, hash), hash);
+	}
+	
+	/**
+	 * Starts hashing a file, unless it hasn't changed since it was last
+	 * hashed. It is hashed alongside whatever else this and other mods are
+	 * hashing.
+	 * 
+	 * @return the hash to come, or null if it can't be computed (which has
+	 *         already been reported)
+	 */
+	private Future<String> submitHash(File modFolder, HashTriple hash)
+	{
+		String algorithm = HashService.normalizeAlgorithm(hash.getAlgorithm());
 		
-		// get the hash processor, provided by Java
-		MessageDigest digest;
+		// find the file to hash
+		File fileToHash = IOUtils.newFileIgnoreCase(modFolder, hash.getFilename());
+		if (!fileToHash.exists())
+		{
+			modLogger.warn("Cannot compute hash for '" + hash.getFilename() + "'; it does not exist");
+			return null;
+		}
+		
+		modLogger.info("Computing a " + algorithm + " hash for '" + hash.getFilename() + "'");
 		try
 		{
-			digest = MessageDigest.getInstance(algorithm);
+			return HashCache.getInstance(configuration.getApplicationDir()).submit(algorithm, fileToHash);
 		}
 		catch (NoSuchAlgorithmException nsae)
 		{
@@ -1003,30 +1187,40 @@ public class InstallItem extends JPanel
 			logInstallError(String.format(XSTR.getString("installResultHashNotComputed"), algorithm));
 			return null;
 		}
-		
-		// find the file to hash
-		File fileToHash = IOUtils.newFileIgnoreCase(modFolder, hash.getFilename());
-		if (!fileToHash.exists())
+		catch (IOException ioe)
 		{
-			modLogger.warn("Cannot compute hash for '" + hash.getFilename() + "'; it does not exist");
+			modLogger.error("There was a problem computing the hash...", ioe);
 			return null;
 		}
+	}
+	
+	/**
+	 * Waits for a hash started by submitHash.
+	 * 
+	 * @return the hash, or null if it couldn't be computed (which has been
+	 *         reported)
+	 */
+	private String awaitHash(Future<String> future, HashTriple hash)
+	{
+		if (future == null)
+			return null;
 		
-		// hash it
-		modLogger.info("Computing a " + algorithm + " hash for '" + hash.getFilename() + "'");
-		String computedHash;
 		try
 		{
-			computedHash = IOUtils.computeHash(digest, fileToHash);
+			return HashService.awaitHash(future, hash.getFilename());
+		}
+		catch (NoSuchAlgorithmException nsae)
+		{
+			String algorithm = HashService.normalizeAlgorithm(hash.getAlgorithm());
+			modLogger.error("Unable to compute hash; '" + algorithm + "' is not a recognized algorithm!", nsae);
+			logInstallError(String.format(XSTR.getString("installResultHashNotComputed"), algorithm));
+			return null;
 		}
 		catch (IOException ioe)
 		{
 			modLogger.error("There was a problem computing the hash...", ioe);
 			return null;
 		}
-		
-		// success, hopefully
-		return computedHash;
 	}
 	
 	/**
@@ -1038,45 +1232,70 @@ public class InstallItem extends JPanel
 		{
 			modLogger.info("Processing HASH items");
 			setText(XSTR.getString("progressBarHashing"));
+			setRatioComplete(0);
 			
-			int badHashes = 0;
+			// start all the hashes at once; the hash service decides how many files are read at a time
+			List<HashTriple> hashList = node.getHashList();
+			List<Future<String>> futures = new ArrayList<Future<String>>(hashList.size());
+			for (HashTriple hash: hashList)
+				futures.add(submitHash(modFolder, hash));
 			
-			for (HashTriple hash: node.getHashList())
+			int badHashes = 0;
+			try
 			{
-				String computedHash = computeHash(modFolder, hash);
-				if (computedHash == null)
-					continue;
-				
-				// compare it
-				if (!hash.getHash().equalsIgnoreCase(computedHash))
+				// collect the results in the order the hashes were listed
+				for (int i = 0; i < hashList.size(); i++)
 				{
-					modLogger.error("Computed hash value of " + computedHash + " does not match required hash value of " + hash.getHash() + " for file '" + hash.getFilename() + "'!");
-					
-					// we can't keep a bad file
-					boolean baleeted = false;
-					try
-					{
-						baleeted = IOUtils.newFileIgnoreCase(modFolder, hash.getFilename()).delete();
-					}
-					catch (SecurityException se)
-					{
-						modLogger.error("Encountered a SecurityException when trying to delete '" + hash.getFilename() + "'!", se);
-					}
+					HashTriple hash = hashList.get(i);
+					String computedHash = awaitHash(futures.get(i), hash);
+					if (Thread.currentThread().isInterrupted())
+						return false;
+					setRatioComplete((i + 1) / ((double) hashList.size()));
+					if (computedHash == null)
+						continue;
 					
-					// notify the user
-					if (baleeted)
-					{
-						logInstallError(String.format(XSTR.getString("installResultHashMismatch1"), hash.getFilename()));
-						modLogger.error("File deleted!");
-					}
-					else
+					// compare it
+					if (!hash.getHash().equalsIgnoreCase(computedHash))
 					{
-						logInstallError(String.format(XSTR.getString("installResultHashMismatch2"), hash.getFilename()));
-						modLogger.error("Unable to delete the file!");
+						modLogger.error("Computed hash value of " + computedHash + " does not match required hash value of " + hash.getHash() + " for file '" + hash.getFilename() + "'!");
+						
+						// we can't keep a bad file
+						boolean baleeted = false;
+						try
+						{
+							File badFile = IOUtils.newFileIgnoreCase(modFolder, hash.getFilename());
+							baleeted = badFile.delete();
+							DirectoryIndex.getInstance().invalidate(badFile.getParentFile());
+						}
+						catch (SecurityException se)
+						{
+							modLogger.error("Encountered a SecurityException when trying to delete '" + hash.getFilename() + "'!", se);
+						}
+						
+						// notify the user
+						if (baleeted)
+						{
+							logInstallError(String.format(XSTR.getString("installResultHashMismatch1"), hash.getFilename()));
+							modLogger.error("File deleted!");
+						}
+						else
+						{
+							logInstallError(String.format(XSTR.getString("installResultHashMismatch2"), hash.getFilename()));
+							modLogger.error("Unable to delete the file!");
+						}
+						
+						// fail
+						badHashes++;
 					}
-					
-					// fail
-					badHashes++;
+				}
+			}
+			finally
+			{
+				// if we stopped early, don't leave the rest running
+				for (Future<String> future: futures)
+				{
+					if (future != null)
+						future.cancel(true);
 				}
 			}
 			
@@ -1188,7 +1407,9 @@ public class InstallItem extends JPanel
 			boolean baleeted = false;
 			try
 			{
-				baleeted = IOUtils.newFileIgnoreCase(modFolder, triple.getPatch().getFilename()).delete();
+				File badPatchFile = IOUtils.newFileIgnoreCase(modFolder, triple.getPatch().getFilename());
+				baleeted = badPatchFile.delete();
+				DirectoryIndex.getInstance().invalidate(badPatchFile.getParentFile());
 			}
 			catch (SecurityException se)
 			{
@@ -1221,7 +1442,9 @@ public class InstallItem extends JPanel
 		});
 		try
 		{
+			long before = DirectoryIndex.getInstance().beforeChange(targetFile);
 			IOUtils.applyPatch(patch, prePatchFile, patchFile, targetFile);
+			DirectoryIndex.getInstance().added(targetFile, before);
 		}
 		catch (IOException ioe)
 		{
@@ -1244,6 +1467,7 @@ public class InstallItem extends JPanel
 			try
 			{
 				baleeted = targetFile.delete();
+				DirectoryIndex.getInstance().invalidate(targetFile.getParentFile());
 			}
 			catch (SecurityException se)
 			{
@@ -1279,59 +1503,81 @@ public class InstallItem extends JPanel
 		{
 			modLogger.error("Unable to rename '" + targetFile.getName() + "' to '" + postPatchFile.getName() + "'!");
 		}
+		DirectoryIndex.getInstance().invalidate(targetFile.getParentFile());
+		DirectoryIndex.getInstance().invalidate(postPatchFile.getParentFile());
 	}
 	
 	private boolean downloadOne(Connector connector, File modFolder, List<BaseURL> baseURLList, String file, final DownloadPanel downloadPanel)
 	{
 		modLogger.info("Downloading '" + file + "'");
 		
-		// try all URLs supplied
-		for (BaseURL baseURL: baseURLList)
+		// try the mirrors that have been performing best first, or if we can't tell, try them in random order
+		final MirrorRanker ranker = (MirrorRanker) configuration.getSettings().get(Configuration.MIRROR_RANKER_KEY);
+		List<BaseURL> rankedURLList;
+		if (ranker != null)
+			rankedURLList = ranker.rank(baseURLList, file);
+		else
+		{
+			rankedURLList = new ArrayList<BaseURL>(baseURLList);
+			Collections.shuffle(rankedURLList);
+		}
+		
+		// collect all URLs supplied
+		List<URL> urls = new ArrayList<URL>();
+		for (BaseURL baseURL: rankedURLList)
 		{
 			modLogger.debug("Obtaining URL");
-			URL url;
 			try
 			{
-				url = baseURL.toURL(file);
+				urls.add(baseURL.toURL(file));
 			}
 			catch (MalformedURLException murle)
 			{
 				modLogger.error("Bad URL '" + baseURL.toString() + file + "'", murle);
-				continue;
 			}
-			
-			// make a downloader for our panel
-			final Downloader downloader = new Downloader(connector, url, modFolder, node.getTreePath());
-			EventQueue.invokeLater(new Runnable()
-			{
-				public void run()
-				{
-					downloadPanel.setPending();
-					downloadPanel.setDownloader(downloader);
-				}
-			});
-			
-			try
-			{
-				// perform the download
-				modLogger.debug("Beginning download from '" + baseURL.toString() + file + "'");
-				boolean success = downloader.download();
-				
-				// did it work?
-				if (success)
-					return true;
-				
-				// are we interrupted?
-				if (Thread.currentThread().isInterrupted())
-					return false;
-			}
-			catch (RuntimeException re)
+		}
+		if (urls.isEmpty())
+			return false;
+		
+		// make a downloader for our panel; it will move on to the next mirror by itself if one fails,
+		// and if there are several mirrors, it will download different parts of the file from each of them
+		final Downloader downloader;
+		if (urls.size() > 1)
+			downloader = new SwarmDownloader(connector, urls, modFolder, node.getTreePath());
+		else
+			downloader = new Downloader(connector, urls, modFolder, node.getTreePath());
+		downloader.setMirrorRanker(ranker);
+		
+		// if the mod lists a hash for the file itself, the download cache can find it by its content;
+		// and any file the mod lists a hash for is hashed as it is written, so that checking it is free
+		String fileName = new File(urls.get(0).getPath()).getName();
+		for (HashTriple hash: node.getHashList())
+		{
+			if (hash.getFilename().equalsIgnoreCase(fileName))
+				downloader.addContentHash(hash.getAlgorithm(), hash.getHash());
+			downloader.addFileHash(hash.getFilename(), hash.getAlgorithm(), hash.getHash());
+		}
+		downloader.setHashCache(HashCache.getInstance(configuration.getApplicationDir()));
+		EventQueue.invokeLater(new Runnable()
+		{
+			public void run()
 			{
-				modLogger.error("Unexpected runtime exception while downloading!", re);
+				downloadPanel.setPending();
+				downloadPanel.setDownloader(downloader);
 			}
-		}
+		});
 		
-		return false;
+		try
+		{
+			// perform the download
+			modLogger.debug("Beginning download from '" + urls.get(0) + "'");
+			return downloader.download();
+		}
+		catch (RuntimeException re)
+		{
+			modLogger.error("Unexpected runtime exception while downloading!", re);
+			return false;
+		}
 	}
 	
 	public void logInstallNote(final String message)
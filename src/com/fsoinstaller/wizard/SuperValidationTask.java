@@ -42,6 +42,7 @@ import com.fsoinstaller.common.InstallerNodeParseException;
 import com.fsoinstaller.internet.Connector;
 import com.fsoinstaller.internet.Downloader;
 import com.fsoinstaller.internet.InvalidProxyException;
+import com.fsoinstaller.internet.MirrorRanker;
 import com.fsoinstaller.main.Configuration;
 import com.fsoinstaller.main.FreeSpaceOpenInstaller;
 import com.fsoinstaller.utils.IOUtils;
@@ -186,6 +187,7 @@ class SuperValidationTask implements Callable<Void>
 		
 		Connector connector = new Connector(proxy);
 		settings.put(Configuration.CONNECTOR_KEY, connector);
+		settings.put(Configuration.MIRROR_RANKER_KEY, new MirrorRanker(connector));
 		
 		// only check for the installer version if we haven't checked already
 		// and also skip the check if we're overriding mod nodes, since this will allow offline installations in the future